@@ -0,0 +1,129 @@
+package com.cleo.labs.connector.router;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * An Aho-Corasick automaton that finds which of a set of keywords occur
+ * anywhere in a {@link CharSequence} in a single linear pass.
+ * <p/>
+ * Transitions for characters below {@code 256} are precomputed into a
+ * dense table so that the common (Latin-1) case never follows failure
+ * links while scanning.  Other characters use the classic goto/failure
+ * traversal.
+ */
+public class AhoCorasick {
+    private static final int DENSE = 256;
+
+    private final int keywords;
+    private final List<Map<Character,Integer>> go;
+    private final int[] fail;
+    private final int[][] out;
+    private final int[] delta;
+
+    /**
+     * Builds the automaton for {@code keywords}.  Keyword {@code i} is
+     * reported as bit {@code i} by {@link #scan(CharSequence)}.
+     * @param keywords the (non-empty) keywords to find
+     */
+    public AhoCorasick(List<String> keywords) {
+        this.keywords = keywords.size();
+        // build the trie
+        go = new ArrayList<>();
+        go.add(new HashMap<>());
+        List<List<Integer>> outputs = new ArrayList<>();
+        outputs.add(new ArrayList<>());
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                Integer next = go.get(state).get(keyword.charAt(i));
+                if (next == null) {
+                    next = go.size();
+                    go.add(new HashMap<>());
+                    outputs.add(new ArrayList<>());
+                    go.get(state).put(keyword.charAt(i), next);
+                }
+                state = next;
+            }
+            outputs.get(state).add(k);
+        }
+        // breadth first to compute failure links and merge outputs
+        fail = new int[go.size()];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : go.get(0).values()) {
+            queue.add(child);
+        }
+        List<Integer> order = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            order.add(state);
+            for (Map.Entry<Character,Integer> edge : go.get(state).entrySet()) {
+                int child = edge.getValue();
+                int f = fail[state];
+                while (f != 0 && !go.get(f).containsKey(edge.getKey())) {
+                    f = fail[f];
+                }
+                Integer target = go.get(f).get(edge.getKey());
+                fail[child] = target == null || target == child ? 0 : target;
+                outputs.get(child).addAll(outputs.get(fail[child]));
+                queue.add(child);
+            }
+        }
+        out = new int[go.size()][];
+        for (int s = 0; s < out.length; s++) {
+            out[s] = outputs.get(s).stream().distinct().mapToInt(Integer::intValue).toArray();
+        }
+        // dense transitions, in breadth first order so fail[s] is always done before s
+        delta = new int[go.size()*DENSE];
+        for (int c = 0; c < DENSE; c++) {
+            Integer next = go.get(0).get((char)c);
+            delta[c] = next == null ? 0 : next;
+        }
+        for (int s : order) {
+            for (int c = 0; c < DENSE; c++) {
+                Integer next = go.get(s).get((char)c);
+                delta[s*DENSE+c] = next != null ? next : delta[fail[s]*DENSE+c];
+            }
+        }
+    }
+
+    /**
+     * Scans {@code text} once, returning the set of keywords found.
+     * Scanning stops early once every keyword has been seen.
+     * @param text the text to scan
+     * @return a {@link BitSet} with bit {@code i} set if keyword {@code i} occurs
+     */
+    public BitSet scan(CharSequence text) {
+        BitSet found = new BitSet(keywords);
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < DENSE) {
+                state = delta[state*DENSE+c];
+            } else {
+                Integer next = go.get(state).get(c);
+                while (next == null && state != 0) {
+                    state = fail[state];
+                    next = go.get(state).get(c);
+                }
+                state = next == null ? 0 : next;
+            }
+            if (out[state].length > 0) {
+                for (int k : out[state]) {
+                    found.set(k);
+                }
+                if (found.cardinality() == keywords) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+}
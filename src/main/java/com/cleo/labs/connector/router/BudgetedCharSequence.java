@@ -0,0 +1,129 @@
+package com.cleo.labs.connector.router;
+
+/**
+ * A {@link CharSequence} wrapper that enforces a time and step budget on
+ * whatever is reading it, typically a {@link java.util.regex.Matcher}.
+ * Every {@link #charAt(int)} counts as a step, and every so often the
+ * elapsed time and the thread's interrupt status are checked.  When the
+ * budget is exhausted, {@link BudgetExceededException} is thrown out of
+ * {@code charAt}, which unwinds the regular expression engine no matter
+ * how deeply it is backtracking.
+ */
+public class BudgetedCharSequence implements CharSequence {
+
+    /**
+     * Thrown from {@link BudgetedCharSequence#charAt(int)} when the budget
+     * is exhausted or the thread is interrupted.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public BudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * How many steps between checks of the clock.
+     */
+    private static final int CHECK_INTERVAL = 4096;
+
+    /**
+     * A time and step budget, which may be shared by several sequences
+     * read one after another, e.g. as a preview grows, so that together
+     * they stay within it.
+     */
+    public static class Budget {
+        private final long deadline;
+        private final long maxSteps;
+        private long steps;
+        private int countdown;
+
+        /**
+         * Creates a budget starting now.
+         * @param timeout the time budget in milliseconds, or {@code 0} for no time limit
+         * @param maxSteps the step budget, or {@code 0} for no step limit
+         */
+        public Budget(long timeout, long maxSteps) {
+            this.deadline = timeout > 0 ? System.nanoTime() + timeout*1000000L : 0;
+            this.maxSteps = maxSteps;
+            this.steps = 0;
+            this.countdown = CHECK_INTERVAL;
+        }
+
+        /**
+         * Returns the number of steps taken so far.
+         * @return the number of steps
+         */
+        public long steps() {
+            return steps;
+        }
+
+        private void step() {
+            steps++;
+            if (maxSteps > 0 && steps > maxSteps) {
+                throw new BudgetExceededException(String.format("step budget of %d exceeded", maxSteps));
+            }
+            if (--countdown <= 0) {
+                countdown = CHECK_INTERVAL;
+                if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                    throw new BudgetExceededException(String.format("time budget exceeded after %d steps", steps));
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new BudgetExceededException(String.format("interrupted after %d steps", steps));
+                }
+            }
+        }
+    }
+
+    private final CharSequence text;
+    private final Budget budget;
+
+    /**
+     * Wraps {@code text} with a budget starting now.
+     * @param text the text to wrap
+     * @param timeout the time budget in milliseconds, or {@code 0} for no time limit
+     * @param maxSteps the step budget, or {@code 0} for no step limit
+     */
+    public BudgetedCharSequence(CharSequence text, long timeout, long maxSteps) {
+        this(text, new Budget(timeout, maxSteps));
+    }
+
+    /**
+     * Wraps {@code text} with a budget that may already be partly spent.
+     * @param text the text to wrap
+     * @param budget the budget
+     */
+    public BudgetedCharSequence(CharSequence text, Budget budget) {
+        this.text = text;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the number of steps taken so far against the budget.
+     * @return the number of steps
+     */
+    public long steps() {
+        return budget.steps();
+    }
+
+    @Override
+    public char charAt(int index) {
+        budget.step();
+        return text.charAt(index);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,245 @@
+package com.cleo.labs.connector.router;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of {@code byte[]} buffers shared by all {@code PUT} commands
+ * configured with the same memory budget, so that connectors with
+ * different budgets do not contend for one pool.  Buffers are handed out
+ * in power of two size classes (at least {@link #MIN_BUFFER}) and
+ * recycled when released.
+ * <p/>
+ * The budget limits the buffers the commands are expected to need: each
+ * command is {@link #admit(long) admitted} with an estimate of its needs
+ * before it takes any buffers, and waits until the estimates of the commands
+ * already admitted leave room for its own (admission control).  A single
+ * command whose needs exceed the whole budget still proceeds once it has the
+ * pool to itself.  Once admitted, a command is never made to wait for a
+ * buffer: a thread holding buffers may be waited on by others, so waiting
+ * for buffers there could deadlock.  Idle buffers are dropped as needed to
+ * keep the buffers in use plus the idle buffers within the budget, but the
+ * buffers in use may exceed it when the estimates fall short.
+ * <p/>
+ * A budget of {@code 0} disables pooling: buffers are simply allocated
+ * and left to the garbage collector.
+ */
+public class BufferPool {
+
+    /**
+     * The smallest buffer handed out by the pool.
+     */
+    public static final int MIN_BUFFER = 4 * 1024;
+
+    private static final BufferPool shared = new BufferPool(0);
+    private static final Map<Long,BufferPool> budgeted = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the process-wide pool with no budget, which does no pooling.
+     * @return the shared pool
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Returns the process-wide pool for {@code budget}, creating it the
+     * first time the budget is seen.
+     * @param budget the budget in bytes, {@code 0} for no pooling
+     * @return the pool for the budget, or the {@link #shared()} pool
+     */
+    public static BufferPool of(long budget) {
+        if (budget <= 0) {
+            return shared;
+        }
+        return budgeted.computeIfAbsent(budget, BufferPool::new);
+    }
+
+    /**
+     * Returns the pools created for each budget by {@link #of(long)}.
+     * @return the budgeted pools
+     */
+    public static Collection<BufferPool> budgeted() {
+        return Collections.unmodifiableCollection(budgeted.values());
+    }
+
+    private final long budget;
+    private long admitted;
+    private long used;
+    private long pooled;
+    private long peak;
+    private long waits;
+    private int waiting;
+    private final TreeMap<Integer,ArrayDeque<byte[]>> free;
+    private final Set<byte[]> lent;
+
+    /**
+     * Creates a pool with the given budget.
+     * @param budget the budget in bytes, {@code 0} for no pooling
+     */
+    public BufferPool(long budget) {
+        this.budget = budget;
+        this.free = new TreeMap<>();
+        this.lent = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Returns the budget.
+     * @return the budget in bytes, {@code 0} for no pooling
+     */
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * Admits a command expected to need up to {@code need} bytes of buffers,
+     * waiting until the commands already admitted leave room for it.  The
+     * command must not hold any buffers while it waits, and must close the
+     * returned admission when it is done.
+     * @param need the estimated buffer memory needed by the command
+     * @return the admission, to be closed when the command is done
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized Admission admit(long need) throws InterruptedIOException {
+        if (budget <= 0) {
+            return new Admission(0);
+        }
+        boolean counted = false;
+        while (admitted > 0 && admitted + need > budget) {
+            if (!counted) {
+                waits++;
+                counted = true;
+            }
+            waiting++;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for "+need+" bytes of buffer memory");
+            } finally {
+                waiting--;
+            }
+        }
+        admitted += need;
+        return new Admission(need);
+    }
+
+    /**
+     * The admission of a command, releasing its share of the budget to the
+     * commands waiting when closed.
+     */
+    public class Admission implements AutoCloseable {
+        private long need;
+
+        private Admission(long need) {
+            this.need = need;
+        }
+
+        @Override
+        public void close() {
+            synchronized (BufferPool.this) {
+                admitted -= need;
+                need = 0;
+                BufferPool.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer of at least {@code size} bytes.  This never waits:
+     * the budget is enforced when commands are {@link #admit(long) admitted}.
+     * The buffer may contain stale data.
+     * @param size the minimum size
+     * @return a buffer, to be returned with {@link #release(byte[])}
+     */
+    public byte[] acquire(int size) {
+        int capacity = capacity(size);
+        synchronized (this) {
+            if (budget <= 0) {
+                return new byte[size];
+            }
+            ArrayDeque<byte[]> idle = free.get(capacity);
+            if (idle != null) {
+                byte[] buffer = idle.pop();
+                if (idle.isEmpty()) {
+                    free.remove(capacity);
+                }
+                pooled -= capacity;
+                return lend(buffer);
+            }
+            evict(capacity);
+            return lend(new byte[capacity]);
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool.  Buffers that were not acquired from
+     * the pool (or were already released) are ignored.
+     * @param buffer the buffer to release, may be {@code null}
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (!lent.remove(buffer)) {
+            return;
+        }
+        used -= buffer.length;
+        if (used + pooled + buffer.length <= budget) {
+            free.computeIfAbsent(buffer.length, (k) -> new ArrayDeque<>()).push(buffer);
+            pooled += buffer.length;
+        }
+    }
+
+    private byte[] lend(byte[] buffer) {
+        lent.add(buffer);
+        used += buffer.length;
+        peak = Math.max(peak, used);
+        return buffer;
+    }
+
+    /**
+     * Drops idle buffers, largest first, until {@code needed} more bytes fit.
+     * @param needed the bytes about to be allocated
+     */
+    private void evict(long needed) {
+        while (pooled > 0 && used + pooled + needed > budget) {
+            Map.Entry<Integer,ArrayDeque<byte[]>> largest = free.lastEntry();
+            largest.getValue().pop();
+            pooled -= largest.getKey();
+            if (largest.getValue().isEmpty()) {
+                free.remove(largest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Rounds {@code size} up to its size class.
+     * @param size the requested size
+     * @return the size class
+     */
+    private static int capacity(int size) {
+        if (size <= MIN_BUFFER) {
+            return MIN_BUFFER;
+        } else if (size > (1 << 30)) {
+            return size;
+        }
+        return Integer.highestOneBit(size-1) << 1;
+    }
+
+    /**
+     * Describes the pool occupancy, e.g. for a debug log.
+     * @return a description of the pool
+     */
+    public synchronized String describe() {
+        return String.format("bufferBudget=%d bufferAdmitted=%d bufferUsed=%d bufferPooled=%d bufferPeak=%d bufferWaits=%d bufferWaiting=%d",
+                budget, admitted, used, pooled, peak, waits, waiting);
+    }
+}
@@ -0,0 +1,79 @@
+package com.cleo.labs.connector.router;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A zero-copy {@link CharSequence} view over a {@code byte[]}, mapping
+ * each byte to the character with the same (unsigned) value.  This is
+ * exactly ISO-8859-1 (Latin-1) decoding, but avoids allocating and
+ * decoding a {@code String} the size of the buffer.  As a US-ASCII view,
+ * bytes beyond {@code 0x7f} are instead mapped to {@code U+FFFD}, as
+ * US-ASCII decoding would.
+ */
+public class ByteCharSequence implements CharSequence {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final boolean ascii;
+
+    /**
+     * Creates a view over {@code length} bytes of {@code bytes}
+     * starting at {@code offset}.
+     * @param bytes the underlying bytes (not copied)
+     * @param offset the offset of the first character
+     * @param length the number of characters
+     * @param ascii {@code true} for a US-ASCII view, {@code false} for ISO-8859-1
+     */
+    public ByteCharSequence(byte[] bytes, int offset, int length, boolean ascii) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.ascii = ascii;
+    }
+
+    /**
+     * Creates an ISO-8859-1 view over {@code length} bytes of {@code bytes}
+     * starting at {@code offset}.
+     * @param bytes the underlying bytes (not copied)
+     * @param offset the offset of the first character
+     * @param length the number of characters
+     */
+    public ByteCharSequence(byte[] bytes, int offset, int length) {
+        this(bytes, offset, length, false);
+    }
+
+    /**
+     * Creates an ISO-8859-1 view over all of {@code bytes}.
+     * @param bytes the underlying bytes (not copied)
+     */
+    public ByteCharSequence(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        int b = bytes[offset+index] & 0xff;
+        return ascii && b > 0x7f ? '\ufffd' : (char) b;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(String.format("[%d,%d)", start, end));
+        }
+        return new ByteCharSequence(bytes, offset+start, end-start, ascii);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, ascii ? StandardCharsets.US_ASCII : StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,128 @@
+package com.cleo.labs.connector.router;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that batches small writes into chunks of a fixed
+ * size before passing them on, so that the destinations (and each queue of a
+ * {@link ParallelOutputStream} fan-out) see a few large writes rather than
+ * many small ones.  Writes at least as large as the chunk size that arrive
+ * with nothing buffered are passed on directly.
+ * <p/>
+ * Since each stream carries one routed interchange, {@link #flush()} is
+ * ignored: the buffered bytes are passed on and flushed only when the stream
+ * is {@link #close() closed}, at the end of the interchange.
+ * <p/>
+ * The chunk buffer is taken from a {@link BufferPool} and returned to it
+ * when the stream is closed.
+ */
+public class CoalescingOutputStream extends FilterOutputStream {
+
+    private final BufferPool pool;
+    private final int size;
+    private byte[] buf;
+    private int count;
+    private boolean closed;
+
+    /**
+     * Creates a coalescing stream with chunks of {@code size} bytes.
+     * @param out the stream to write the chunks to
+     * @param size the chunk size
+     */
+    public CoalescingOutputStream(OutputStream out, int size) {
+        this(out, size, BufferPool.shared());
+    }
+
+    /**
+     * Creates a coalescing stream with chunks of {@code size} bytes
+     * buffered in {@code pool}.
+     * @param out the stream to write the chunks to
+     * @param size the chunk size
+     * @param pool the pool to take the buffer from
+     */
+    public CoalescingOutputStream(OutputStream out, int size, BufferPool pool) {
+        super(out);
+        this.pool = pool;
+        this.size = size;
+        this.buf = null;
+        this.count = 0;
+        this.closed = false;
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buf == null) {
+            buf = pool.acquire(size);
+        } else if (count >= size) {
+            drain();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (count == 0 && len >= size) {
+            out.write(b, off, len);
+            return;
+        }
+        if (buf == null) {
+            buf = pool.acquire(size);
+        }
+        while (len > 0) {
+            int chunk = Math.min(len, size-count);
+            System.arraycopy(b, off, buf, count, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+            if (count >= size) {
+                drain();
+                if (len >= size) {
+                    out.write(b, off, len);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ignored: the buffered bytes are passed on when the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        // only at the interchange boundary, which is close()
+    }
+
+    /**
+     * Passes on the buffered bytes, flushes and closes the underlying
+     * stream, and returns the buffer to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+            out.flush();
+        } finally {
+            pool.release(buf);
+            buf = null;
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.cleo.labs.connector.router;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.google.common.base.Strings;
+
+/**
+ * A prefilter for {@code Content} routes.  When a routing table is compiled,
+ * the literal strings that every match of each {@code Content} pattern must
+ * contain are extracted (see {@link #literals(String)}), and all of them are
+ * loaded into a single {@link AhoCorasick} automaton.  Each preview is then
+ * scanned once, and the full regular expression is evaluated only for the
+ * patterns whose literals all appear in the preview.
+ * <p/>
+ * Literal extraction is conservative: a pattern from which no literal can be
+ * safely extracted is always a candidate and is simply matched as before.
+ */
+public class ContentPrefilter {
+
+    /**
+     * Literals shorter than this are too common to be worth filtering on.
+     */
+    public static final int MIN_LITERAL = 3;
+
+    private final AhoCorasick automaton;
+    private final Map<String,int[]> required;
+
+    /**
+     * Builds the prefilter for the {@code Content} patterns in {@code routes},
+     * returning {@code null} if no pattern has any usable literal.
+     * @param routes the routes in the table
+     * @return the prefilter, or {@code null}
+     */
+    public static ContentPrefilter of(Route[] routes) {
+        Map<String,Integer> keywords = new LinkedHashMap<>();
+        Map<String,int[]> required = new HashMap<>();
+        for (Route route : routes) {
+            if (Strings.isNullOrEmpty(route.content())) {
+                continue;
+            }
+            Pattern pattern;
+            try {
+                pattern = RoutableContent.compile(route.content()).pattern();
+            } catch (PatternSyntaxException e) {
+                continue; // reported when the route is matched
+            }
+            if (pattern == null || required.containsKey(pattern.pattern())) {
+                continue;
+            }
+            List<String> literals = literals(pattern.pattern());
+            if (!literals.isEmpty()) {
+                int[] ids = new int[literals.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    String literal = literals.get(i);
+                    Integer id = keywords.get(literal);
+                    if (id == null) {
+                        id = keywords.size();
+                        keywords.put(literal, id);
+                    }
+                    ids[i] = id;
+                }
+                required.put(pattern.pattern(), ids);
+            }
+        }
+        return required.isEmpty() ? null : new ContentPrefilter(new ArrayList<>(keywords.keySet()), required);
+    }
+
+    private ContentPrefilter(List<String> keywords, Map<String,int[]> required) {
+        this.automaton = new AhoCorasick(keywords);
+        this.required = required;
+    }
+
+    /**
+     * Returns {@code true} if the prefilter has literals for {@code pattern},
+     * meaning {@link #candidate(Pattern, BitSet)} could rule it out.
+     * @param pattern the compiled {@code Content} pattern
+     * @return {@code true} if the pattern is filtered
+     */
+    public boolean filters(Pattern pattern) {
+        return required.containsKey(pattern.pattern());
+    }
+
+    /**
+     * Scans {@code text} once for all literals of all patterns.
+     * @param text the decoded preview
+     * @return the set of literals found, to pass to {@link #candidate(Pattern, BitSet)}
+     */
+    public BitSet scan(CharSequence text) {
+        return automaton.scan(text);
+    }
+
+    /**
+     * Returns {@code true} if {@code pattern} might match the scanned text,
+     * i.e. all its required literals were found (or it has none).
+     * @param pattern the compiled {@code Content} pattern
+     * @param found the results of {@link #scan(CharSequence)}
+     * @return {@code false} only if {@code pattern} can not match
+     */
+    public boolean candidate(Pattern pattern, BitSet found) {
+        int[] ids = required.get(pattern.pattern());
+        if (ids != null) {
+            for (int id : ids) {
+                if (!found.get(id)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Extracts literal strings of at least {@link #MIN_LITERAL} characters
+     * that must appear in any text matched by {@code regex}.  Only the parts
+     * of the pattern that are mandatory contribute: anything inside an
+     * alternation, a lookaround, or under a quantifier that allows zero
+     * repetitions is ignored.  Patterns using inline flags that change the
+     * meaning of literal characters (e.g. {@code (?i)} or {@code (?x)}) yield
+     * no literals.
+     * @param regex the regular expression
+     * @return the (possibly empty) list of required literals
+     */
+    public static List<String> literals(String regex) {
+        List<String> result = new ArrayList<>();
+        try {
+            Parser parser = new Parser(regex);
+            List<String> literals = parser.alternation();
+            if (parser.i == regex.length()) {
+                for (String literal : literals) {
+                    if (literal.length() >= MIN_LITERAL && !result.contains(literal)) {
+                        result.add(literal);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // unsupported construct -- no literals
+        }
+        return result;
+    }
+
+    /**
+     * A small recursive descent parser over {@link Pattern} syntax that
+     * tracks required literal runs.  Anything it does not understand
+     * throws {@link IllegalArgumentException}, which disables filtering
+     * for the pattern.
+     */
+    private static class Parser {
+        private final String p;
+        private int i;
+
+        private Parser(String p) {
+            this.p = p;
+            this.i = 0;
+        }
+
+        private boolean more() {
+            return i < p.length();
+        }
+
+        private char peek() {
+            return p.charAt(i);
+        }
+
+        private IllegalArgumentException unsupported() {
+            return new IllegalArgumentException("unsupported construct at "+i);
+        }
+
+        /**
+         * Parses alternatives up to a closing {@code )} or the end.  If there
+         * is more than one alternative, nothing is required.
+         * @return the required literals
+         */
+        private List<String> alternation() {
+            List<String> literals = sequence();
+            boolean alternatives = false;
+            while (more() && peek() == '|') {
+                i++;
+                sequence();
+                alternatives = true;
+            }
+            return alternatives ? new ArrayList<>() : literals;
+        }
+
+        /**
+         * Parses a sequence of quantified atoms up to {@code |}, {@code )} or the end.
+         * @return the required literals
+         */
+        private List<String> sequence() {
+            List<String> literals = new ArrayList<>();
+            StringBuilder run = new StringBuilder();
+            while (more() && peek() != '|' && peek() != ')') {
+                char c = peek();
+                Character literal = null;    // set if the atom is a single literal character
+                String quoted = null;        // set if the atom is a \Q...\E quotation
+                List<String> group = null;   // set if the atom is a group
+                boolean zeroWidth = false;   // set if the atom is an anchor or lookaround
+                if (c == '\\') {
+                    i++;
+                    if (!more()) {
+                        throw unsupported();
+                    }
+                    char e = peek();
+                    i++;
+                    switch (e) {
+                    case 't': literal = '\t'; break;
+                    case 'n': literal = '\n'; break;
+                    case 'r': literal = '\r'; break;
+                    case 'f': literal = '\f'; break;
+                    case 'a': literal = '\u0007'; break;
+                    case 'e': literal = '\u001b'; break;
+                    case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+                        zeroWidth = true;
+                        break;
+                    case 'd': case 'D': case 's': case 'S': case 'w': case 'W':
+                    case 'h': case 'H': case 'v': case 'V': case 'R': case 'X':
+                        break;
+                    case 'p': case 'P':
+                        if (more() && peek() == '{') {
+                            skipPast('}');
+                        } else {
+                            i++;
+                        }
+                        break;
+                    case 'Q':
+                        int end = p.indexOf("\\E", i);
+                        if (end < 0) {
+                            end = p.length();
+                        }
+                        quoted = p.substring(i, end);
+                        i = Math.min(p.length(), end+2);
+                        break;
+                    default:
+                        if (Character.isLetterOrDigit(e)) {
+                            throw unsupported(); // octal, hex, unicode, control, backreferences...
+                        }
+                        literal = e;
+                    }
+                } else if (c == '[') {
+                    skipClass();
+                } else if (c == '(') {
+                    i++;
+                    if (more() && peek() == '?') {
+                        i++;
+                        if (!more()) {
+                            throw unsupported();
+                        }
+                        char g = peek();
+                        if (g == ':' || g == '>') {
+                            i++;
+                            group = alternation();
+                        } else if (g == '=' || g == '!') {
+                            i++;
+                            alternation();
+                            zeroWidth = true;
+                        } else if (g == '<') {
+                            i++;
+                            if (more() && (peek() == '=' || peek() == '!')) {
+                                i++;
+                                alternation();
+                                zeroWidth = true;
+                            } else {
+                                skipPast('>');
+                                group = alternation();
+                            }
+                        } else {
+                            // inline flags (?flags) or (?flags:...)
+                            int start = i;
+                            while (more() && peek() != ')' && peek() != ':') {
+                                i++;
+                            }
+                            String flags = p.substring(start, i);
+                            if (!flags.matches("[-dms]*")) {
+                                throw unsupported();
+                            }
+                            if (more() && peek() == ':') {
+                                i++;
+                                group = alternation();
+                            } else {
+                                zeroWidth = true;
+                            }
+                        }
+                    } else {
+                        group = alternation();
+                    }
+                    if (!more() || peek() != ')') {
+                        throw unsupported();
+                    }
+                    i++;
+                } else if (c == '^' || c == '$') {
+                    i++;
+                    zeroWidth = true;
+                } else if (c == '.') {
+                    i++;
+                } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+                    throw unsupported(); // dangling quantifier
+                } else {
+                    i++;
+                    literal = c;
+                }
+                int min = quantifier();
+                if (zeroWidth) {
+                    if (min < 0) {
+                        continue; // anchors do not break a run
+                    }
+                    flush(run, literals);
+                } else if (quoted != null) {
+                    if (min < 0 || quoted.isEmpty()) {
+                        run.append(quoted);
+                    } else {
+                        run.append(quoted, 0, quoted.length()-1);
+                        flush(run, literals);
+                        if (min > 0) {
+                            literals.add(quoted.substring(quoted.length()-1));
+                        }
+                    }
+                } else if (literal != null) {
+                    if (min < 0) {
+                        run.append(literal.charValue());
+                    } else {
+                        if (min > 0) {
+                            run.append(literal.charValue());
+                        }
+                        flush(run, literals);
+                    }
+                } else if (group != null) {
+                    flush(run, literals);
+                    if (min != 0) {
+                        literals.addAll(group);
+                    }
+                } else {
+                    flush(run, literals);
+                }
+            }
+            flush(run, literals);
+            return literals;
+        }
+
+        private static void flush(StringBuilder run, List<String> literals) {
+            if (run.length() > 0) {
+                literals.add(run.toString());
+                run.setLength(0);
+            }
+        }
+
+        /**
+         * Parses an optional quantifier (including a lazy {@code ?} or
+         * possessive {@code +} suffix).
+         * @return the minimum repetitions, or {@code -1} if there is no quantifier
+         */
+        private int quantifier() {
+            if (!more()) {
+                return -1;
+            }
+            int min;
+            char c = peek();
+            if (c == '?' || c == '*') {
+                i++;
+                min = 0;
+            } else if (c == '+') {
+                i++;
+                min = 1;
+            } else if (c == '{') {
+                int close = p.indexOf('}', i);
+                if (close < 0) {
+                    throw unsupported();
+                }
+                String bounds = p.substring(i+1, close);
+                if (!bounds.matches("\\d+(?:,\\d*)?")) {
+                    throw unsupported();
+                }
+                min = Integer.parseInt(bounds.replaceFirst(",.*", ""));
+                i = close+1;
+            } else {
+                return -1;
+            }
+            if (more() && (peek() == '?' || peek() == '+')) {
+                i++;
+            }
+            return min;
+        }
+
+        private void skipPast(char close) {
+            int end = p.indexOf(close, i);
+            if (end < 0) {
+                throw unsupported();
+            }
+            i = end+1;
+        }
+
+        /**
+         * Skips a (possibly nested) character class starting at {@code [}.
+         */
+        private void skipClass() {
+            int depth = 0;
+            while (more()) {
+                char c = peek();
+                i++;
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    depth++;
+                    if (more() && peek() == '^') {
+                        i++;
+                    }
+                    if (more() && peek() == ']') {
+                        i++; // leading ] is a literal
+                    }
+                } else if (c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw unsupported();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.cleo.labs.connector.router;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compiles the {@code format} of {@code date('format')} destination tokens
+ * into thread-safe {@link DateTimeFormatter DateTimeFormatters}, cached by
+ * pattern so that each pattern is parsed only once.
+ * <p/>
+ * Patterns keep their {@link java.text.SimpleDateFormat} meaning: the
+ * letters that {@code DateTimeFormatter} interprets differently (like
+ * {@code u}, {@code S} and {@code F}) are translated, and the characters that
+ * {@code DateTimeFormatter} reserves ({@code [ ] { } #}) are literals.
+ * Letters that only {@code DateTimeFormatter} knows, like {@code Q} for the
+ * quarter, may be used as well.  In addition, the names of the predefined
+ * ISO formats are accepted as patterns, e.g. {@code ISO_WEEK_DATE}
+ * ({@code 2017-W23-4}) or {@code ISO_ORDINAL_DATE} ({@code 2017-158}).
+ */
+public class DateFormats {
+
+    private DateFormats() {
+    }
+
+    /**
+     * The predefined formats, by name.
+     */
+    private static final Map<String,DateTimeFormatter> NAMED = ImmutableMap.<String,DateTimeFormatter>builder()
+            .put("BASIC_ISO_DATE", DateTimeFormatter.BASIC_ISO_DATE)
+            .put("ISO_LOCAL_DATE", DateTimeFormatter.ISO_LOCAL_DATE)
+            .put("ISO_LOCAL_TIME", DateTimeFormatter.ISO_LOCAL_TIME)
+            .put("ISO_LOCAL_DATE_TIME", DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+            .put("ISO_OFFSET_DATE_TIME", DateTimeFormatter.ISO_OFFSET_DATE_TIME)
+            .put("ISO_INSTANT", DateTimeFormatter.ISO_INSTANT)
+            .put("ISO_WEEK_DATE", DateTimeFormatter.ISO_WEEK_DATE)
+            .put("ISO_ORDINAL_DATE", DateTimeFormatter.ISO_ORDINAL_DATE)
+            .build();
+
+    /**
+     * The numeric pattern letters, with their {@link java.text.SimpleDateFormat}
+     * meaning.
+     */
+    private static final Map<Character,ChronoField> NUMBERS = ImmutableMap.<Character,ChronoField>builder()
+            .put('d', ChronoField.DAY_OF_MONTH)
+            .put('D', ChronoField.DAY_OF_YEAR)
+            .put('F', ChronoField.ALIGNED_WEEK_OF_MONTH) // day of week in month
+            .put('u', ChronoField.DAY_OF_WEEK) // 1 = Monday
+            .put('H', ChronoField.HOUR_OF_DAY)
+            .put('k', ChronoField.CLOCK_HOUR_OF_DAY)
+            .put('K', ChronoField.HOUR_OF_AMPM)
+            .put('h', ChronoField.CLOCK_HOUR_OF_AMPM)
+            .put('m', ChronoField.MINUTE_OF_HOUR)
+            .put('s', ChronoField.SECOND_OF_MINUTE)
+            .put('S', ChronoField.MILLI_OF_SECOND) // not a fraction of a second
+            .build();
+
+    private static final Map<String,DateTimeFormatter> cache = new ConcurrentHashMap<>();
+    private static final int CACHE_SIZE = 1000;
+
+    /**
+     * Returns the formatter for {@code pattern}, compiling it only the first
+     * time it is seen.
+     * @param pattern a {@link java.text.SimpleDateFormat} pattern or the name
+     *        of a predefined ISO format
+     * @return the formatter
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public static DateTimeFormatter compile(String pattern) {
+        DateTimeFormatter result = cache.get(pattern);
+        if (result == null) {
+            result = NAMED.get(pattern);
+            if (result == null) {
+                result = translate(pattern);
+            }
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            cache.put(pattern, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time zone with the given id, or the default time zone
+     * if {@code zone} is {@code null} or empty.
+     * @param zone the zone id, e.g. {@code UTC} or {@code America/Chicago}
+     * @return the time zone
+     * @throws java.time.DateTimeException if the zone is invalid
+     */
+    public static ZoneId zone(String zone) {
+        return zone == null || zone.isEmpty() ? ZoneId.systemDefault() : ZoneId.of(zone);
+    }
+
+    /**
+     * Translates a {@link java.text.SimpleDateFormat} pattern into a
+     * {@link DateTimeFormatter} with the same output.
+     * @param pattern the pattern
+     * @return the formatter
+     */
+    private static DateTimeFormatter translate(String pattern) {
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                int end = pattern.indexOf('\'', i+1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated quote in date pattern: "+pattern);
+                } else if (end == i+1) {
+                    literal.append('\''); // '' is a quote
+                } else {
+                    literal.append(pattern, i+1, end);
+                }
+                i = end+1;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                int end = i;
+                while (end < pattern.length() && pattern.charAt(end) == c) {
+                    end++;
+                }
+                int count = end-i;
+                if (literal.length() > 0) {
+                    builder.appendLiteral(literal.toString());
+                    literal.setLength(0);
+                }
+                ChronoField number = NUMBERS.get(c);
+                if (number != null) {
+                    // SimpleDateFormat pads numbers to any width
+                    builder.appendValue(number, count, Math.max(count, 19), SignStyle.NORMAL);
+                } else if (c == 'a' || c == 'Z') {
+                    // SimpleDateFormat ignores the count
+                    builder.appendPattern(String.valueOf(c));
+                } else {
+                    builder.appendPattern(pattern.substring(i, end));
+                }
+                i = end;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.length() > 0) {
+            builder.appendLiteral(literal.toString());
+        }
+        return builder.toFormatter();
+    }
+}
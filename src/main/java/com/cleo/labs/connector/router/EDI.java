@@ -1,8 +1,8 @@
 package com.cleo.labs.connector.router;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 /**
  * Parses an EDI file or stream (X12, EDIFACT, and TRADACOMS) into individual
@@ -26,7 +26,8 @@ public class EDI {
     private static final int BUFFER_SIZE = 4096;
 
     InputStream in;
-    byte[] bytes = new byte[BUFFER_SIZE]; // data byte buffer
+    BufferPool pool;
+    byte[] bytes; // data byte buffer
     int len = 0; // current length of data bytes
     int index = 0; // current index into data bytes
     boolean eof = false;
@@ -51,7 +52,25 @@ public class EDI {
      *            the EDI input stream
      */
     public EDI(InputStream in) throws IOException {
-        this.in = new BufferedInputStream(in, BUFFER_SIZE);
+        this(in, BufferPool.shared());
+    }
+
+    /**
+     * Constructs EDI parser for an input stream, taking its buffer from
+     * {@code pool}.  The buffer is returned when the end of the stream
+     * is reached or the parser is closed.  The buffer is filled in large
+     * reads, so {@code in} need not be buffered.
+     * 
+     * @param in
+     *            the EDI input stream
+     * @param pool
+     *            the {@link BufferPool} for the data buffer
+     */
+    public EDI(InputStream in, BufferPool pool) throws IOException {
+        this.in = in;
+        this.pool = pool;
+        this.bytes = pool.acquire(BUFFER_SIZE);
+        Arrays.fill(this.bytes, (byte) 0); // detection looks past the data read
         detect();
     }
 
@@ -259,8 +278,10 @@ public class EDI {
         /*------------------------------------------------------------------------------
          *  If we're at end-of-file and have already emptied our buffer
          *----------------------------------------------------------------------------*/
-        if (this.eof && this.index == -1)
+        if (this.eof && this.index == -1) {
+            pool.release(this.bytes);
             return null;
+        }
 
         /*------------------------------------------------------------------------------
          *  If we're at the end of our buffer, then go ahead and read more
@@ -484,6 +505,7 @@ public class EDI {
      * Closes the EDI input stream
      */
     public void close() throws IOException {
+        pool.release(this.bytes);
         in.close();
     }
 }
@@ -0,0 +1,644 @@
+package com.cleo.labs.connector.router;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Strings;
+
+/**
+ * A destination expression (the {@code expression} in {@code ${expression}})
+ * compiled from a small JavaScript-like language into a tree of Java lambdas,
+ * so that it can be evaluated without a script engine.  The language covers:
+ * <ul><li>string literals in {@code '...'} or {@code "..."} and numbers</li>
+ *     <li>the macro tokens ({@code file}, {@code sender}, {@code counter}, ...)</li>
+ *     <li>{@code date('format')}, {@code date('format','zone')}, {@code String(x)}, {@code Number(x)} and {@code parseInt(x)}</li>
+ *     <li>{@code +} (concatenation or addition), {@code - * / %}, comparisons,
+ *         {@code ! && ||} and the {@code ?:} ternary</li>
+ *     <li>{@code .length}, {@code [index]} and the string methods {@code substring},
+ *         {@code substr}, {@code slice}, {@code charAt}, {@code indexOf},
+ *         {@code lastIndexOf}, {@code startsWith}, {@code endsWith}, {@code includes},
+ *         {@code replace}, {@code toUpperCase}, {@code toLowerCase}, {@code trim},
+ *         {@code padStart}, {@code padEnd} and {@code toString}</li></ul>
+ * with JavaScript semantics.  Anything else is rejected with an
+ * {@link IllegalArgumentException} when compiling, so that the caller can
+ * fall back to JavaScript if it is enabled.
+ */
+public class Expression {
+
+    /**
+     * What an {@code Expression} needs to be evaluated.
+     */
+    public interface Context {
+        /**
+         * Returns the value of a macro token.
+         * @param name the token name
+         * @return the value, never {@code null}
+         */
+        public String token(String name);
+        /**
+         * Formats the current time.
+         * @param format the {@link java.text.SimpleDateFormat} pattern
+         * @param zone the time zone, or {@code null} for the default
+         * @return the formatted time
+         */
+        public String date(String format, String zone);
+    }
+
+    /**
+     * A compiled node: evaluates to a {@code String}, {@code Double} or
+     * {@code Boolean}.
+     */
+    private interface Node {
+        public Object eval(Context context);
+    }
+
+    private static final Map<String,Expression> cache = new ConcurrentHashMap<>();
+    private static final int CACHE_SIZE = 1000;
+
+    /**
+     * Returns the compiled form of {@code source}, compiling it only the
+     * first time it is seen.
+     * @param source the expression
+     * @param tokens the names of the macro tokens
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is not in the language
+     */
+    public static Expression compile(String source, Set<String> tokens) {
+        Expression result = cache.get(source);
+        if (result == null) {
+            try {
+                result = new Expression(source, tokens);
+            } catch (IllegalArgumentException e) {
+                result = new Expression(source, e); // remember the rejection too
+            }
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            cache.put(source, result);
+        }
+        if (result.rejected != null) {
+            throw result.rejected;
+        }
+        return result;
+    }
+
+    private final String source;
+    private final Set<String> tokens;
+    private final Set<String> references;
+    private final IllegalArgumentException rejected;
+    private List<String> lexemes;
+    private int position;
+    private final Node root;
+
+    private Expression(String source, Set<String> tokens) {
+        this.source = source;
+        this.tokens = tokens;
+        this.references = new HashSet<>();
+        this.rejected = null;
+        this.lexemes = lex(source);
+        this.position = 0;
+        this.root = expression();
+        if (position < lexemes.size()) {
+            throw error("unexpected '"+lexemes.get(position)+"'");
+        }
+        this.lexemes = null; // only needed while parsing
+    }
+
+    private Expression(String source, IllegalArgumentException rejected) {
+        this.source = source;
+        this.tokens = null;
+        this.references = null;
+        this.rejected = rejected;
+        this.root = null;
+    }
+
+    /**
+     * Evaluates the expression.
+     * @param context the token values
+     * @return the result converted to a {@code String}
+     */
+    public String evaluate(Context context) {
+        return string(root.eval(context));
+    }
+
+    /**
+     * Returns the names of the macro tokens the expression refers to.
+     * @return the referenced token names
+     */
+    public Set<String> references() {
+        return Collections.unmodifiableSet(references);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /*------------------------------------------------------------------------
+     * lexer: numbers, 'strings' and "strings" (kept quoted), names, operators
+     *----------------------------------------------------------------------*/
+
+    private static final String[] OPERATORS = {"===", "!==", "==", "!=", "<=", ">=", "&&", "||",
+            "(", ")", "[", "]", ",", ".", "?", ":", "+", "-", "*", "/", "%", "!", "<", ">"};
+
+    private List<String> lex(String s) {
+        List<String> result = new ArrayList<>();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                StringBuilder sb = new StringBuilder().append('\'');
+                int j = i+1;
+                while (j < s.length() && s.charAt(j) != c) {
+                    char x = s.charAt(j++);
+                    if (x == '\\' && j < s.length()) {
+                        x = s.charAt(j++);
+                        x = x=='n' ? '\n' : x=='t' ? '\t' : x=='r' ? '\r' : x;
+                    }
+                    sb.append(x);
+                }
+                if (j >= s.length()) {
+                    throw error("unterminated string");
+                }
+                result.add(sb.toString());
+                i = j+1;
+            } else if (Character.isDigit(c)) {
+                int j = i;
+                while (j < s.length() && (Character.isDigit(s.charAt(j)) || s.charAt(j) == '.')) {
+                    j++;
+                }
+                result.add(s.substring(i, j));
+                i = j;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int j = i;
+                while (j < s.length() && Character.isJavaIdentifierPart(s.charAt(j))) {
+                    j++;
+                }
+                result.add(s.substring(i, j));
+                i = j;
+            } else {
+                String operator = null;
+                for (String op : OPERATORS) {
+                    if (s.startsWith(op, i)) {
+                        operator = op;
+                        break;
+                    }
+                }
+                if (operator == null) {
+                    throw error("unexpected '"+c+"'");
+                }
+                result.add(operator);
+                i += operator.length();
+            }
+        }
+        return result;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(String.format("%s in expression %s", message, source));
+    }
+
+    private String peek() {
+        return position < lexemes.size() ? lexemes.get(position) : "";
+    }
+
+    private boolean accept(String lexeme) {
+        if (peek().equals(lexeme)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String lexeme) {
+        if (!accept(lexeme)) {
+            throw error("expected '"+lexeme+"'");
+        }
+    }
+
+    /*------------------------------------------------------------------------
+     * parser: precedence climbing from ?: down to primaries
+     *----------------------------------------------------------------------*/
+
+    private Node expression() {
+        Node condition = or();
+        if (accept("?")) {
+            Node then = expression();
+            expect(":");
+            Node otherwise = expression();
+            return (c) -> truthy(condition.eval(c)) ? then.eval(c) : otherwise.eval(c);
+        }
+        return condition;
+    }
+
+    private Node or() {
+        Node left = and();
+        while (accept("||")) {
+            Node a = left, b = and();
+            left = (c) -> {
+                Object value = a.eval(c);
+                return truthy(value) ? value : b.eval(c);
+            };
+        }
+        return left;
+    }
+
+    private Node and() {
+        Node left = equality();
+        while (accept("&&")) {
+            Node a = left, b = equality();
+            left = (c) -> {
+                Object value = a.eval(c);
+                return truthy(value) ? b.eval(c) : value;
+            };
+        }
+        return left;
+    }
+
+    private Node equality() {
+        Node left = relational();
+        while (true) {
+            Node a = left;
+            if (accept("===")) {
+                Node b = relational();
+                left = (c) -> strictEquals(a.eval(c), b.eval(c));
+            } else if (accept("!==")) {
+                Node b = relational();
+                left = (c) -> !strictEquals(a.eval(c), b.eval(c));
+            } else if (accept("==")) {
+                Node b = relational();
+                left = (c) -> looseEquals(a.eval(c), b.eval(c));
+            } else if (accept("!=")) {
+                Node b = relational();
+                left = (c) -> !looseEquals(a.eval(c), b.eval(c));
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Node relational() {
+        Node left = additive();
+        while (true) {
+            Node a = left;
+            if (accept("<=")) {
+                Node b = additive();
+                left = (c) -> compare(a.eval(c), b.eval(c)) <= 0;
+            } else if (accept(">=")) {
+                Node b = additive();
+                left = (c) -> compare(a.eval(c), b.eval(c)) >= 0;
+            } else if (accept("<")) {
+                Node b = additive();
+                left = (c) -> compare(a.eval(c), b.eval(c)) < 0;
+            } else if (accept(">")) {
+                Node b = additive();
+                left = (c) -> compare(a.eval(c), b.eval(c)) > 0;
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Node additive() {
+        Node left = multiplicative();
+        while (true) {
+            Node a = left;
+            if (accept("+")) {
+                Node b = multiplicative();
+                left = (c) -> {
+                    Object x = a.eval(c);
+                    Object y = b.eval(c);
+                    if (x instanceof String || y instanceof String) {
+                        return string(x) + string(y);
+                    }
+                    return number(x) + number(y);
+                };
+            } else if (accept("-")) {
+                Node b = multiplicative();
+                left = (c) -> number(a.eval(c)) - number(b.eval(c));
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Node multiplicative() {
+        Node left = unary();
+        while (true) {
+            Node a = left;
+            if (accept("*")) {
+                Node b = unary();
+                left = (c) -> number(a.eval(c)) * number(b.eval(c));
+            } else if (accept("/")) {
+                Node b = unary();
+                left = (c) -> number(a.eval(c)) / number(b.eval(c));
+            } else if (accept("%")) {
+                Node b = unary();
+                left = (c) -> number(a.eval(c)) % number(b.eval(c));
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Node unary() {
+        if (accept("!")) {
+            Node a = unary();
+            return (c) -> !truthy(a.eval(c));
+        } else if (accept("-")) {
+            Node a = unary();
+            return (c) -> -number(a.eval(c));
+        } else if (accept("+")) {
+            Node a = unary();
+            return (c) -> number(a.eval(c));
+        }
+        return postfix(primary());
+    }
+
+    private Node postfix(Node node) {
+        while (true) {
+            Node target = node;
+            if (accept("[")) {
+                Node index = expression();
+                expect("]");
+                node = (c) -> {
+                    String s = string(target.eval(c));
+                    double i = number(index.eval(c));
+                    return i >= 0 && i < s.length() && i == Math.floor(i) ? String.valueOf(s.charAt((int) i)) : "";
+                };
+            } else if (accept(".")) {
+                String name = peek();
+                if (!Character.isJavaIdentifierStart(name.isEmpty() ? ' ' : name.charAt(0))) {
+                    throw error("expected a method name");
+                }
+                position++;
+                if (name.equals("length") && !peek().equals("(")) {
+                    node = (c) -> (double) string(target.eval(c)).length();
+                } else {
+                    node = method(target, name, arguments());
+                }
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private Node[] arguments() {
+        expect("(");
+        List<Node> args = new ArrayList<>();
+        if (!accept(")")) {
+            do {
+                args.add(expression());
+            } while (accept(","));
+            expect(")");
+        }
+        return args.toArray(new Node[args.size()]);
+    }
+
+    private Node primary() {
+        String lexeme = peek();
+        if (lexeme.isEmpty()) {
+            throw error("unexpected end");
+        }
+        position++;
+        char first = lexeme.charAt(0);
+        if (first == '\'') {
+            String value = lexeme.substring(1);
+            return (c) -> value;
+        } else if (Character.isDigit(first)) {
+            try {
+                Double value = Double.valueOf(lexeme);
+                return (c) -> value;
+            } catch (NumberFormatException e) {
+                throw error("bad number '"+lexeme+"'");
+            }
+        } else if (lexeme.equals("(")) {
+            Node node = expression();
+            expect(")");
+            return node;
+        } else if (lexeme.equals("true") || lexeme.equals("false")) {
+            Boolean value = Boolean.valueOf(lexeme);
+            return (c) -> value;
+        } else if (peek().equals("(")) {
+            return function(lexeme, arguments());
+        } else if (tokens.contains(lexeme)) {
+            references.add(lexeme);
+            return (c) -> c.token(lexeme);
+        }
+        throw error("unknown name '"+lexeme+"'");
+    }
+
+    private Node function(String name, Node[] args) {
+        switch (name) {
+        case "date":
+            arity(name, args, 1, 2);
+            if (args.length == 1) {
+                return (c) -> c.date(string(args[0].eval(c)), null);
+            }
+            return (c) -> c.date(string(args[0].eval(c)), string(args[1].eval(c)));
+        case "String":
+            arity(name, args, 1, 1);
+            return (c) -> string(args[0].eval(c));
+        case "Number":
+            arity(name, args, 1, 1);
+            return (c) -> number(args[0].eval(c));
+        case "parseInt":
+            arity(name, args, 1, 1);
+            return (c) -> parseInt(string(args[0].eval(c)));
+        default:
+            throw error("unknown function '"+name+"'");
+        }
+    }
+
+    private Node method(Node target, String name, Node[] args) {
+        switch (name) {
+        case "toUpperCase":
+            arity(name, args, 0, 0);
+            return (c) -> string(target.eval(c)).toUpperCase();
+        case "toLowerCase":
+            arity(name, args, 0, 0);
+            return (c) -> string(target.eval(c)).toLowerCase();
+        case "trim":
+            arity(name, args, 0, 0);
+            return (c) -> string(target.eval(c)).trim();
+        case "toString":
+            arity(name, args, 0, 0);
+            return (c) -> string(target.eval(c));
+        case "substring":
+            arity(name, args, 1, 2);
+            return (c) -> {
+                String s = string(target.eval(c));
+                int start = clamp(number(args[0].eval(c)), s.length());
+                int end = args.length > 1 ? clamp(number(args[1].eval(c)), s.length()) : s.length();
+                return s.substring(Math.min(start, end), Math.max(start, end));
+            };
+        case "slice":
+            arity(name, args, 1, 2);
+            return (c) -> {
+                String s = string(target.eval(c));
+                int start = relative(number(args[0].eval(c)), s.length());
+                int end = args.length > 1 ? relative(number(args[1].eval(c)), s.length()) : s.length();
+                return start < end ? s.substring(start, end) : "";
+            };
+        case "substr":
+            arity(name, args, 1, 2);
+            return (c) -> {
+                String s = string(target.eval(c));
+                int start = relative(number(args[0].eval(c)), s.length());
+                int length = args.length > 1 ? clamp(number(args[1].eval(c)), s.length()-start) : s.length()-start;
+                return s.substring(start, start+length);
+            };
+        case "charAt":
+            arity(name, args, 1, 1);
+            return (c) -> {
+                String s = string(target.eval(c));
+                double i = integer(number(args[0].eval(c)));
+                return i >= 0 && i < s.length() ? String.valueOf(s.charAt((int) i)) : "";
+            };
+        case "indexOf":
+            arity(name, args, 1, 1);
+            return (c) -> (double) string(target.eval(c)).indexOf(string(args[0].eval(c)));
+        case "lastIndexOf":
+            arity(name, args, 1, 1);
+            return (c) -> (double) string(target.eval(c)).lastIndexOf(string(args[0].eval(c)));
+        case "startsWith":
+            arity(name, args, 1, 1);
+            return (c) -> string(target.eval(c)).startsWith(string(args[0].eval(c)));
+        case "endsWith":
+            arity(name, args, 1, 1);
+            return (c) -> string(target.eval(c)).endsWith(string(args[0].eval(c)));
+        case "includes":
+            arity(name, args, 1, 1);
+            return (c) -> string(target.eval(c)).contains(string(args[0].eval(c)));
+        case "replace":
+            arity(name, args, 2, 2);
+            return (c) -> {
+                // a string pattern replaces the first occurrence only
+                String s = string(target.eval(c));
+                String from = string(args[0].eval(c));
+                int i = s.indexOf(from);
+                return i < 0 ? s : s.substring(0, i) + string(args[1].eval(c)) + s.substring(i+from.length());
+            };
+        case "padStart":
+        case "padEnd":
+            arity(name, args, 1, 2);
+            boolean start = name.equals("padStart");
+            return (c) -> {
+                String s = string(target.eval(c));
+                int length = (int) Math.min(integer(number(args[0].eval(c))), 1024*1024);
+                String fill = args.length > 1 ? string(args[1].eval(c)) : " ";
+                if (length <= s.length() || fill.isEmpty()) {
+                    return s;
+                }
+                String padding = Strings.repeat(fill, (length-s.length()+fill.length()-1)/fill.length())
+                        .substring(0, length-s.length());
+                return start ? padding + s : s + padding;
+            };
+        default:
+            throw error("unknown method '"+name+"'");
+        }
+    }
+
+    private void arity(String name, Node[] args, int min, int max) {
+        if (args.length < min || args.length > max) {
+            throw error("wrong number of arguments to "+name);
+        }
+    }
+
+    /*------------------------------------------------------------------------
+     * JavaScript conversions
+     *----------------------------------------------------------------------*/
+
+    private static String string(Object value) {
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e21) {
+                return String.valueOf((long) d);
+            } else if (Double.isNaN(d)) {
+                return "NaN";
+            } else if (Double.isInfinite(d)) {
+                return d > 0 ? "Infinity" : "-Infinity";
+            }
+        }
+        return String.valueOf(value);
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        String s = string(value).trim();
+        if (s.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double parseInt(String s) {
+        s = s.trim();
+        int end = 0;
+        if (end < s.length() && (s.charAt(end) == '-' || s.charAt(end) == '+')) {
+            end++;
+        }
+        int digits = end;
+        while (end < s.length() && Character.isDigit(s.charAt(end))) {
+            end++;
+        }
+        return end > digits ? Double.parseDouble(s.substring(0, end)) : Double.NaN;
+    }
+
+    private static boolean truthy(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            return d != 0 && !Double.isNaN(d);
+        }
+        return !string(value).isEmpty();
+    }
+
+    private static boolean strictEquals(Object a, Object b) {
+        return a.getClass() == b.getClass() && (a instanceof Double ? number(a) == number(b) : a.equals(b));
+    }
+
+    private static boolean looseEquals(Object a, Object b) {
+        return a instanceof String && b instanceof String ? a.equals(b) : number(a) == number(b);
+    }
+
+    /**
+     * Compares two values, returning a negative, zero or positive number,
+     * or {@code NaN} (which makes every comparison {@code false}).
+     */
+    private static double compare(Object a, Object b) {
+        if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        return number(a) - number(b);
+    }
+
+    private static double integer(double d) {
+        return Double.isNaN(d) ? 0 : d < 0 ? Math.ceil(d) : Math.floor(d);
+    }
+
+    private static int clamp(double d, int length) {
+        return (int) Math.max(0, Math.min(integer(d), length));
+    }
+
+    private static int relative(double d, int length) {
+        d = integer(d);
+        return clamp(d < 0 ? length + d : d, length);
+    }
+}
@@ -0,0 +1,139 @@
+package com.cleo.labs.connector.router;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.google.common.base.Strings;
+
+/**
+ * Metadata captured from the source filename by named capture groups in the
+ * {@code Filename} pattern of a {@link Route}, for example
+ * {@code (?<sender>[^_]+)_(?<receiver>[^_]+)_(?<type>\d+)_.*} matching
+ * {@code ACME_WALMART_850_000123.xml}.  The supported group names are those
+ * of {@link RoutableContent.ContentMetadata}.
+ * <p/>
+ * A route's metadata columns for captured values are matched against the
+ * filename, so routes that capture everything they match on need no preview.
+ * The remaining columns (and {@code Content}) are matched against the file as
+ * usual, and the captured values take precedence over those parsed from the
+ * file when the {@code Destination} is expanded.
+ */
+public class FilenameMetadata extends Metadata {
+
+    private static final String[] TOKENS = {"sender", "receiver", "groupSender", "groupReceiver", "function", "type", "icn"};
+
+    private static final Pattern NAMED_GROUP = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private static final ConcurrentHashMap<String,Pattern> patterns = new ConcurrentHashMap<>();
+
+    private final Set<String> captured;
+
+    /**
+     * Matches {@code filename} against the {@code Filename} pattern of a
+     * {@link Route}, returning the captured metadata, or {@code null} if the
+     * pattern does not match or captures no metadata.
+     * @param route the {@link Route}
+     * @param filename the source filename
+     * @return the captured metadata, possibly {@code null}
+     */
+    public static FilenameMetadata of(Route route, String filename) {
+        String regex = route.filename();
+        if (filename == null || !captures(regex)) {
+            return null;
+        }
+        Pattern pattern;
+        try {
+            pattern = patterns.computeIfAbsent(regex, Pattern::compile);
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+        Matcher m = pattern.matcher(filename);
+        if (!m.matches()) {
+            return null;
+        }
+        FilenameMetadata result = new FilenameMetadata(m);
+        return result.captured.isEmpty() ? null : result;
+    }
+
+    /**
+     * Returns {@code true} if a {@code Filename} pattern has named capture
+     * groups, so that a route's metadata may come from the filename.
+     * @param regex the {@code Filename} pattern, possibly {@code null}
+     * @return {@code true} if the pattern captures
+     */
+    public static boolean captures(String regex) {
+        return !Strings.isNullOrEmpty(regex) && NAMED_GROUP.matcher(regex).find();
+    }
+
+    private FilenameMetadata(Matcher m) {
+        super(m);
+        Set<String> names = new HashSet<>();
+        for (String token : TOKENS) {
+            try {
+                m.group(token);
+                names.add(token);
+            } catch (IllegalArgumentException e) {
+                // not defined in this pattern
+            }
+        }
+        this.captured = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Returns the names of the metadata tokens defined in the pattern.
+     * @return the captured token names
+     */
+    public Set<String> captured() {
+        return captured;
+    }
+
+    /**
+     * Compares the captured metadata values against their counterpart
+     * patterns in a {@link Route}, ignoring the columns not captured.
+     * @param route the {@link Route} to match against
+     * @return {@code true} if all captured values match
+     */
+    @Override
+    public boolean matches(Route route) {
+        return super.matches(new Route()
+                .sender(captured.contains("sender") ? route.sender() : null)
+                .receiver(captured.contains("receiver") ? route.receiver() : null)
+                .groupSender(captured.contains("groupSender") ? route.groupSender() : null)
+                .groupReceiver(captured.contains("groupReceiver") ? route.groupReceiver() : null)
+                .function(captured.contains("function") ? route.function() : null)
+                .type(captured.contains("type") ? route.type() : null));
+    }
+
+    /**
+     * Returns a copy of {@code route} without the {@code Filename} and the
+     * columns matched by {@link #matches(Route)}, to be matched against the
+     * file content.
+     * @param route the {@link Route}
+     * @return the rest of the route
+     */
+    public Route residual(Route route) {
+        Route result = new Route(route).filename(null);
+        if (captured.contains("sender")) result.sender(null);
+        if (captured.contains("receiver")) result.receiver(null);
+        if (captured.contains("groupSender")) result.groupSender(null);
+        if (captured.contains("groupReceiver")) result.groupReceiver(null);
+        if (captured.contains("function")) result.function(null);
+        if (captured.contains("type")) result.type(null);
+        return result;
+    }
+
+    /**
+     * Returns the metadata parsed from the file with the captured values
+     * merged over it.
+     * @param metadata the metadata parsed from the file, possibly {@code null}
+     * @return the combined metadata
+     */
+    public Metadata overlay(Metadata metadata) {
+        return metadata == null ? this : new Metadata(metadata).merge(this);
+    }
+}
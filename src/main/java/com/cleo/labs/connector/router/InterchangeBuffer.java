@@ -0,0 +1,133 @@
+package com.cleo.labs.connector.router;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * A complete copy of one routed interchange, read ahead of the interchanges
+ * still being written so that the source can be parsed while the
+ * destinations are written.  The content is held in chunks taken from a
+ * {@link BufferPool}, up to a memory limit, and the rest is spooled to a
+ * temporary file.
+ * <p/>
+ * The chunks are returned to the pool, and the spool is deleted, when the
+ * buffer is {@link #close() closed}.
+ */
+public class InterchangeBuffer implements Closeable {
+
+    /**
+     * The size of the chunks taken from the pool.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final BufferPool pool;
+    private final List<byte[]> chunks;
+    private int last;
+    private File spool;
+    private long length;
+
+    /**
+     * Reads {@code in} to its end, keeping up to {@code memory} bytes in
+     * chunks from the shared pool.
+     * @param in the interchange content
+     * @param memory the most bytes to hold in memory
+     * @throws IOException
+     */
+    public InterchangeBuffer(InputStream in, long memory) throws IOException {
+        this(in, memory, BufferPool.shared());
+    }
+
+    /**
+     * Reads {@code in} to its end, keeping up to {@code memory} bytes in
+     * chunks from {@code pool}.
+     * @param in the interchange content
+     * @param memory the most bytes to hold in memory
+     * @param pool the pool to take the chunks from
+     * @throws IOException
+     */
+    public InterchangeBuffer(InputStream in, long memory, BufferPool pool) throws IOException {
+        this.pool = pool;
+        this.chunks = new ArrayList<>();
+        this.last = CHUNK_SIZE;
+        this.spool = null;
+        this.length = 0;
+        try {
+            fill(in, memory);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void fill(InputStream in, long memory) throws IOException {
+        while (true) {
+            if (last == CHUNK_SIZE) {
+                if ((long) chunks.size()*CHUNK_SIZE >= memory) {
+                    spool = File.createTempFile("router-", ".spool");
+                    try (OutputStream out = new FileOutputStream(spool)) {
+                        length += ByteStreams.copy(in, out);
+                    }
+                    return;
+                }
+                chunks.add(pool.acquire(CHUNK_SIZE));
+                last = 0;
+            }
+            int read = in.read(chunks.get(chunks.size()-1), last, CHUNK_SIZE-last);
+            if (read < 0) {
+                return;
+            }
+            last += read;
+            length += read;
+        }
+    }
+
+    /**
+     * Returns the length of the interchange.
+     * @return the length in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns a stream over the buffered content.  The buffer must not be
+     * closed until the stream has been read.
+     * @return the content
+     * @throws IOException
+     */
+    public InputStream inputStream() throws IOException {
+        List<InputStream> parts = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            parts.add(new ByteArrayInputStream(chunks.get(i), 0, i < chunks.size()-1 ? CHUNK_SIZE : last));
+        }
+        if (spool != null) {
+            parts.add(new FileInputStream(spool));
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * Returns the chunks to the pool and deletes the spool, if any.
+     */
+    @Override
+    public void close() {
+        chunks.forEach(pool::release);
+        chunks.clear();
+        if (spool != null) {
+            spool.delete();
+            spool = null;
+        }
+    }
+}
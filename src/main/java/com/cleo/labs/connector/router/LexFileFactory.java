@@ -1,13 +1,23 @@
 package com.cleo.labs.connector.router;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
 
 import com.cleo.lexicom.beans.LexFile;
 import com.cleo.lexicom.streams.LexFileOutputStream;
 
 public class LexFileFactory implements RouterFileFactory {
 
+    /**
+     * Matches filenames that are URIs, like {@code smb://host/share/file},
+     * rather than local paths (but not Windows drive letters).
+     */
+    private static final Pattern URI = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]+:.*");
+
     @Override
     public File getFile(String filename) {
         return new LexFile(filename);
@@ -18,4 +28,57 @@ public class LexFileFactory implements RouterFileFactory {
         return new LexFileOutputStream(new LexFile(filename));
     }
 
+    @Override
+    public OutputStream getOutputStream(String filename, boolean append) throws Exception {
+        return new LexFileOutputStream(new LexFile(filename), append);
+    }
+
+    /**
+     * Returns the path of {@code filename} unless it is a URI.
+     */
+    @Override
+    public Path path(String filename) {
+        if (URI.matcher(filename).matches()) {
+            return null;
+        }
+        return new LexFile(filename).getAbsoluteFile().toPath();
+    }
+
+    /**
+     * Returns the channel of the {@link LexFileOutputStream} opened by
+     * {@link #getOutputStream(String)}, which is only asked for once
+     * {@link #path(String)} has shown the destination to be a local file.
+     */
+    @Override
+    public FileChannel channel(OutputStream os) {
+        return os instanceof LexFileOutputStream ? ((LexFileOutputStream) os).getChannel() : null;
+    }
+
+    /**
+     * Claims {@code filename} by creating it empty, which is atomic for
+     * local files.  Destinations that can not be created this way (for
+     * example some URI destinations) fall back to testing for existence.
+     */
+    @Override
+    public boolean reserve(String filename) throws Exception {
+        LexFile file = new LexFile(filename);
+        try {
+            return file.createNewFile();
+        } catch (IOException | UnsupportedOperationException e) {
+            return !file.exists();
+        }
+    }
+
+    /**
+     * Deletes {@code filename} if it is still the empty file created by
+     * {@link #reserve(String)}.
+     */
+    @Override
+    public void release(String filename) throws Exception {
+        LexFile file = new LexFile(filename);
+        if (file.isFile() && file.length() == 0) {
+            file.delete();
+        }
+    }
+
 }
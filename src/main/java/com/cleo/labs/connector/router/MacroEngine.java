@@ -1,15 +1,23 @@
 package com.cleo.labs.connector.router;
 
-import java.text.SimpleDateFormat;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -18,17 +26,23 @@ import org.apache.commons.io.FilenameUtils;
  * form {@code ${expression}} in the context of the {@link EDIMetadata} and
  * filename involved in processing a {@link Route}.
  */
+import com.cleo.connector.api.helper.Logger;
 import com.google.common.base.Strings;
 
 public class MacroEngine {
-    private static final ScriptEngineManager engine_factory = new ScriptEngineManager();
-
-    private ScriptEngine engine;
+    private Bindings bindings;
     private Date now;
+    private Map<String,String> dates;
     private String filename;
     private Metadata metadata;
     private String counter;
     private String unique;
+    private String size;
+    private String sha256;
+    private String segments;
+    private String trailer;
+    private boolean javascript;
+    private Logger logger;
 
     /**
      * Enumerates the macro tokens with functions defining how the
@@ -51,7 +65,11 @@ public class MacroEngine {
         type(null, Metadata::type, null),
         icn(null, Metadata::icn, null),
         counter(null, null, MacroEngine::counter),
-        unique(null, null, MacroEngine::unique);
+        unique(null, null, MacroEngine::unique),
+        size(null, null, MacroEngine::size),
+        sha256(null, null, MacroEngine::sha256),
+        segments(null, null, MacroEngine::segments),
+        trailer(null, null, MacroEngine::trailer);
 
         private final Function<String, String> filenameFunction;
         private final Function<Metadata, String> metadataFunction;
@@ -65,48 +83,109 @@ public class MacroEngine {
             this.engineFunction = engineFunction;
         }
 
+        /**
+         * Returns {@code true} if the token's value comes from parsing the
+         * file: its {@link Metadata}, or the segment count and trailer
+         * control number known only once an EDI interchange has been read.
+         * @return {@code true} if the file must be parsed for the token
+         */
+        private boolean parsed() {
+            return metadataFunction != null || this == segments || this == trailer;
+        }
+
+        /**
+         * Returns the value of the token for {@code engine}, never {@code null}.
+         * @param engine the engine
+         * @return the value
+         */
+        private String value(MacroEngine engine) {
+            if (filenameFunction != null) {
+                return engine.filename == null ? "" : Strings.nullToEmpty(filenameFunction.apply(engine.filename));
+            } else if (metadataFunction != null) {
+                return engine.metadata == null ? "" : Strings.nullToEmpty(metadataFunction.apply(engine.metadata));
+            } else {
+                return Strings.nullToEmpty(engineFunction.apply(engine));
+            }
+        }
     };
 
     /**
-     * Returns {@code true} if the {@link ScriptEngine} has been started.
-     * @return {@code true} if the {@link ScriptEngine} has been started
+     * The macro tokens by name, to look them up without exceptions.
      */
-    public boolean started() {
-        return engine != null;
-    }
+    private static final Map<String,Token> BY_NAME = Collections.unmodifiableMap(Stream.of(Token.values())
+            .collect(Collectors.toMap(Token::name, Function.identity())));
 
     /**
-     * Starts up the {@link ScriptEngine}, if one has not
-     * yet been started.
-     */
-    private void startEngine() {
-        if (!started()) {
-            engine  = engine_factory.getEngineByName("JavaScript");
-            try {
-                engine.eval("load('nashorn:mozilla_compat.js');"+
-                    "function date(format) { return new java.text.SimpleDateFormat(format).format(now); }");
-                engine.put("now", now);
-                unique(unique);
-                metadata(metadata);
-                filename(filename);
-            } catch (ScriptException e) {
-                // gulp
-            }
+     * The names of the macro tokens, for compiling {@link Expression Expressions}.
+     */
+    private static final Set<String> TOKENS = BY_NAME.keySet();
+
+    /**
+     * Evaluates {@link Expression Expressions} in the context of this engine.
+     */
+    private final Expression.Context context = new Expression.Context() {
+        @Override
+        public String token(String name) {
+            return BY_NAME.get(name).value(MacroEngine.this);
+        }
+        @Override
+        public String date(String format, String zone) {
+            return MacroEngine.this.date(format, zone);
         }
+    };
+
+    /**
+     * Returns {@code true} if expressions that are not in the native
+     * {@link Expression} language are evaluated as JavaScript.
+     * @return {@code true} if JavaScript is enabled
+     */
+    public boolean javascript() {
+        return javascript;
     }
 
     /**
-     * Creates a new {@code MacroEngine} without starting the
-     * real JavaScript {@link ScriptEngine}.
+     * Enables evaluating expressions that are not in the native
+     * {@link Expression} language as JavaScript.  Otherwise such
+     * expressions fail to expand, rather than quietly expanding to
+     * {@code ""}.
+     * @param javascript {@code true} to enable JavaScript
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public MacroEngine javascript(boolean javascript) {
+        this.javascript = javascript;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Logger} for scripts that fail to evaluate.
+     * @param logger the logger, possibly {@code null}
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public MacroEngine logger(Logger logger) {
+        this.logger = logger;
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if a script has been evaluated, and this engine
+     * has its own {@link Bindings} for the {@link ScriptPool}.
+     * @return {@code true} if scripting has been started
+     */
+    public boolean started() {
+        return bindings != null;
+    }
+
+    /**
+     * Creates a new {@code MacroEngine}.
      */
     public MacroEngine() {
         now = new Date();
+        dates = new HashMap<>();
         unique = null;
     }
 
     /**
-     * Creates a new {@code MacroEngine} without starting the
-     * real JavaScript {@link ScriptEngine}, but sets the initial
+     * Creates a new {@code MacroEngine}, setting the initial
      * metadata and filename for convenience.
      * @param metadata the metadata to set
      * @param filename the filename to set
@@ -118,32 +197,22 @@ public class MacroEngine {
     }
 
     /**
-     * Sets the filename for the engine.  If the {@link ScriptEngine} is started,
-     * the values are updated in its environment as well.
+     * Sets the filename for the engine.
      * @param filename the filename to set for the engine
      * @return {@code this} to allow for fluent-style setting
      */
     public MacroEngine filename(String filename) {
         this.filename = filename;
-        if (started()) {
-            Stream.of(Token.values())
-                    .filter((t) -> t.filenameFunction != null)
-                    .forEach((t) -> engine.put(t.name(), filename==null ? "" : t.filenameFunction.apply(filename)));
-        }
         return this;
     }
 
     /**
-     * Sets the counter token for the engine.  If the {@link ScriptEngine} is started,
-     * the value is updated in its environment as well.
+     * Sets the counter token for the engine.
      * @param counter the counter value to set for the engine
      * @return {@code this} to allow for fluent-style setting
      */
     public MacroEngine counter(String counter) {
         this.counter = counter;
-        if (started()) {
-            engine.put("counter", counter);
-        }
         return this;
     }
 
@@ -156,16 +225,12 @@ public class MacroEngine {
     }
 
     /**
-     * Sets the uniqueness token for the engine.  If the {@link ScriptEngine} is started,
-     * the value is updated in its environment as well.
+     * Sets the uniqueness token for the engine.
      * @param unique the uniqueness token to set for the engine
      * @return {@code this} to allow for fluent-style setting
      */
     public MacroEngine unique(String unique) {
         this.unique = unique;
-        if (started()) {
-            engine.put("unique", Strings.nullToEmpty(unique));
-        }
         return this;
     }
 
@@ -178,48 +243,279 @@ public class MacroEngine {
     }
 
     /**
-     * Sets the metadata for the engine.  If the {@link ScriptEngine} is started,
-     * the values are updated in its environment as well.
+     * Sets the size token for the engine, known once a staged destination
+     * has been written.
+     * @param size the size of the routed content in bytes
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public MacroEngine size(String size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Returns the current value of the size token.
+     * @return the size token
+     */
+    public String size() {
+        return size;
+    }
+
+    /**
+     * Sets the SHA-256 token for the engine, known once a staged destination
+     * has been written.
+     * @param sha256 the hex SHA-256 hash of the routed content
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public MacroEngine sha256(String sha256) {
+        this.sha256 = sha256;
+        return this;
+    }
+
+    /**
+     * Returns the current value of the SHA-256 token.
+     * @return the SHA-256 token
+     */
+    public String sha256() {
+        return sha256;
+    }
+
+    /**
+     * Sets the segment count token for the engine, known once a staged
+     * EDI destination has been written.
+     * @param segments the number of segments in the interchange
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public MacroEngine segments(String segments) {
+        this.segments = segments;
+        return this;
+    }
+
+    /**
+     * Returns the current value of the segment count token.
+     * @return the segment count token
+     */
+    public String segments() {
+        return segments;
+    }
+
+    /**
+     * Sets the trailer control number token for the engine, known once a
+     * staged EDI destination has been written.
+     * @param trailer the control number from the interchange trailer
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public MacroEngine trailer(String trailer) {
+        this.trailer = trailer;
+        return this;
+    }
+
+    /**
+     * Returns the current value of the trailer control number token.
+     * @return the trailer control number token
+     */
+    public String trailer() {
+        return trailer;
+    }
+
+    /**
+     * Sets the metadata for the engine.
      * @param metadata the new metadata to set for the engine
      * @return {@code this} to allow for fluent-style setting
      */
     public MacroEngine metadata(Metadata metadata) {
         this.metadata = metadata;
-        if (engine != null) {
-            Stream.of(Token.values())
-                    .filter((t) -> t.metadataFunction != null)
-                    .forEach((t) -> engine.put(t.name(), metadata==null ? "" : t.metadataFunction.apply(metadata)));
-        }
         return this;
     }
 
+    /**
+     * Returns the metadata for the engine.
+     * @return the metadata, possibly {@code null}
+     */
+    public Metadata metadata() {
+        return metadata;
+    }
+
     /**
      * {@link Pattern} matching {@code ${expression}} intended for use in
      * a {@link Matcher#find()} loop.
      */
     private static final Pattern SQUIGGLE = Pattern.compile("\\$\\{(?<expr>[^\\}]*)\\}");
 
+    /**
+     * A destination expression compiled into a sequence of parts: literal
+     * text, and resolvers for each embedded {@code ${expression}} bound
+     * when compiling to a token, a date format, a compiled {@link Expression}
+     * or (failing all else) a script.  Expanding a template just appends
+     * the parts, with no pattern matching, and can fail only on a script
+     * when JavaScript is not enabled.
+     */
+    public static class Template {
+        private interface Part {
+            public String apply(MacroEngine engine);
+        }
+
+        private static final Map<String,Template> cache = new ConcurrentHashMap<>();
+        private static final int CACHE_SIZE = 1000;
+
+        /**
+         * Returns the compiled form of {@code source}, compiling it only the
+         * first time it is seen.
+         * @param source the destination expression
+         * @return the compiled template
+         */
+        public static Template compile(String source) {
+            Template result = cache.get(source);
+            if (result == null) {
+                result = new Template(source);
+                if (cache.size() >= CACHE_SIZE) {
+                    cache.clear();
+                }
+                cache.put(source, result);
+            }
+            return result;
+        }
+
+        private final String source;
+        private final Part[] parts;
+        private final Set<String> references;
+        private final List<String> scripts;
+
+        private Template(String source) {
+            this.source = source;
+            List<Part> parts = new ArrayList<>();
+            Set<String> references = new HashSet<>();
+            List<String> scripts = new ArrayList<>();
+            Matcher m = SQUIGGLE.matcher(source);
+            int literal = 0;
+            while (m.find()) {
+                if (m.start() > literal) {
+                    String text = source.substring(literal, m.start());
+                    parts.add((e) -> text);
+                }
+                literal = m.end();
+                String expr = m.group("expr");
+                Token token = BY_NAME.get(expr);
+                Matcher date = DATEFUNCTION.matcher(expr);
+                if (token != null) {
+                    references.add(expr);
+                    parts.add(token::value);
+                } else if (date.matches()) {
+                    String format = Strings.nullToEmpty(date.group(1)) + Strings.nullToEmpty(date.group(2));
+                    String zone = Strings.emptyToNull(Strings.nullToEmpty(date.group(3)) + Strings.nullToEmpty(date.group(4)));
+                    parts.add((e) -> e.date(format, zone));
+                } else {
+                    try {
+                        Expression expression = Expression.compile(expr, TOKENS);
+                        references.addAll(expression.references());
+                        parts.add((e) -> expression.evaluate(e.context));
+                    } catch (IllegalArgumentException x) {
+                        scripts.add(expr);
+                        Token[] tokens = scriptTokens(expr);
+                        parts.add((e) -> e.script(expr, tokens));
+                    }
+                }
+            }
+            if (literal < source.length()) {
+                String text = source.substring(literal);
+                parts.add((e) -> text);
+            }
+            this.parts = parts.toArray(new Part[parts.size()]);
+            this.references = Collections.unmodifiableSet(references);
+            this.scripts = Collections.unmodifiableList(scripts);
+        }
+
+        /**
+         * Expands the template with the values in {@code engine}.
+         * @param engine the {@link MacroEngine}
+         * @return the expanded string
+         * @throws IllegalStateException if the template has a script and
+         * JavaScript is not enabled in {@code engine}
+         */
+        public String expand(MacroEngine engine) {
+            if (parts.length == 1) {
+                return parts[0].apply(engine);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Part part : parts) {
+                sb.append(part.apply(engine));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Returns {@code true} if expanding the template could depend on
+         * {@link Metadata} other than the {@code provided} tokens.
+         * @param provided the names of the metadata tokens known without parsing the file
+         * @return {@code true} if the expansion may need metadata from the file
+         */
+        public boolean usesMetadata(Set<String> provided) {
+            if (!scripts.isEmpty()) {
+                return true; // script expression: assume the worst
+            }
+            for (String name : references) {
+                if (BY_NAME.get(name).parsed() && !provided.contains(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the expressions in the template that are beyond the native
+         * {@link Expression} language, and so are evaluated as JavaScript.
+         * @return the script expressions, possibly empty
+         */
+        public List<String> scripts() {
+            return scripts;
+        }
+
+        @Override
+        public String toString() {
+            return source;
+        }
+    }
+
     /**
      * Returns the {@code input} with any embedded {@code ${expression}} replaced
-     * with the results of evaluating them with {@link #expr(String)}.
+     * with the results of evaluating them as with {@link #expr(String)}.
      * @param input the string to process
      * @return the result after processing
      */
     public String expand(String input) {
-        Matcher m = SQUIGGLE.matcher(input);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            m.appendReplacement(sb, Matcher.quoteReplacement(expr(m.group("expr"))));
-        }
-        m.appendTail(sb);
-        return sb.toString();
+        return Template.compile(input).expand(this);
+    }
+
+    /**
+     * Returns {@code true} if expanding {@code input} could depend on the
+     * {@link Metadata}, i.e. if it refers to a metadata token (or to the
+     * {@code segments} or {@code trailer} of an EDI interchange) or contains
+     * a script expression.
+     * @param input the string to examine, possibly {@code null}
+     * @return {@code true} if the expansion may need metadata
+     */
+    public static boolean usesMetadata(String input) {
+        return usesMetadata(input, Collections.emptySet());
+    }
+
+    /**
+     * Returns {@code true} if expanding {@code input} could depend on
+     * {@link Metadata} other than the {@code provided} tokens.
+     * @param input the string to examine, possibly {@code null}
+     * @param provided the names of the metadata tokens known without parsing the file
+     * @return {@code true} if the expansion may need metadata from the file
+     */
+    public static boolean usesMetadata(String input, Set<String> provided) {
+        return !Strings.isNullOrEmpty(input) && Template.compile(input).usesMetadata(provided);
     }
 
     /**
      * {@link Pattern} matching {@code date('...')} with {@code ...} as {@code group(1)}
-     * or {@code date("...")} with {@code ...} as {@code group(2)}.
+     * or {@code date("...")} with {@code ...} as {@code group(2)}, optionally
+     * followed by a time zone argument {@code '...'} as {@code group(3)} or
+     * {@code "..."} as {@code group(4)}.
      */
-    public static final Pattern DATEFUNCTION = Pattern.compile("date\\((?:'([^']*)'|\"([^\"]*)\")\\)");
+    public static final Pattern DATEFUNCTION = Pattern.compile("date\\((?:'([^']*)'|\"([^\"]*)\")(?:\\s*,\\s*(?:'([^']*)'|\"([^\"]*)\"))?\\)");
 
     /**
      * Attempts a simple variable lookup for {@code name}, or tries simple
@@ -229,34 +525,49 @@ public class MacroEngine {
      * @return the result, or {@code null} if the input was not a simple variable name or date expression
      */
     public String lookup(String name) {
+        Token token = BY_NAME.get(name);
+        if (token != null) {
+            return token.value(this);
+        }
         Matcher date = DATEFUNCTION.matcher(name);
         if (date.matches()) {
             String format = Strings.nullToEmpty(date.group(1)) +
                     Strings.nullToEmpty(date.group(2));
-            return new SimpleDateFormat(format).format(now);
-        } else {
-            try {
-                Token token = Token.valueOf(name);
-                if (token.filenameFunction != null) {
-                    return filename == null ? "" : Strings.nullToEmpty(token.filenameFunction.apply(filename));
-                } else if (token.metadataFunction != null) {
-                    return metadata == null ? "" : Strings.nullToEmpty(token.metadataFunction.apply(metadata));
-                } else if (token.engineFunction != null) {
-                    return Strings.nullToEmpty(token.engineFunction.apply(this));
-                }
-            } catch (IllegalArgumentException e) {
-                // fall through
-            }
+            String zone = Strings.nullToEmpty(date.group(3)) +
+                    Strings.nullToEmpty(date.group(4));
+            return date(format, zone);
         }
         return null; // no such token
     }
 
     /**
-     * Returns the results of evaluating the input {@code macro} as
-     * a JavaScript expression.  First, tries to do a simple {@link #lookup(String)}
-     * to avoid the JavaScript engine overhead.
+     * Formats the engine's current time, which is fixed for the life of
+     * the engine, so each format is computed only once.
+     * @param format the {@link java.text.SimpleDateFormat} pattern, or the
+     *        name of a predefined ISO format (see {@link DateFormats})
+     * @param zone the time zone, or {@code null} or empty for the default
+     * @return the formatted time
+     */
+    public String date(String format, String zone) {
+        String key = zone == null || zone.isEmpty() ? format : format + '\0' + zone;
+        String result = dates.get(key);
+        if (result == null) {
+            result = DateFormats.compile(format).format(ZonedDateTime.ofInstant(now.toInstant(), DateFormats.zone(zone)));
+            dates.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the results of evaluating the input {@code macro}.  First,
+     * tries to do a simple {@link #lookup(String)}, then evaluates it as a
+     * compiled {@link Expression}.  Only if the macro is not in the
+     * {@code Expression} language and {@link #javascript(boolean) JavaScript}
+     * is enabled is it evaluated as JavaScript.
      * @param macro the input expression to evaluate
      * @return the result after lookup or evaluation
+     * @throws IllegalStateException if the macro is a script and
+     * JavaScript is not enabled
      */
     public String expr(String macro) {
         // first try just looking up a simple value
@@ -264,13 +575,61 @@ public class MacroEngine {
         if (lookup != null) {
             return lookup;
         }
-        // ok, now run the JS engine, starting it if needed
-        startEngine();
+        // then a native expression
         try {
-            Object result = engine.eval(macro);
-            return result.toString();
-        } catch (ScriptException e) {
-            return "";
+            return Expression.compile(macro, TOKENS).evaluate(context);
+        } catch (IllegalArgumentException e) {
+            return script(macro, scriptTokens(macro));
+        }
+    }
+
+    /**
+     * {@link Pattern} matching the identifiers in a script, to find the
+     * tokens it could reference.
+     */
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+    /**
+     * Returns the tokens that {@code script} could reference, so that only
+     * those need be bound when it is evaluated.
+     * @param script the script
+     * @return the tokens
+     */
+    private static Token[] scriptTokens(String script) {
+        Set<Token> tokens = new HashSet<>();
+        Matcher m = IDENTIFIER.matcher(script);
+        while (m.find()) {
+            Token token = BY_NAME.get(m.group());
+            if (token != null) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new Token[tokens.size()]);
+    }
+
+    /**
+     * Returns the result of evaluating {@code macro} as JavaScript on the
+     * shared {@link ScriptPool}.  The engine's own {@link Bindings} are
+     * created on first use, and the {@code tokens} are bound with their
+     * current values.
+     * @param macro the input expression to evaluate
+     * @param tokens the tokens the expression references
+     * @return the result after evaluation
+     * @throws IllegalStateException if JavaScript is not enabled
+     */
+    private String script(String macro, Token[] tokens) {
+        if (!javascript) {
+            throw new IllegalStateException(String.format("${%s} needs JavaScript Destinations enabled", macro));
+        }
+        if (bindings == null) {
+            bindings = new SimpleBindings();
+            bindings.put("macros", this);
+            bindings.put("now", now);
+        }
+        for (Token token : tokens) {
+            bindings.put(token.name(), token.value(this));
         }
+        Object result = ScriptPool.shared().eval(macro, bindings, logger);
+        return result == null ? "" : result.toString();
     }
 }
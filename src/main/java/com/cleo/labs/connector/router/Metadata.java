@@ -1,5 +1,8 @@
 package com.cleo.labs.connector.router;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import com.google.common.base.Strings;
 
 /**
@@ -45,6 +48,81 @@ public class Metadata {
     protected Metadata() {
     }
 
+    /**
+     * Constructs metadata from the named capture groups of a matched
+     * {@link Matcher}.  The following group names are supported (note
+     * that the names are case sensitive):
+     * <ul><li>sender</li>
+     *     <li>receiver</li>
+     *     <li>groupSender</li>
+     *     <li>groupReceiver</li>
+     *     <li>function</li>
+     *     <li>type</li>
+     *     <li>icn</li></ul>
+     * @param m the matched {@link Matcher}.
+     */
+    protected Metadata(Matcher m) {
+        sender.id(group(m, "sender"));
+        receiver.id(group(m, "receiver"));
+        groupSender.id(group(m, "groupSender"));
+        groupReceiver.id(group(m, "groupReceiver"));
+        function = group(m, "function");
+        type = group(m, "type");
+        icn = group(m, "icn");
+    }
+
+    /**
+     * Copy constructor.
+     * @param copy the Metadata to copy
+     */
+    protected Metadata(Metadata copy) {
+        sender = new EDIID(copy.sender);
+        receiver = new EDIID(copy.receiver);
+        groupSender = new EDIID(copy.groupSender);
+        groupReceiver = new EDIID(copy.groupReceiver);
+        function = copy.function;
+        type = copy.type;
+        icn = copy.icn;
+    }
+
+    /**
+     * Merges a Metadata object over this object, giving
+     * precedence to non-null/empty values in the {@code from} object.
+     * @param from the source to merge from
+     * @return {@code this}
+     */
+    public Metadata merge(Metadata from) {
+        if (!Strings.isNullOrEmpty(from.sender.id())) sender.id(from.sender.id());
+        if (!Strings.isNullOrEmpty(from.sender.qualifier())) sender.qualifier(from.sender.qualifier());
+        if (!Strings.isNullOrEmpty(from.receiver.id())) receiver.id(from.receiver.id());
+        if (!Strings.isNullOrEmpty(from.receiver.qualifier())) receiver.qualifier(from.receiver.qualifier());
+        if (!Strings.isNullOrEmpty(from.groupSender.id())) groupSender.id(from.groupSender.id());
+        if (!Strings.isNullOrEmpty(from.groupSender.qualifier())) groupSender.qualifier(from.groupSender.qualifier());
+        if (!Strings.isNullOrEmpty(from.groupReceiver.id())) groupReceiver.id(from.groupReceiver.id());
+        if (!Strings.isNullOrEmpty(from.groupReceiver.qualifier())) groupReceiver.qualifier(from.groupReceiver.qualifier());
+        if (!Strings.isNullOrEmpty(from.function())) function = from.function();
+        if (!Strings.isNullOrEmpty(from.type())) type = from.type();
+        if (!Strings.isNullOrEmpty(from.icn())) icn = from.icn();
+        return this;
+    }
+
+    /**
+     * Attempts to extract the value of named capture group
+     * {@code name} from a {@link Matcher}, returning {@code null}
+     * instead of throwing an exception in case the named group
+     * is not defined in the underlying {@link Pattern}.
+     * @param m the matched {@link Matcher}
+     * @param name the capture group name
+     * @return the captured text, or {@code null} if the group was not defined
+     */
+    protected static String group(Matcher m, String name) {
+        try {
+            return m.group(name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * EDIMetadata getter for the sender.
      * @return the sender
@@ -0,0 +1,140 @@
+package com.cleo.labs.connector.router;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The destination streams kept open across the interchanges of a single
+ * {@code PUT}, so that interchanges routed to the same destination are
+ * appended to one stream instead of each opening (and, with {@code -UNI},
+ * claiming) its own file.
+ * <p/>
+ * At most {@code capacity} streams are kept open: opening another closes
+ * the least recently used one, but never one still being written by the
+ * current interchange.  A destination that is needed again after it was
+ * closed is reopened for appending.  Closing the streams handed out only
+ * flushes them, so the routed interchange can close its streams as usual:
+ * the destinations are closed by {@link #close()} at the end of the
+ * {@code PUT}.
+ */
+public class OpenDestinations implements AutoCloseable {
+
+    private final RouterFileFactory factory;
+    private final int capacity;
+    private final Map<String,String> names;
+    private final Set<String> opened;
+    private final LinkedHashMap<String,OutputStream> open;
+    private final Set<String> writing;
+    private IOException error;
+
+    /**
+     * Creates an empty set of open destinations.
+     * @param factory the factory to open destinations with
+     * @param capacity the most destinations to keep open
+     */
+    public OpenDestinations(RouterFileFactory factory, int capacity) {
+        this.factory = factory;
+        this.capacity = capacity;
+        this.names = new HashMap<>();
+        this.opened = new HashSet<>();
+        this.open = new LinkedHashMap<>(16, 0.75f, true); // in access order
+        this.writing = new HashSet<>();
+        this.error = null;
+    }
+
+    /**
+     * Returns the filename claimed for a destination expansion earlier in
+     * the {@code PUT}, if any.
+     * @param expansion the expanded destination, without a uniqueness token
+     * @return the claimed filename, or {@code null}
+     */
+    public String claimed(String expansion) {
+        return names.get(expansion);
+    }
+
+    /**
+     * Records the filename claimed for a destination expansion.
+     * @param expansion the expanded destination, without a uniqueness token
+     * @param filename the claimed filename
+     */
+    public void claim(String expansion, String filename) {
+        names.put(expansion, filename);
+    }
+
+    /**
+     * Returns the open stream for {@code filename}, opening it (or reopening
+     * it for appending) if needed.  Closing the returned stream only
+     * flushes it.
+     * @param filename the destination filename
+     * @return the stream
+     * @throws Exception if the destination can not be opened
+     */
+    public OutputStream stream(String filename) throws Exception {
+        OutputStream os = open.get(filename);
+        if (os == null) {
+            os = factory.getOutputStream(filename, opened.contains(filename));
+            opened.add(filename);
+            open.put(filename, os);
+        }
+        writing.add(filename);
+        evict();
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+            @Override
+            public void close() throws IOException {
+                out.flush();
+                writing.remove(filename);
+                evict();
+            }
+        };
+    }
+
+    /**
+     * Closes the least recently used streams not being written until no
+     * more than {@code capacity} are open.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String,OutputStream>> lru = open.entrySet().iterator();
+        while (open.size() > capacity && lru.hasNext()) {
+            Map.Entry<String,OutputStream> eldest = lru.next();
+            if (!writing.contains(eldest.getKey())) {
+                closed(eldest.getValue());
+                lru.remove();
+            }
+        }
+    }
+
+    private void closed(OutputStream os) {
+        try {
+            os.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Closes all the open destinations.
+     * @throws IOException the first error closing a destination, including
+     *         those closed earlier to make room for others
+     */
+    @Override
+    public void close() throws IOException {
+        open.values().forEach(this::closed);
+        open.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+}
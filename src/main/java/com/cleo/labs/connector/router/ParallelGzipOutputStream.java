@@ -0,0 +1,278 @@
+package com.cleo.labs.connector.router;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link OutputStream} that gzip compresses the data written to it,
+ * compressing blocks of {@link #BLOCK_SIZE} bytes in parallel.  As in
+ * {@code pigz}, each block is compressed on its own, primed with the last
+ * 32k of the block before it so that little compression is lost, and
+ * ends on a byte boundary (a sync flush), so that the compressed blocks
+ * can simply be written one after another as a single gzip stream.
+ * <p/>
+ * Up to {@code threads} blocks are compressed at once, on a shared pool,
+ * while the data for the next ones is collected.  The CRC of the data is
+ * computed as it is written.  The buffers for the blocks are taken from a
+ * {@link BufferPool}.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+
+    /**
+     * The number of bytes compressed as a block.
+     */
+    public static final int BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * The size of the deflate window, primed from the previous block.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, // magic
+            Deflater.DEFLATED, // method
+            0,                 // flags
+            0, 0, 0, 0,        // mtime
+            0,                 // extra flags
+            (byte) 0xff};      // unknown OS
+
+    private final ExecutorService pool;
+    private final BufferPool buffers;
+    private final int threads;
+    private final int level;
+    private final ArrayDeque<Future<byte[]>> pending;
+    private final CRC32 crc;
+    private long length;
+    private byte[] block;
+    private int count;
+    private byte[] dictionary;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * Creates a gzip stream compressing on as many threads as there are
+     * processors, at the default compression level.
+     * @param out the stream to write the compressed data to
+     */
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a gzip stream compressing up to {@code threads} blocks at once.
+     * @param out the stream to write the compressed data to
+     * @param threads the most blocks to compress at once
+     * @param level the compression level, {@code 1} to {@code 9}
+     *        or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int level) {
+        this(out, threads, level, BufferPool.shared());
+    }
+
+    /**
+     * Creates a gzip stream compressing on as many threads as there are
+     * processors, at the default compression level, with its blocks taken
+     * from {@code buffers}.
+     * @param out the stream to write the compressed data to
+     * @param buffers the pool to take the blocks from
+     */
+    public ParallelGzipOutputStream(OutputStream out, BufferPool buffers) {
+        this(out, Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION, buffers);
+    }
+
+    /**
+     * Creates a gzip stream compressing up to {@code threads} blocks at once,
+     * with its blocks taken from {@code buffers}.
+     * @param out the stream to write the compressed data to
+     * @param threads the most blocks to compress at once
+     * @param level the compression level, {@code 1} to {@code 9}
+     *        or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param buffers the pool to take the blocks from
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int level, BufferPool buffers) {
+        super(out);
+        this.pool = ForkJoinPool.commonPool();
+        this.buffers = buffers;
+        this.threads = Math.max(1, threads);
+        this.level = level;
+        this.pending = new ArrayDeque<>();
+        this.crc = new CRC32();
+        this.length = 0;
+        this.block = null;
+        this.count = 0;
+        this.dictionary = null;
+        this.started = false;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        crc.update(b, off, len);
+        length += len;
+        while (len > 0) {
+            if (block == null) {
+                block = buffers.acquire(BLOCK_SIZE);
+                count = 0;
+            }
+            int chunk = Math.min(len, BLOCK_SIZE-count);
+            System.arraycopy(b, off, block, count, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+            if (count == BLOCK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Hands the current block to the pool for compression, first writing
+     * out the oldest compressed block if {@code threads} are already busy.
+     * @param last {@code true} to end the deflate stream with this block
+     * @throws IOException
+     */
+    private void submit(boolean last) throws IOException {
+        while (pending.size() >= threads) {
+            drain();
+        }
+        final byte[] input = block;
+        final int size = input == null ? 0 : count;
+        final byte[] primer = dictionary;
+        if (!last) {
+            dictionary = Arrays.copyOfRange(input, size-DICTIONARY_SIZE, size);
+        }
+        block = null;
+        count = 0;
+        pending.add(pool.submit(() -> {
+            try {
+                return deflate(input, size, primer, last);
+            } finally {
+                buffers.release(input);
+            }
+        }));
+    }
+
+    /**
+     * Compresses a block as raw deflate data.
+     * @param input the block, may be {@code null} if {@code size} is {@code 0}
+     * @param size the number of bytes in the block
+     * @param primer the end of the previous block, or {@code null}
+     * @param last {@code true} to finish the deflate stream, otherwise the
+     *        block ends with a sync flush
+     * @return the compressed block
+     */
+    private byte[] deflate(byte[] input, int size, byte[] primer, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (primer != null) {
+                deflater.setDictionary(primer);
+            }
+            if (size > 0) {
+                deflater.setInput(input, 0, size);
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(size/2+64);
+            byte[] buf = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes out the oldest compressed block, waiting for it if needed.
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        Future<byte[]> next = pending.poll();
+        byte[] compressed;
+        try {
+            compressed = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted compressing");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (!started) {
+            out.write(HEADER);
+            started = true;
+        }
+        out.write(compressed);
+    }
+
+    /**
+     * Writes out the blocks compressed so far and flushes the underlying
+     * stream.  The block still being collected is not compressed until it
+     * is full, or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            drain();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compresses the last block, writes out all the compressed blocks and
+     * the gzip trailer, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            while (!pending.isEmpty()) {
+                drain();
+            }
+            writeInt((int) crc.getValue());
+            writeInt((int) length); // modulo 2^32
+            out.flush();
+        } finally {
+            // blocks still compressing return their buffers when done
+            if (block != null) {
+                buffers.release(block);
+                block = null;
+            }
+            out.close();
+        }
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16), (byte) (i >> 24)});
+    }
+}
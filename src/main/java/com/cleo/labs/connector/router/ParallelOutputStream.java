@@ -1,26 +1,459 @@
 package com.cleo.labs.connector.router;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
+import com.google.common.io.ByteStreams;
+
+/**
+ * An {@link OutputStream} that copies everything written to it to several
+ * destination streams at once.  Each destination has its own writer thread
+ * (a virtual thread where the runtime has them) fed through a bounded queue
+ * of chunks, so the destinations are written concurrently and the transfer
+ * runs at the pace of the slowest destination rather than the sum of them
+ * all.  A chunk is copied once and shared read-only by all the queues, so
+ * the memory held is limited by the queue {@link #depth(int) depth} times
+ * the size of the writes.
+ * <p/>
+ * A destination that fails is dropped (its queue is drained and discarded)
+ * while the others continue.  The errors are collected and thrown from
+ * {@link #close()}, or from a write once every destination has failed.
+ * <p/>
+ * With a {@link #stallTimeout(long) stall timeout}, a destination that can
+ * not accept another chunk within the timeout is detached, so that one hung
+ * destination does not hold up the others.  For this, everything written
+ * is kept: in memory, up to a {@link #window(int) window}, and in a local
+ * temporary spool once a destination falls behind (its queue is full) or
+ * the window is exceeded, so destinations that keep up cost no local disk
+ * writes for small transfers.  When the stream is closed, each detached
+ * destination is delivered in the background: once its stalled write
+ * returns, the destination is {@link #reopen(Reopener) reopened} and the
+ * whole spool is written to it, with retries, and the outcome is reported
+ * to the {@link #delivered(BiConsumer) delivered} callback.  A stalled write
+ * that does not return while the retries last is abandoned.
+ * <p/>
+ * With a single destination, or a depth of {@code 0}, the destinations are
+ * simply written one after another on the caller's thread.
+ */
 public class ParallelOutputStream extends OutputStream {
+
+    /**
+     * The default number of chunks queued for each destination.
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    /**
+     * Runs the writers, and the stages of a pipelined {@code PUT}.
+     */
+    static final ExecutorService executor = executor();
+
+    /**
+     * Marks the end of a writer's queue.
+     */
+    private static final byte[] END = new byte[0];
+    /**
+     * Asks a writer to flush its destination.
+     */
+    private static final byte[] FLUSH = new byte[0];
+
+    /**
+     * The pause before the first delivery retry, doubled for each retry.
+     */
+    public static final long RETRY_BACKOFF = 1000L;
+
+    /**
+     * The default number of bytes kept in memory before spooling.
+     */
+    public static final int DEFAULT_WINDOW = 1024 * 1024;
+
+    /**
+     * Opens a destination again for background delivery.
+     */
+    public interface Reopener {
+        /**
+         * Opens destination {@code index} again, to be written from the start.
+         * @param index the index of the destination
+         * @return a new stream for the destination
+         * @throws Exception
+         */
+        public OutputStream reopen(int index) throws Exception;
+    }
+
     private OutputStream[] out;
+    private int depth;
+    private long stallTimeout;
+    private Reopener reopen;
+    private int retries;
+    private BiConsumer<Integer,Exception> delivered;
+    private int window;
+    private Writer[] writers;
+    private boolean detachable;
+    private List<byte[]> history;
+    private long historySize;
+    private File spoolFile;
+    private OutputStream spool;
+    private IOException spoolError;
+    private boolean closed;
 
     public ParallelOutputStream(OutputStream[] out) {
         this.out = out;
+        this.depth = DEFAULT_DEPTH;
+        this.stallTimeout = 0;
+        this.reopen = null;
+        this.retries = 0;
+        this.delivered = null;
+        this.window = DEFAULT_WINDOW;
+        this.writers = null;
+        this.detachable = false;
+        this.history = new ArrayList<>();
+        this.historySize = 0;
+        this.spoolFile = null;
+        this.spool = null;
+        this.spoolError = null;
+        this.closed = false;
+    }
+
+    /**
+     * Sets the number of chunks queued for each destination before a write
+     * waits for the destination to catch up.  Must be set before writing.
+     * @param depth the queue depth, or {@code 0} to write the destinations
+     *        one after another on the caller's thread
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public ParallelOutputStream depth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    /**
+     * Sets how long a write waits for a destination that has fallen a full
+     * queue behind before detaching it.  Stalled destinations are only
+     * detached if they can be {@link #reopen(Reopener) reopened}.  Must be
+     * set before writing.
+     * @param stallTimeout the timeout in milliseconds, or {@code 0} to wait
+     *        for every destination
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public ParallelOutputStream stallTimeout(long stallTimeout) {
+        this.stallTimeout = stallTimeout;
+        return this;
+    }
+
+    /**
+     * Sets how detached destinations are reopened for background delivery.
+     * @param reopen the {@link Reopener}
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public ParallelOutputStream reopen(Reopener reopen) {
+        this.reopen = reopen;
+        return this;
+    }
+
+    /**
+     * Sets the number of times background delivery of a detached destination
+     * is retried after the first attempt fails.
+     * @param retries the number of retries
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public ParallelOutputStream retries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * Sets a callback for the outcome of each background delivery, called
+     * with the destination index and {@code null} on success, or the last
+     * error once the retries are exhausted.
+     * @param delivered the callback
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public ParallelOutputStream delivered(BiConsumer<Integer,Exception> delivered) {
+        this.delivered = delivered;
+        return this;
+    }
+
+    /**
+     * Sets the most bytes kept in memory for stalled destinations before
+     * they are spooled to a local temporary file.  Must be set before
+     * writing.
+     * @param window the window in bytes
+     * @return {@code this} to allow for fluent-style setting
+     */
+    public ParallelOutputStream window(int window) {
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if the data written has been spooled to a local
+     * temporary file, as a destination fell behind or the data outgrew
+     * the {@link #window(int) window}.
+     * @return {@code true} if spooled
+     */
+    public boolean spooled() {
+        return spoolFile != null;
+    }
+
+    /**
+     * Returns the indexes of the destinations that were detached for
+     * stalling.  Their delivery continues in the background after
+     * {@link #close()}.
+     * @return the detached destination indexes, possibly empty
+     */
+    public List<Integer> detached() {
+        if (writers == null) {
+            return Collections.emptyList();
+        }
+        List<Integer> detached = new ArrayList<>();
+        for (int i = 0; i < writers.length; i++) {
+            if (writers[i].detached) {
+                detached.add(i);
+            }
+        }
+        return detached;
+    }
+
+    /**
+     * Writes one destination from its queue until the {@link #END}.
+     */
+    private static class Writer implements Runnable {
+        private final OutputStream os;
+        private final BlockingQueue<byte[]> queue;
+        private volatile IOException error;
+        private volatile boolean detached;
+        private Future<?> done;
+
+        private Writer(OutputStream os, int depth) {
+            this.os = os;
+            this.queue = new ArrayBlockingQueue<>(depth);
+            this.error = null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!detached) {
+                    byte[] chunk = queue.take();
+                    if (chunk == END || detached) {
+                        return;
+                    } else if (error != null) {
+                        continue; // failed: keep draining so the caller never blocks
+                    }
+                    try {
+                        if (chunk == FLUSH) {
+                            os.flush();
+                        } else {
+                            os.write(chunk);
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        error = new IOException(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("interrupted writing destination");
+            }
+        }
+    }
+
+    private boolean sequential() {
+        return depth <= 0 || out.length <= 1;
+    }
+
+    /**
+     * Starts the writers, if they are not yet started.
+     */
+    private void start() {
+        if (writers == null) {
+            detachable = stallTimeout > 0 && reopen != null;
+            writers = new Writer[out.length];
+            for (int i = 0; i < out.length; i++) {
+                writers[i] = new Writer(out[i], depth);
+                writers[i].done = executor.submit(writers[i]);
+            }
+        }
+    }
+
+    /**
+     * Keeps {@code chunk} for stalled destinations: in memory while it
+     * fits in the window, and otherwise in the spool.
+     * @param chunk the chunk
+     */
+    private void keep(byte[] chunk) {
+        if (spool == null) {
+            history.add(chunk);
+            historySize += chunk.length;
+            if (historySize > window) {
+                spill();
+            }
+        } else {
+            try {
+                spool.write(chunk);
+            } catch (IOException e) {
+                abandonSpool(e);
+            }
+        }
+    }
+
+    /**
+     * Starts the spool, if it is not yet started, with the chunks kept in
+     * memory so far.  If the spool can not be written, stalled destinations
+     * are simply waited for.
+     */
+    private void spill() {
+        if (spool != null || !detachable) {
+            return;
+        }
+        try {
+            spoolFile = File.createTempFile("router-", ".spool");
+            spool = new BufferedOutputStream(new FileOutputStream(spoolFile));
+            for (byte[] chunk : history) {
+                spool.write(chunk);
+            }
+        } catch (IOException e) {
+            abandonSpool(e);
+        } finally {
+            history.clear();
+            historySize = 0;
+        }
+    }
+
+    /**
+     * Gives up on detaching destinations, as the spool can not be written:
+     * further stalls are simply waited for, and the destinations already
+     * detached fail with {@code e}.
+     * @param e the error writing the spool
+     */
+    private void abandonSpool(IOException e) {
+        detachable = false;
+        spoolError = e;
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException ignored) {
+                // incomplete anyway
+            }
+            spool = null;
+        }
+        if (spoolFile != null && detached().isEmpty()) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+
+    /**
+     * Queues {@code chunk} for every destination that has not failed.
+     * @param chunk the chunk, which must not be modified afterwards
+     * @throws IOException if every destination has failed
+     */
+    private void enqueue(byte[] chunk) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        start();
+        if (detachable && chunk != FLUSH) {
+            keep(chunk);
+        }
+        boolean alive = false;
+        for (Writer writer : writers) {
+            if (writer.error == null) {
+                try {
+                    if (writer.detached) {
+                        // its delivery will come from the spool
+                    } else if (!detachable) {
+                        writer.queue.put(chunk);
+                    } else if (!writer.queue.offer(chunk)) {
+                        spill(); // fallen behind: it may stall
+                        if (!detachable) {
+                            writer.queue.put(chunk);
+                        } else if (!writer.queue.offer(chunk, stallTimeout, TimeUnit.MILLISECONDS)) {
+                            writer.detached = true;
+                            writer.queue.clear();
+                            writer.queue.offer(END); // in case it is just slow, not stuck
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted queueing for destination");
+                }
+                alive = true;
+            }
+        }
+        if (!alive) {
+            throw writers[0].error; // every destination has failed
+        }
     }
 
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        history.clear();
         IOException first = null;
-        for (OutputStream os : out) {
-            // keep trying to close them all even if one throws an exception
+        if (spool != null) {
             try {
-                os.close();
+                spool.close();
             } catch (IOException e) {
-                if (first == null) {
-                    first = e;
+                first = collect(first, e);
+            }
+        }
+        if (writers != null) {
+            List<Integer> detached = detached();
+            AtomicInteger pending = new AtomicInteger(detached.size());
+            if (detached.isEmpty()) {
+                release(pending);
+            }
+            for (int i : detached) {
+                executor.submit(() -> deliver(i, pending));
+            }
+            for (Writer writer : writers) {
+                if (writer.detached) {
+                    continue;
+                }
+                try {
+                    writer.queue.put(END);
+                    writer.done.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    first = collect(first, new InterruptedIOException("interrupted waiting for destination"));
+                } catch (ExecutionException e) {
+                    first = collect(first, new IOException(e.getCause()));
                 }
+                first = collect(first, writer.error);
+            }
+        }
+        for (int i = 0; i < out.length; i++) {
+            if (writers != null && writers[i].detached) {
+                continue; // closed by its delivery, as it may still be stuck
+            }
+            // keep trying to close them all even if one throws an exception
+            try {
+                out[i].close();
+            } catch (IOException e) {
+                first = collect(first, e);
             }
         }
         if (first != null) {
@@ -28,31 +461,145 @@ public class ParallelOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Delivers detached destination {@code index} from the spool: waits for
+     * its stalled writer to finish, then reopens the destination and writes
+     * the spool, retrying with a doubling pause.  The stalled writer is
+     * waited for with the same doubling pause (but at least the stall
+     * timeout), and abandoned if it is still stuck when the retries run out.
+     * @param index the destination index
+     * @param pending the count of deliveries still using the spool
+     */
+    private void deliver(int index, AtomicInteger pending) {
+        Writer writer = writers[index];
+        Exception error = null;
+        try {
+            if (spoolError != null) {
+                throw spoolError;
+            }
+            boolean finished = false;
+            for (int attempt = 0; attempt <= retries && !finished; attempt++) {
+                try {
+                    writer.done.get(Math.max(stallTimeout, RETRY_BACKOFF) << Math.min(attempt, 16), TimeUnit.MILLISECONDS);
+                    finished = true;
+                } catch (ExecutionException e) {
+                    finished = true; // it failed: reopening is all that is left
+                } catch (TimeoutException e) {
+                    // still stuck
+                }
+            }
+            if (!finished) {
+                writer.done.cancel(true);
+                throw new IOException("destination still stalled after "+retries+" retries");
+            }
+            try {
+                writer.os.close();
+            } catch (IOException e) {
+                // the spool replaces whatever it wrote
+            }
+            for (int attempt = 0; attempt <= retries; attempt++) {
+                if (attempt > 0) {
+                    Thread.sleep(RETRY_BACKOFF << Math.min(attempt-1, 16));
+                }
+                try (OutputStream os = reopen.reopen(index);
+                        InputStream in = new FileInputStream(spoolFile)) {
+                    ByteStreams.copy(in, os);
+                    error = null;
+                    break;
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            release(pending);
+        }
+        if (delivered != null) {
+            delivered.accept(index, error);
+        }
+    }
+
+    /**
+     * Deletes the spool once the last delivery using it is done.
+     * @param pending the count of deliveries still using the spool
+     */
+    private void release(AtomicInteger pending) {
+        if (spoolFile != null && pending.getAndUpdate((n) -> Math.max(n-1, 0)) <= 1) {
+            spoolFile.delete();
+        }
+    }
+
+    /**
+     * Collects {@code e} into {@code first}, the first error seen.
+     * @param first the first error, or {@code null}
+     * @param e another error, or {@code null}
+     * @return the first error
+     */
+    private static IOException collect(IOException first, IOException e) {
+        if (first == null) {
+            return e;
+        } else if (e != null && e != first) {
+            first.addSuppressed(e);
+        }
+        return first;
+    }
+
     @Override
     public void flush() throws IOException {
-        for (OutputStream os : out) {
-            os.flush();
+        if (sequential()) {
+            for (OutputStream os : out) {
+                os.flush();
+            }
+        } else {
+            enqueue(FLUSH);
         }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        for (OutputStream os : out) {
-            os.write(b);
-        }
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        for (OutputStream os : out) {
-            os.write(b, off, len);
+        if (sequential()) {
+            for (OutputStream os : out) {
+                os.write(b, off, len);
+            }
+        } else if (len > 0) {
+            enqueue(Arrays.copyOfRange(b, off, off+len));
         }
     }
 
     @Override
     public void write(int b) throws IOException {
-        for (OutputStream os : out) {
-            os.write(b);
+        if (sequential()) {
+            for (OutputStream os : out) {
+                os.write(b);
+            }
+        } else {
+            enqueue(new byte[] {(byte) b});
+        }
+    }
+
+    /**
+     * Returns an executor for the writers, running each on a virtual thread
+     * if the runtime supports them, or otherwise on a pooled daemon thread.
+     * @return the executor
+     */
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool((r) -> {
+                Thread thread = new Thread(r, "router-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
     }
 }
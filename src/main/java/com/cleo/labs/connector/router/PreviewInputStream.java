@@ -1,31 +1,208 @@
 package com.cleo.labs.connector.router;
 
-import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.util.Arrays;
 
 import com.google.common.io.ByteStreams;
 
+/**
+ * An {@link InputStream} that can look ahead at the start of the
+ * underlying stream before it is read.  The preview grows on demand:
+ * nothing is read until {@link #fill(int)} asks for it, so detectors
+ * and matchers read only as much as they need, up to a fixed limit.
+ * Reading returns the previewed bytes first and then continues with
+ * the underlying stream.
+ * <p/>
+ * Once reading has gone past the previewed bytes, the preview can no
+ * longer grow.
+ * <p/>
+ * The preview buffer is taken from a {@link BufferPool} and returned to
+ * it when the stream is closed.
+ */
 public class PreviewInputStream extends FilterInputStream {
 
+    private final int limit;
+    private final BufferPool pool;
     private byte[] buf;
+    private int length;
+    private int pos;
+    private boolean eof;
+    private boolean passthrough;
 
-    protected PreviewInputStream(InputStream in, int size) throws IOException {
-        super(null);
-        buf = new byte[size];
-        int count = ByteStreams.read(in, buf, 0, size);
-        if (count < size) {
-            buf = Arrays.copyOf(buf, count);
+    protected PreviewInputStream(InputStream in, int limit) throws IOException {
+        this(in, limit, BufferPool.shared());
+    }
+
+    protected PreviewInputStream(InputStream in, int limit, BufferPool pool) throws IOException {
+        super(in);
+        this.limit = limit;
+        this.pool = pool;
+        this.buf = new byte[0];
+        this.length = 0;
+        this.pos = 0;
+        this.eof = false;
+        this.passthrough = false;
+    }
+
+    /**
+     * Returns the pool the preview buffer is taken from, for parsers of
+     * the stream to take their buffers from too.
+     * @return the pool
+     */
+    public BufferPool pool() {
+        return pool;
+    }
+
+    /**
+     * Returns the most bytes the preview may hold.
+     * @return the preview limit
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the number of bytes previewed so far.
+     * @return the preview length
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns {@code true} if the preview can not grow any further: it
+     * has reached its limit, the stream has ended, or reading has
+     * already gone past the preview.
+     * @return {@code true} if the preview is complete
+     */
+    public boolean complete() {
+        return eof || passthrough || length >= limit;
+    }
+
+    /**
+     * Extends the preview to at least {@code size} bytes (but no more than
+     * the limit), reading from the underlying stream only if needed.
+     * @param size the desired preview size
+     * @return the resulting preview length, which is less than {@code size}
+     *         only if the preview is {@link #complete()}
+     * @throws IOException
+     */
+    public int fill(int size) throws IOException {
+        size = Math.min(size, limit);
+        if (size > length && !eof && !passthrough) {
+            if (size > buf.length) {
+                // let go of the old buffer before taking the new one
+                byte[] previewed = Arrays.copyOf(buf, length);
+                pool.release(buf);
+                buf = new byte[0];
+                byte[] grown = pool.acquire(size);
+                System.arraycopy(previewed, 0, grown, 0, length);
+                buf = grown;
+            }
+            int count = ByteStreams.read(in, buf, length, size-length);
+            length += count;
+            eof = length < size;
         }
-        InputStream bis = new ByteArrayInputStream(buf, 0, count);
-        this.in = new SequenceInputStream(bis, in);
+        return length;
     }
 
+    /**
+     * Doubles the preview, up to the limit.
+     * @return {@code true} if the preview grew
+     * @throws IOException
+     */
+    public boolean grow() throws IOException {
+        int before = length;
+        return fill(Math.max(2*length, 1)) > before;
+    }
+
+    /**
+     * Returns the bytes previewed so far, exactly {@link #length()} long.
+     * This may be a copy: use {@link #buffer()} to avoid copying.
+     * @return the preview
+     */
     public byte[] preview() {
+        return buf.length == length ? buf : Arrays.copyOf(buf, length);
+    }
+
+    /**
+     * Returns the preview buffer itself, with the preview in the first
+     * {@link #length()} bytes.  The buffer is returned to the pool
+     * when the stream is closed.
+     * @return the preview buffer
+     */
+    public byte[] buffer() {
         return buf;
     }
 
-}
\ No newline at end of file
+    @Override
+    public int read() throws IOException {
+        if (pos < length) {
+            return buf[pos++] & 0xff;
+        }
+        passthrough = true;
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < length) {
+            int count = Math.min(len, length-pos);
+            System.arraycopy(buf, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+        passthrough = true;
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (pos < length) {
+            int count = (int) Math.min(n, length-pos);
+            pos += count;
+            return count;
+        }
+        passthrough = true;
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (pos < length) {
+            return length-pos;
+        }
+        return in.available();
+    }
+
+    /**
+     * Closes the stream and returns the preview buffer to the pool.  If
+     * the pool is enabled, the preview must not be used after closing.
+     */
+    @Override
+    public void close() throws IOException {
+        pool.release(buf);
+        super.close();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+}
@@ -1,12 +1,22 @@
 package com.cleo.labs.connector.router;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import com.cleo.labs.connector.router.Routables.Routable;
 import com.google.common.base.Strings;
@@ -18,15 +28,32 @@ public class RoutableContent implements Routable {
     }
 
     public static Iterator<Routable> getIterator(PreviewInputStream preview) {
-        return Collections.singleton((Routable)new RoutableContent(preview)).iterator();
+        return getIterator(preview, new Routables.Options());
+    }
+
+    public static Iterator<Routable> getIterator(PreviewInputStream preview, Routables.Options options) {
+        return Collections.singleton((Routable)new RoutableContent(preview, options)).iterator();
     }
 
     private PreviewInputStream in;
+    private Routables.Options options;
+    private CharSequence text;
+    private int decoded;
+    private CharSequence scoped;
+    private BitSet found;
+    private StreamingContentMatcher streaming;
+    private Map<String,RoutableContent.ContentMetadata> streamed;
+    private InputStream replay;
     private RoutableContent.ContentMetadata metadata;
     private Map<String,RoutableContent.ContentMetadata> namedMetadata;
 
     public RoutableContent(PreviewInputStream preview) {
+        this(preview, new Routables.Options());
+    }
+
+    public RoutableContent(PreviewInputStream preview, Routables.Options options) {
         this.in = preview;
+        this.options = options;
         this.namedMetadata = new HashMap<>();
     }
 
@@ -34,45 +61,294 @@ public class RoutableContent implements Routable {
         return metadata;
     }
 
+    /**
+     * The preview initially examined for {@code Content} patterns.  The
+     * preview is doubled from here (up to the {@code Preview Size}) only
+     * while more input could change the result of a match.
+     */
+    public static final int INITIAL_PREVIEW_SIZE = 4 * 1024;
+
+    /**
+     * Returns the preview decoded with the configured charset.  The
+     * preview is decoded once (each time it grows) and shared by all
+     * routes and named patterns.  ISO-8859-1 and US-ASCII are not
+     * decoded at all, but are viewed in place through a
+     * {@link ByteCharSequence}.
+     * @return the decoded preview
+     */
+    private CharSequence text() {
+        if (text == null || decoded != in.length()) {
+            decoded = in.length();
+            found = null;
+            Charset charset = options.charset();
+            if (charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII)) {
+                text = new ByteCharSequence(in.buffer(), 0, in.length(), charset.equals(StandardCharsets.US_ASCII));
+            } else {
+                text = new String(in.buffer(), 0, in.length(), charset);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Returns {@code true} if {@code Content} is matched against a tail
+     * preview (alone or following the head) rather than the head alone.
+     * @return {@code true} if the tail preview is used
+     */
+    private boolean tailed() {
+        return options.contentScope() != Routables.ContentScope.Head
+                && options.tail() != null
+                && options.tailPreviewSize() > 0;
+    }
+
+    /**
+     * Returns the text for a {@code Tail} or {@code Both} scope, reading and
+     * decoding it the first time.  The tail is read by seeking to the last
+     * {@code Tail Preview Size} bytes of the file, so the middle of the file
+     * is not read at all.  For {@code Both}, the head is the whole preview
+     * and the tail never overlaps it.
+     * @return the scoped text
+     * @throws IOException
+     */
+    private CharSequence scopedText() throws IOException {
+        if (scoped == null) {
+            int head = 0;
+            if (options.contentScope() == Routables.ContentScope.Both) {
+                head = in.fill(in.limit());
+            }
+            byte[] bytes;
+            try (RandomAccessFile file = new RandomAccessFile(options.tail(), "r")) {
+                long start = Math.max(head, file.length() - options.tailPreviewSize());
+                bytes = new byte[head + (int) Math.max(0, file.length() - start)];
+                file.seek(start);
+                file.readFully(bytes, head, bytes.length - head);
+            }
+            System.arraycopy(in.buffer(), 0, bytes, 0, head);
+            Charset charset = options.charset();
+            if (charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII)) {
+                scoped = new ByteCharSequence(bytes, 0, bytes.length, charset.equals(StandardCharsets.US_ASCII));
+            } else {
+                scoped = new String(bytes, charset);
+            }
+            found = null;
+        }
+        return scoped;
+    }
+
+    /**
+     * Returns {@code false} if the {@link ContentPrefilter} rules out
+     * {@code pattern} for this preview.  The preview is scanned for the
+     * literals of all patterns the first time a filtered pattern is checked
+     * (and again if the preview grows).
+     * @param pattern the compiled {@code Content} pattern
+     * @return {@code true} if the pattern should be matched
+     */
+    private boolean candidate(Pattern pattern) throws IOException {
+        ContentPrefilter prefilter = options.prefilter();
+        if (prefilter == null || !prefilter.filters(pattern)) {
+            return true;
+        }
+        CharSequence text = tailed() ? scopedText() : text();
+        if (found == null) {
+            found = prefilter.scan(text);
+        }
+        return prefilter.candidate(pattern, found);
+    }
+
+    /**
+     * Matches {@code pattern} against the whole preview within the
+     * configured time and step budget, shared by all the passes.  The
+     * preview starts small and is grown only when the result is not yet
+     * decisive: when the prefilter rules the pattern out, when it matches
+     * (the whole preview must match, and more input may not), or when
+     * {@link Matcher#hitEnd()} shows more input could change a non-match.
+     * A match that runs over budget
+     * is logged, counted in {@link RouterMetrics}, and treated as a
+     * non-match.  In streaming mode, the pattern is instead searched for
+     * throughout the stream (see {@link #search(Pattern)}), and with a
+     * {@code Tail} or {@code Both} content scope it is matched once
+     * against the scoped text (see {@link #scopedText()}).
+     * @param pattern the compiled {@code Content} pattern
+     * @return the matched metadata, or {@code null} if there was no match
+     */
+    private ContentMetadata match(Pattern pattern) {
+        if (options.streamingWindow() > 0) {
+            return search(pattern);
+        }
+        try {
+            boolean tailed = tailed();
+            if (!tailed) {
+                in.fill(INITIAL_PREVIEW_SIZE);
+            }
+            // one budget for all the passes, however often the preview grows
+            BudgetedCharSequence.Budget budget = options.matchTimeout() > 0 || options.matchSteps() > 0
+                    ? new BudgetedCharSequence.Budget(options.matchTimeout(), options.matchSteps())
+                    : null;
+            while (true) {
+                boolean complete = tailed || in.complete();
+                if (candidate(pattern)) {
+                    CharSequence input = tailed ? scopedText() : text();
+                    if (budget != null) {
+                        input = new BudgetedCharSequence(input, budget);
+                    }
+                    Matcher m = pattern.matcher(input);
+                    boolean matched = m.matches();
+                    if (complete) {
+                        return matched ? new ContentMetadata(m) : null;
+                    } else if (!matched && !m.hitEnd()) {
+                        return null;
+                    }
+                } else if (complete) {
+                    return null;
+                }
+                in.grow();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (BudgetedCharSequence.BudgetExceededException e) {
+            RouterMetrics.contentMatchBudgetExceeded.incrementAndGet();
+            if (options.logger() != null) {
+                options.logger().logWarning(String.format("Content pattern '%s' abandoned as a non-match: %s",
+                        pattern.pattern(), e.getMessage()));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Searches for {@code pattern} through the stream with a
+     * {@link StreamingContentMatcher}.  The stream can only be scanned
+     * once, so the first search looks for every {@code Content} pattern
+     * in the routing table at the same time, and later searches just
+     * look up their result.
+     * @param pattern the compiled {@code Content} pattern
+     * @return the metadata of the first match, or {@code null} if there was none
+     */
+    private ContentMetadata search(Pattern pattern) {
+        if (streaming == null) {
+            List<Pattern> all = new ArrayList<>(options.contentPatterns());
+            all.add(pattern);
+            streaming = new StreamingContentMatcher(in, options.charset(), options.streamingWindow(),
+                    options.matchTimeout(), options.matchSteps(), options.logger());
+            try {
+                streamed = streaming.scan(all);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (!streamed.containsKey(pattern.pattern()) && options.logger() != null) {
+            options.logger().logWarning(String.format("Content pattern '%s' is not in the routing table and was not searched for",
+                    pattern.pattern()));
+        }
+        return streamed.get(pattern.pattern());
+    }
+
     private static final Pattern NAMED = Pattern.compile("^(?<name>[a-zA-Z][a-zA-Z0-9]+)(?<names>(?:\\s*,\\s*[a-zA-Z][a-zA-Z0-9]+)*)\\s*:(?<pattern>.*)$");
 
+    /**
+     * A {@code Content} column parsed into its optional name, the optional
+     * list of additional names, and the compiled pattern, if any.
+     */
+    public static class ContentPattern {
+        private final String name;
+        private final String[] names;
+        private final Pattern pattern;
+
+        private ContentPattern(String content) {
+            // could be name:, name:pattern, or just pattern
+            Matcher named = NAMED.matcher(content);
+            if (named.matches()) {
+                this.name = named.group("name");
+                String names = named.group("names");
+                this.names = Strings.isNullOrEmpty(names) ? new String[0]
+                        : Stream.of(names.split("\\s*,\\s*"))
+                            .filter((n) -> !Strings.isNullOrEmpty(n))
+                            .toArray(String[]::new);
+                String pattern = named.group("pattern");
+                this.pattern = Strings.isNullOrEmpty(pattern) ? null : Pattern.compile(pattern, Pattern.DOTALL);
+            } else {
+                this.name = null;
+                this.names = new String[0];
+                this.pattern = Pattern.compile(content, Pattern.DOTALL);
+            }
+        }
+
+        /**
+         * Returns the name, or {@code null} for an unnamed pattern.
+         * @return the name
+         */
+        public String name() {
+            return name;
+        }
+        /**
+         * Returns the additional names to merge (possibly empty).
+         * @return the additional names
+         */
+        public String[] names() {
+            return names;
+        }
+        /**
+         * Returns the compiled pattern, or {@code null} for a pure
+         * {@code name:} reference.
+         * @return the compiled pattern
+         */
+        public Pattern pattern() {
+            return pattern;
+        }
+    }
+
+    /**
+     * Compiled {@code Content} columns shared by all routables.  The
+     * cache is simply reset if it grows unreasonably large, which can
+     * only happen if routing tables are edited many times.
+     */
+    private static final Map<String,ContentPattern> patterns = new ConcurrentHashMap<>();
+    private static final int PATTERN_CACHE_SIZE = 1000;
+
+    /**
+     * Returns the compiled form of {@code content}, compiling it only
+     * the first time it is seen.
+     * @param content the {@code Content} column
+     * @return the {@link ContentPattern}
+     */
+    public static ContentPattern compile(String content) {
+        ContentPattern result = patterns.get(content);
+        if (result == null) {
+            result = new ContentPattern(content);
+            if (patterns.size() >= PATTERN_CACHE_SIZE) {
+                patterns.clear();
+            }
+            patterns.put(content, result);
+        }
+        return result;
+    }
+
     public boolean matches(Route route) {
         // false unless there is Content
         if (Strings.isNullOrEmpty(route.content())) {
             return false;
         }
-        // could be name:, name:pattern, or just pattern
-        Matcher named = NAMED.matcher(route.content());
-        if (named.matches()) {
-            String name = named.group("name");
-            String names = named.group("names");
-            String pattern = named.group("pattern");
-            if (!Strings.isNullOrEmpty(pattern)) {
+        ContentPattern content = compile(route.content());
+        if (content.name() != null) {
+            String name = content.name();
+            if (content.pattern() != null) {
                 // name:pattern -- match and set/replace metadata for name
-                Pattern p = Pattern.compile(pattern, Pattern.DOTALL);
-                Matcher m = p.matcher(new String(in.preview()));
-                if (m.matches()) {
-                    namedMetadata.put(name, new RoutableContent.ContentMetadata(m));
-                } else {
-                    namedMetadata.put(name, null);
-                }
+                namedMetadata.put(name, match(content.pattern()));
             }
             // name: -- lookup metadata associated with name (null means no match)
             metadata = namedMetadata.get(name);
             // name,names...: -- merge in other named lookups
-            if (!Strings.isNullOrEmpty(names)) {
+            if (content.names().length > 0) {
                 if (metadata != null) {
                     metadata = new ContentMetadata(metadata); // make a copy to merge into
                 }
-                for (String from : names.split("\\s*,\\s*")) {
-                    if (!Strings.isNullOrEmpty(from)) {
-                        ContentMetadata fromMeta = namedMetadata.get(from);
-                        if (fromMeta != null) {
-                            if (metadata != null) {
-                                metadata.merge(fromMeta);
-                            } else {
-                                metadata = new ContentMetadata(fromMeta);
-                            }
+                for (String from : content.names()) {
+                    ContentMetadata fromMeta = namedMetadata.get(from);
+                    if (fromMeta != null) {
+                        if (metadata != null) {
+                            metadata.merge(fromMeta);
+                        } else {
+                            metadata = new ContentMetadata(fromMeta);
                         }
                     }
                 }
@@ -85,10 +361,8 @@ public class RoutableContent implements Routable {
             }
         }
         // ok, no name, so do a straight match against pattern
-        Pattern p = Pattern.compile(route.content(), Pattern.DOTALL);
-        Matcher m = p.matcher(new String(in.preview()));
-        if (m.matches()) {
-            metadata = new RoutableContent.ContentMetadata(m);
+        metadata = match(content.pattern());
+        if (metadata != null) {
             return metadata.matches(route);
         } else {
             return false;
@@ -96,32 +370,32 @@ public class RoutableContent implements Routable {
     }
 
     public InputStream inputStream() {
+        if (streaming != null) {
+            if (replay == null) {
+                try {
+                    replay = streaming.replay();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return replay;
+        }
         return in;
     }
 
+    public boolean whole() {
+        return true;
+    }
+
     public static class ContentMetadata extends Metadata {
         /**
-         * Constructs a new {@code EDIMetadata} object based on
-         * a non-EDI parse represented in a matched {@link Matcher}.
-         * The following named capture groups are supported (note
-         * that the names are case sensitive):
-         * <ul><li>sender</li>
-         *     <li>receiver</li>
-         *     <li>groupSender</li>
-         *     <li>groupReceiver</li>
-         *     <li>function</li>
-         *     <li>type</li>
-         *     <li>icn</li></ul>
+         * Constructs a new {@code ContentMetadata} object based on
+         * a non-EDI parse represented in a matched {@link Matcher},
+         * using the named capture groups described in {@link Metadata#Metadata(Matcher)}.
          * @param m the matched {@link Matcher}.
          */
         public ContentMetadata(Matcher m) {
-            sender.id(group(m, "sender"));
-            receiver.id(group(m, "receiver"));
-            groupSender.id(group(m, "groupSender"));
-            groupReceiver.id(group(m, "groupReceiver"));
-            function = group(m, "function");
-            type = group(m, "type");
-            icn = group(m, "icn");
+            super(m);
         }
     
         /**
@@ -129,52 +403,15 @@ public class RoutableContent implements Routable {
          * @param copy the ContentMetadata to copy
          */
         public ContentMetadata(ContentMetadata copy) {
-            sender = new EDIID(copy.sender);
-            receiver = new EDIID(copy.receiver);
-            groupSender = new EDIID(copy.groupSender);
-            groupReceiver = new EDIID(copy.groupReceiver);
-            function = copy.function;
-            type = copy.type;
-            icn = copy.icn;
+            super(copy);
         }
 
-        /**
-         * Merges a ContentMetadata object over this object, giving
-         * precedence to non-null/empty values in the {@code from} object.
-         * @param from the source to merge from
-         * @return {@code this}
-         */
-        public ContentMetadata merge(ContentMetadata from) {
-            if (!Strings.isNullOrEmpty(from.sender.id())) sender.id(from.sender.id());
-            if (!Strings.isNullOrEmpty(from.sender.qualifier())) sender.qualifier(from.sender.qualifier());
-            if (!Strings.isNullOrEmpty(from.receiver.id())) receiver.id(from.receiver.id());
-            if (!Strings.isNullOrEmpty(from.receiver.qualifier())) receiver.qualifier(from.receiver.qualifier());
-            if (!Strings.isNullOrEmpty(from.groupSender.id())) groupSender.id(from.groupSender.id());
-            if (!Strings.isNullOrEmpty(from.groupSender.qualifier())) groupSender.qualifier(from.groupSender.qualifier());
-            if (!Strings.isNullOrEmpty(from.groupReceiver.id())) groupReceiver.id(from.groupReceiver.id());
-            if (!Strings.isNullOrEmpty(from.groupReceiver.qualifier())) groupReceiver.qualifier(from.groupReceiver.qualifier());
-            if (!Strings.isNullOrEmpty(from.function())) function = from.function();
-            if (!Strings.isNullOrEmpty(from.type())) type = from.type();
-            if (!Strings.isNullOrEmpty(from.icn())) icn = from.icn();
+        @Override
+        public ContentMetadata merge(Metadata from) {
+            super.merge(from);
             return this;
         }
 
-       /**
-        * Attempts to extract the value of named capture group
-        * {@code name} from a {@link Matcher}, returning {@code null}
-        * instead of throwing an exception in case the named group
-        * is not defined in the underlying {@link Pattern}.
-        * @param m the matched {@link Matcher}
-        * @param name the capture group name
-        * @return the captured text, or {@code null} if the group was not defined
-        */
-       private static String group(Matcher m, String name) {
-           try {
-               return m.group(name);
-           } catch (Exception e) {
-               return null;
-           }
-       }
        /**
         * Content Metadata matches only when the {@code Content} is not empty.
         */
@@ -1,6 +1,7 @@
 package com.cleo.labs.connector.router;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -18,12 +19,47 @@ public class RoutableEDI extends InputStream implements Routable {
     private boolean lastSegment = false;
     private List<EDISegment> preview;
     private EDIMetadata metadata;
+    private int segments;
+    private String trailer;
 
     public static int PREVIEW_SIZE = 4 * 1024;
 
-    public static boolean canRoute(PreviewInputStream preview) {
+    /**
+     * How much of the preview to examine for the start of an interchange.
+     */
+    private static final int PROBE_SIZE = 64;
+
+    /**
+     * Enough preview for an {@code ISA} segment (106 characters), even
+     * if it is wrapped with CR/LF.
+     */
+    private static final int ISA_SIZE = 256;
+
+    /**
+     * Analyzes the preview of a {@link PreviewInputStream} to see if it
+     * is EDI.  The preview is examined in stages: first just enough to
+     * see if the stream starts with an {@code ISA}, {@code UNA},
+     * {@code UNB} or {@code STX} segment, then only as much as the
+     * detected syntax needs to be confirmed.
+     * @param preview the {@link PreviewInputStream} to inspect
+     * @return {@code true} if it is X12, EDIFACT or TRADACOMS
+     * @throws IOException
+     */
+    public static boolean canRoute(PreviewInputStream preview) throws IOException {
+        preview.fill(PROBE_SIZE);
+        String tag = tag(preview.buffer(), preview.length());
+        if (tag == null) {
+            preview.fill(PREVIEW_SIZE); // nothing but line endings so far
+        } else if (tag.equals("ISA")) {
+            preview.fill(ISA_SIZE);
+        } else if (tag.equals("UNA") || tag.equals("UNB") || tag.equals("STX")) {
+            preview.fill(PREVIEW_SIZE);
+        } else {
+            return false;
+        }
+        EDI tester = null;
         try {
-            EDI tester = new EDI(new ByteArrayInputStream(preview.preview()));
+            tester = new EDI(new ByteArrayInputStream(preview.buffer(), 0, preview.length()), preview.pool());
             switch (tester.getType()) {
             case X12:
             case FUZZYX12:
@@ -35,15 +71,36 @@ public class RoutableEDI extends InputStream implements Routable {
             }
         } catch (IOException e) {
             // guess it isn't EDI
+        } finally {
+            if (tester != null) {
+                tester.close();
+            }
         }
         return false;
     }
 
+    /**
+     * Returns the first three characters of {@code bytes}, skipping
+     * CR/LF as {@link EDI} does, or {@code null} if there are fewer.
+     * @param bytes the preview
+     * @param length the length of the preview
+     * @return the leading segment tag, or {@code null}
+     */
+    private static String tag(byte[] bytes, int length) {
+        StringBuilder tag = new StringBuilder(3);
+        for (int i = 0; i < length && tag.length() < 3; i++) {
+            if (bytes[i] != '\r' && bytes[i] != '\n') {
+                tag.append((char) (bytes[i] & 0xff));
+            }
+        }
+        return tag.length() < 3 ? null : tag.toString();
+    }
+
     public static Iterator<Routable> getIterator(PreviewInputStream preview) {
         return new RoutableEDIIterator(preview);
     }
 
-    public static class RoutableEDIIterator implements Iterator<Routable> {
+    public static class RoutableEDIIterator implements Iterator<Routable>, Closeable {
         private EDI edi;
         private RoutableEDI nextfilter;
         private boolean done;
@@ -58,13 +115,20 @@ public class RoutableEDI extends InputStream implements Routable {
                 throw new IllegalArgumentException("EDI Syntax Error", e);
             }
             done = nextfilter == null;
+            if (done) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    // nothing more to read anyway
+                }
+            }
         }
 
         public RoutableEDIIterator(PreviewInputStream preview) {
             try {
                 this.nextfilter = null;
                 this.done = false;
-                this.edi = new EDI(preview);
+                this.edi = new EDI(preview, preview.pool());
             } catch (IOException e) {
                 this.edi = null;
                 this.nextfilter = null;
@@ -87,6 +151,16 @@ public class RoutableEDI extends InputStream implements Routable {
             nextfilter = null;
             return result;
         }
+
+        /**
+         * Closes the underlying {@code EDI} parser, returning its buffer.
+         */
+        @Override
+        public void close() throws IOException {
+            if (edi != null) {
+                edi.close();
+            }
+        }
     }
 
     public RoutableEDI(EDI edi) throws IOException {
@@ -111,6 +185,8 @@ public class RoutableEDI extends InputStream implements Routable {
             preview.add(segment);
             metadata.process(segment);
         }
+        this.segments = preview.size();
+        this.trailer = null;
         load();
     }
 
@@ -118,6 +194,24 @@ public class RoutableEDI extends InputStream implements Routable {
         return metadata;
     }
 
+    /**
+     * Returns the number of segments in the interchange, once its
+     * {@link #inputStream()} has been read to the end.
+     * @return the number of segments read
+     */
+    public int segments() {
+        return segments;
+    }
+
+    /**
+     * Returns the control number from the interchange trailer, once its
+     * {@link #inputStream()} has been read to the end.
+     * @return the trailer control number, or {@code null}
+     */
+    public String trailer() {
+        return trailer;
+    }
+
     @Override
     public InputStream inputStream() {
         return this;
@@ -140,7 +234,11 @@ public class RoutableEDI extends InputStream implements Routable {
                 buffer = null;
             } else {
                 buffer = ByteBuffer.wrap(segment.getSegment());
+                segments++;
                 lastSegment = metadata.isLastSegment(segment);
+                if (lastSegment) {
+                    trailer = metadata.trailer(segment);
+                }
             }
         }
     }
@@ -257,6 +355,15 @@ public class RoutableEDI extends InputStream implements Routable {
          * @return {@code true} if the segment is a closing segment
          */
         public abstract boolean isLastSegment(EDISegment segment);
+        /**
+         * Returns the control number from the closing segment of an
+         * interchange, depending on syntax.
+         * @param segment the closing {@code EDISegment}
+         * @return the control number, or {@code null} if the syntax has none
+         */
+        public String trailer(EDISegment segment) {
+            return null;
+        }
         /**
          * EDI Metadata matches only when the {@code Content} is empty.
          */
@@ -337,6 +444,13 @@ public class RoutableEDI extends InputStream implements Routable {
         public boolean isLastSegment(EDISegment segment) {
             return segment.getName().equals("IEA");
         }
+        /**
+         * {@code IEA02} is the interchange control number.
+         */
+        @Override
+        public String trailer(EDISegment segment) {
+            return getElement(segment, 1);
+        }
         /**
          * Is this strict or fuzzy X12?
          */
@@ -387,6 +501,13 @@ public class RoutableEDI extends InputStream implements Routable {
         public boolean isLastSegment(EDISegment segment) {
             return segment.getName().equals("UNZ");
         }
+        /**
+         * {@code UNZ02} is the interchange control reference.
+         */
+        @Override
+        public String trailer(EDISegment segment) {
+            return getSubelementOrNot(segment, 1);
+        }
     }
     private static class TradacomsMetadata extends EDIMetadata {
         /**
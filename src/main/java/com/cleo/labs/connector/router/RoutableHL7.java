@@ -1,5 +1,6 @@
 package com.cleo.labs.connector.router;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.Iterator;
@@ -157,11 +158,17 @@ public class RoutableHL7 implements Routables.Routable {
     /**
      * Analyzes the preview buffer of a {@link PreviewInputStream} to see
      * if it "looks like" HL7 version 2.  To reliably detect HL7, the preview
-     * buffer should be at least {@link #PREVIEW_SIZE} long.
+     * buffer should be at least {@link #PREVIEW_SIZE} long, but unless the
+     * preview starts with {@code MSH} no more than that is read.
      * @param preview the {@link PreviewInputStream} to inspect
      * @return {@code true} if it "looks like" HL7 version 2
+     * @throws IOException
      */
-    public static boolean canRoute(PreviewInputStream preview) {
+    public static boolean canRoute(PreviewInputStream preview) throws IOException {
+        if (preview.fill(3) < 3 || !new String(preview.buffer(), 0, 3, Charsets.ISO_8859_1).equals("MSH")) {
+            return false;
+        }
+        preview.fill(PREVIEW_SIZE);
         MSH msh = new MSH(preview.preview());
         return msh.item(12).startsWith("2.");
     }
@@ -190,6 +197,10 @@ public class RoutableHL7 implements Routables.Routable {
         return in;
     }
 
+    public boolean whole() {
+        return true;
+    }
+
     public static class HL7Metadata extends Metadata {
         /**
          * Parses an HL7 Hierarchic Designator into an EDIID.
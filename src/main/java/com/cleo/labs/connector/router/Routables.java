@@ -1,19 +1,28 @@
 package com.cleo.labs.connector.router;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
 import java.util.stream.IntStream;
 
+import com.cleo.connector.api.helper.Logger;
+import com.google.common.base.Strings;
+
 /**
  * The Routables class analyzes an {@link InputStream} and produces an
  * Iterator over one or more {@link Routable} instances that might be
  * split out of it.  Only EDI streams will in fact be split: other content
  * types will produce a {@code Routable} singleton iterator representing
- * the entire InputStream.
+ * the entire InputStream.  Closing the {@code Routables} closes the
+ * stream and returns any buffers still held to the {@link BufferPool}.
  */
-public class Routables implements Iterable<Routables.Routable> {
+public class Routables implements Iterable<Routables.Routable>, Closeable {
 
     /**
      * Wrapper around an {@link InputStream} including routing
@@ -40,9 +49,361 @@ public class Routables implements Iterable<Routables.Routable> {
          * @return the routable {@link InputStream}
          */
         public InputStream inputStream();
+        /**
+         * An implementation should return {@code true} if the routable
+         * {@code InputStream} is the whole source stream, unchanged and
+         * unsplit, so that it may be copied from the source file instead.
+         * @return {@code true} if the stream is the whole source
+         */
+        public default boolean whole() {
+            return false;
+        }
+    }
+
+    /**
+     * The formats that can be declared in the {@code Format} column of a
+     * {@link Route} to skip detection.
+     */
+    public enum Format {
+        EDI, HL7, Content;
+
+        /**
+         * Returns the {@code Format} named (ignoring case) by {@code name}.
+         * @param name the format name, possibly {@code null}
+         * @return the {@code Format}, or {@code null} if empty or unrecognized
+         */
+        public static Format of(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(Strings.nullToEmpty(name).trim())) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The parts of the file {@code Content} patterns are matched against:
+     * the preview at the head of the file, a tail preview read from the end
+     * of a seekable file, or both (the head followed by the tail).
+     */
+    public enum ContentScope {
+        Head, Tail, Both;
+
+        /**
+         * Returns the {@code ContentScope} named (ignoring case) by {@code name}.
+         * @param name the scope name, possibly {@code null}
+         * @return the {@code ContentScope}, defaulting to {@code Head}
+         */
+        public static ContentScope of(String name) {
+            for (ContentScope scope : values()) {
+                if (scope.name().equalsIgnoreCase(Strings.nullToEmpty(name).trim())) {
+                    return scope;
+                }
+            }
+            return Head;
+        }
+    }
+
+    /**
+     * Options controlling how an {@link InputStream} is previewed and
+     * analyzed, set in fluent style.
+     */
+    public static class Options {
+        private int previewSize = 0;
+        private Charset charset = Charset.defaultCharset();
+        private ContentPrefilter prefilter = null;
+        private long matchTimeout = 0;
+        private long matchSteps = 0;
+        private int streamingWindow = 0;
+        private List<Pattern> contentPatterns = Collections.emptyList();
+        private boolean passThrough = false;
+        private Format format = null;
+        private ContentScope contentScope = ContentScope.Head;
+        private int tailPreviewSize = 0;
+        private File tail = null;
+        private Logger logger = null;
+        private BufferPool pool = BufferPool.shared();
+
+        /**
+         * Returns the number of bytes to preview for content matching.
+         * @return the preview size
+         */
+        public int previewSize() {
+            return previewSize;
+        }
+        /**
+         * Sets the number of bytes to preview for content matching.
+         * @param previewSize the preview size
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options previewSize(int previewSize) {
+            this.previewSize = previewSize;
+            return this;
+        }
+        /**
+         * Returns the {@link Charset} used to decode the preview for
+         * content matching.
+         * @return the preview charset
+         */
+        public Charset charset() {
+            return charset;
+        }
+        /**
+         * Sets the {@link Charset} used to decode the preview for content
+         * matching.  A {@code null} charset selects the platform default.
+         * @param charset the preview charset
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options charset(Charset charset) {
+            this.charset = charset == null ? Charset.defaultCharset() : charset;
+            return this;
+        }
+        /**
+         * Returns the {@link ContentPrefilter} for {@code Content} routes,
+         * or {@code null} if every pattern is to be matched.
+         * @return the prefilter, possibly {@code null}
+         */
+        public ContentPrefilter prefilter() {
+            return prefilter;
+        }
+        /**
+         * Sets the {@link ContentPrefilter} for {@code Content} routes.
+         * @param prefilter the prefilter, possibly {@code null}
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options prefilter(ContentPrefilter prefilter) {
+            this.prefilter = prefilter;
+            return this;
+        }
+        /**
+         * Returns the time budget for a single {@code Content} pattern match.
+         * @return the time budget in milliseconds, {@code 0} for unlimited
+         */
+        public long matchTimeout() {
+            return matchTimeout;
+        }
+        /**
+         * Sets the time budget for a single {@code Content} pattern match.
+         * @param matchTimeout the time budget in milliseconds, {@code 0} for unlimited
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options matchTimeout(long matchTimeout) {
+            this.matchTimeout = matchTimeout;
+            return this;
+        }
+        /**
+         * Returns the step budget (characters examined, including
+         * backtracking) for a single {@code Content} pattern match.
+         * @return the step budget, {@code 0} for unlimited
+         */
+        public long matchSteps() {
+            return matchSteps;
+        }
+        /**
+         * Sets the step budget for a single {@code Content} pattern match.
+         * @param matchSteps the step budget, {@code 0} for unlimited
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options matchSteps(long matchSteps) {
+            this.matchSteps = matchSteps;
+            return this;
+        }
+        /**
+         * Returns the sliding window size (in characters) for streaming
+         * {@code Content} matching, or {@code 0} if {@code Content} patterns
+         * are matched against the preview.
+         * @return the streaming window size
+         */
+        public int streamingWindow() {
+            return streamingWindow;
+        }
+        /**
+         * Sets the sliding window size for streaming {@code Content} matching.
+         * @param streamingWindow the window size in characters, {@code 0} to match against the preview
+         * @return {@code this} to allow for fluent-style setting
+         * @see StreamingContentMatcher
+         */
+        public Options streamingWindow(int streamingWindow) {
+            this.streamingWindow = streamingWindow;
+            return this;
+        }
+        /**
+         * Returns the {@code Content} patterns of the routing table, which
+         * are all searched for in a single pass when streaming.
+         * @return the content patterns
+         */
+        public List<Pattern> contentPatterns() {
+            return contentPatterns;
+        }
+        /**
+         * Sets the {@code Content} patterns of the routing table.
+         * @param contentPatterns the content patterns
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options contentPatterns(List<Pattern> contentPatterns) {
+            this.contentPatterns = contentPatterns == null ? Collections.<Pattern>emptyList() : contentPatterns;
+            return this;
+        }
+        /**
+         * Returns {@code true} if the stream is to be routed as a whole,
+         * without preview or analysis.
+         * @return {@code true} for pass-through
+         */
+        public boolean passThrough() {
+            return passThrough;
+        }
+        /**
+         * Sets pass-through mode, in which the stream is neither previewed
+         * nor analyzed (and so never split), and the single {@link Routable}
+         * has no metadata and matches only routes that match anything.
+         * Use this when no route can make use of the metadata.
+         * @param passThrough {@code true} for pass-through
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options passThrough(boolean passThrough) {
+            this.passThrough = passThrough;
+            return this;
+        }
+        /**
+         * Returns the declared {@link Format} of the stream, or {@code null}
+         * if it is to be detected.
+         * @return the declared format, possibly {@code null}
+         */
+        public Format format() {
+            return format;
+        }
+        /**
+         * Declares the {@link Format} of the stream, so that its parser is
+         * tried first and the other formats are not tested for.  If an
+         * {@code EDI} or {@code HL7} parser rejects the stream, detection
+         * proceeds as usual.
+         * @param format the declared format, {@code null} to detect
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options format(Format format) {
+            this.format = format;
+            return this;
+        }
+        /**
+         * Returns the parts of the file {@code Content} patterns are matched against.
+         * @return the content scope
+         */
+        public ContentScope contentScope() {
+            return contentScope;
+        }
+        /**
+         * Sets the parts of the file {@code Content} patterns are matched
+         * against.  {@code Tail} and {@code Both} need a {@link #tail(File)}
+         * and a {@link #tailPreviewSize(int)}, otherwise only the head is used.
+         * @param contentScope the content scope, {@code null} for {@code Head}
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options contentScope(ContentScope contentScope) {
+            this.contentScope = contentScope == null ? ContentScope.Head : contentScope;
+            return this;
+        }
+        /**
+         * Returns the number of bytes to preview at the end of the file.
+         * @return the tail preview size
+         */
+        public int tailPreviewSize() {
+            return tailPreviewSize;
+        }
+        /**
+         * Sets the number of bytes to preview at the end of the file.
+         * @param tailPreviewSize the tail preview size
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options tailPreviewSize(int tailPreviewSize) {
+            this.tailPreviewSize = tailPreviewSize;
+            return this;
+        }
+        /**
+         * Returns the file the stream is read from, from which the tail
+         * preview is read by seeking, or {@code null} if the stream is not
+         * seekable.
+         * @return the file, possibly {@code null}
+         */
+        public File tail() {
+            return tail;
+        }
+        /**
+         * Sets the file the stream is read from, which must have the same
+         * content as the stream, for reading the tail preview.
+         * @param tail the file, {@code null} if the stream is not seekable
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options tail(File tail) {
+            this.tail = tail;
+            return this;
+        }
+        /**
+         * Returns the {@link Logger} for routing warnings, possibly {@code null}.
+         * @return the logger
+         */
+        public Logger logger() {
+            return logger;
+        }
+        /**
+         * Sets the {@link Logger} for routing warnings.
+         * @param logger the logger, possibly {@code null}
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options logger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+        /**
+         * Returns the {@link BufferPool} the preview and parser buffers are
+         * taken from.
+         * @return the pool
+         */
+        public BufferPool pool() {
+            return pool;
+        }
+        /**
+         * Sets the {@link BufferPool} the preview and parser buffers are
+         * taken from.
+         * @param pool the pool
+         * @return {@code this} to allow for fluent-style setting
+         */
+        public Options pool(BufferPool pool) {
+            this.pool = pool;
+            return this;
+        }
+    }
+
+    /**
+     * A {@link Routable} for an unanalyzed stream: it has no metadata
+     * and matches only routes that match anything.
+     */
+    private static class PassThrough implements Routable {
+        private InputStream in;
+
+        public PassThrough(InputStream in) {
+            this.in = in;
+        }
+        @Override
+        public boolean matches(Route route) {
+            return route.matchesAnything();
+        }
+        @Override
+        public Metadata metadata() {
+            return null;
+        }
+        @Override
+        public InputStream inputStream() {
+            return in;
+        }
+        @Override
+        public boolean whole() {
+            return true;
+        }
     }
 
     private Iterator<Routable> iterator = null;
+    private Closeable closer = null;
 
     /**
      * Previews an {@link InputStream} to determine its routability and
@@ -54,17 +415,72 @@ public class Routables implements Iterable<Routables.Routable> {
      * @throws IOException
      */
     public Routables(InputStream in, int previewSize) throws IOException {
+        this(in, new Options().previewSize(previewSize));
+    }
+
+    /**
+     * Previews an {@link InputStream} to determine its routability and
+     * creates an appropriate iterator over the possibly split portions
+     * of the file.  This iterator can be retrieved once by the {@link #iterator()}
+     * method.
+     * @param in the {@link InputStream} to analyze
+     * @param options the {@link Options} controlling the analysis
+     * @throws IOException
+     */
+    public Routables(InputStream in, Options options) throws IOException {
         this.iterator = Collections.emptyIterator(); // in case we fall through on error
+        if (options.passThrough()) {
+            this.iterator = Collections.<Routable>singletonList(new PassThrough(in)).iterator();
+            this.closer = in;
+            return;
+        }
+        // when streaming, Content is searched beyond the preview, which need only detect EDI and HL7
+        int previewSize = options.streamingWindow() > 0 ? 0 : options.previewSize();
         PreviewInputStream preview = new PreviewInputStream(in,
-                IntStream.of(previewSize, RoutableEDI.PREVIEW_SIZE, RoutableHL7.PREVIEW_SIZE).max().getAsInt());
-        if (RoutableEDI.canRoute(preview)) {
-            this.iterator = RoutableEDI.getIterator(preview);
-        } else if (RoutableHL7.canRoute(preview)) {
-            this.iterator = RoutableHL7.getIterator(preview);
-        } else if (RoutableContent.canRoute(preview)) {
-            this.iterator = RoutableContent.getIterator(preview);
-        } else {
-            // fall through (although this can't currently happen since RoutableContent.canRoute() is always true
+                IntStream.of(previewSize, RoutableEDI.PREVIEW_SIZE, RoutableHL7.PREVIEW_SIZE).max().getAsInt(),
+                options.pool());
+        try {
+            Format format = options.format();
+            if (format == Format.EDI && RoutableEDI.canRoute(preview)) {
+                this.iterator = RoutableEDI.getIterator(preview);
+            } else if (format == Format.HL7 && RoutableHL7.canRoute(preview)) {
+                this.iterator = RoutableHL7.getIterator(preview);
+            } else if (format == Format.Content) {
+                this.iterator = RoutableContent.getIterator(preview, options);
+            } else if (format != Format.EDI && RoutableEDI.canRoute(preview)) {
+                this.iterator = RoutableEDI.getIterator(preview);
+            } else if (format != Format.HL7 && RoutableHL7.canRoute(preview)) {
+                this.iterator = RoutableHL7.getIterator(preview);
+            } else if (RoutableContent.canRoute(preview)) {
+                this.iterator = RoutableContent.getIterator(preview, options);
+            } else {
+                // fall through (although this can't currently happen since RoutableContent.canRoute() is always true
+            }
+        } catch (IOException | RuntimeException e) {
+            preview.close();
+            throw e;
+        }
+        final Iterator<Routable> parser = this.iterator;
+        this.closer = () -> {
+            try {
+                if (parser instanceof Closeable) {
+                    ((Closeable) parser).close();
+                }
+            } finally {
+                preview.close();
+            }
+        };
+    }
+
+    /**
+     * Closes the underlying stream, including any parser reading it,
+     * returning their buffers to the {@link BufferPool}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closer != null) {
+            closer.close();
+            closer = null;
         }
     }
 
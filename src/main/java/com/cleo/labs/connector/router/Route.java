@@ -5,6 +5,7 @@ import com.google.common.base.Strings;
 public class Route {
     private boolean enabled;
     private String filename;
+    private String format;
     private String content;
     private String sender;
     private String receiver;
@@ -17,10 +18,12 @@ public class Route {
     private String function;
     private String type;
     private String destination;
+    private String compress;
 
     public Route() {
         this.enabled = false;
         this.filename = null;
+        this.format = null;
         this.content = null;
         this.sender = null;
         this.receiver = null;
@@ -33,6 +36,30 @@ public class Route {
         this.function = null;
         this.type = null;
         this.destination = null;
+        this.compress = null;
+    }
+
+    /**
+     * Copy constructor.
+     * @param copy the Route to copy
+     */
+    public Route(Route copy) {
+        this.enabled = copy.enabled;
+        this.filename = copy.filename;
+        this.format = copy.format;
+        this.content = copy.content;
+        this.sender = copy.sender;
+        this.receiver = copy.receiver;
+        this.groupSender = copy.groupSender;
+        this.groupReceiver = copy.groupReceiver;
+        this.senderQualifier = copy.senderQualifier;
+        this.receiverQualifier = copy.receiverQualifier;
+        this.groupSenderQualifier = copy.groupSenderQualifier;
+        this.groupReceiverQualifier = copy.groupReceiverQualifier;
+        this.function = copy.function;
+        this.type = copy.type;
+        this.destination = copy.destination;
+        this.compress = copy.compress;
     }
 
     public boolean enabled() {
@@ -49,6 +76,13 @@ public class Route {
         this.filename = filename;
         return this;
     }
+    public String format() {
+        return format;
+    }
+    public Route format(String format) {
+        this.format = format;
+        return this;
+    }
     public String content() {
         return content;
     }
@@ -133,6 +167,21 @@ public class Route {
         this.destination = destination;
         return this;
     }
+    public String compress() {
+        return compress;
+    }
+    public Route compress(String compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if the destination is to be written gzip compressed.
+     * @return {@code true} for a {@code gzip} destination
+     */
+    public boolean gzip() {
+        return "gzip".equalsIgnoreCase(compress);
+    }
 
     /**
      * Returns {@code true} if this route matches anything, meaning
@@ -162,6 +211,9 @@ public class Route {
         if (!Strings.isNullOrEmpty(filename)) {
             sb.append("filename=").append(filename.toString()).append(' ');
         }
+        if (!Strings.isNullOrEmpty(format)) {
+            sb.append("format=").append(format).append(' ');
+        }
         if (!Strings.isNullOrEmpty(content)) {
             sb.append("content=").append(content.toString()).append(' ');
         }
@@ -198,6 +250,9 @@ public class Route {
         if (!Strings.isNullOrEmpty(destination)) {
             sb.append("destination=").append(destination).append(' ');
         }
+        if (!Strings.isNullOrEmpty(compress)) {
+            sb.append("compress=").append(compress).append(' ');
+        }
         if (sb.length()>0) {
             sb.setLength(sb.length()-1);
         }
@@ -6,12 +6,38 @@ import static com.cleo.connector.api.command.ConnectorCommandOption.Delete;
 import static com.cleo.connector.api.command.ConnectorCommandOption.Unique;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributeView;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.commons.io.FilenameUtils;
@@ -23,9 +49,14 @@ import com.cleo.connector.api.command.ConnectorCommandResult;
 import com.cleo.connector.api.command.ConnectorCommandUtil;
 import com.cleo.connector.api.command.PutCommand;
 import com.cleo.connector.api.interfaces.IConnectorOutgoing;
+import com.cleo.connector.api.property.ConnectorPropertyException;
 import com.cleo.labs.connector.router.Routables.Routable;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class RouterConnectorClient extends ConnectorClient {
     private RouterConnectorConfig config;
@@ -52,49 +83,708 @@ public class RouterConnectorClient extends ConnectorClient {
         this.fileFactory = fileFactory;
     }
 
+    /**
+     * The highest uniqueness counter claimed so far for each expanded
+     * destination, so that the next file routed to a busy destination
+     * can start where the last one left off instead of probing from
+     * {@code 1} again.
+     */
+    private static final Map<String,AtomicInteger> uniqueCounters = new ConcurrentHashMap<>();
+    private static final int UNIQUE_COUNTERS_SIZE = 10000;
+
     /**
      * Expands {@code destination} using {@code engine}.  If {@code unique} is set,
-     * the expanded destination will be tested for existence, with a uniqueness
-     * counter (1, 2, ...) inserted until a non-existing filename is achieved.  The
+     * the expanded destination is claimed with {@link RouterFileFactory#reserve(String)},
+     * with a uniqueness counter (1, 2, ...) inserted until a claim succeeds.  The
      * location of the uniqueness token is determined either by the {@code ${unique}}
      * token being expanded in the destination expression, or for expressions that
      * do not appear to incorporate {@code ${unique}}, the filename have the counter
      * inserted before the filename extension.
+     * <p/>
+     * The counters claimed are remembered for each expanded destination, so
+     * a destination that collects many files costs one claim per file,
+     * and concurrent commands never try the same counter.
      * @param engine the {@link MacroEngine} engine used for expansion
-     * @param destination the destination filename expression
+     * @param destination the compiled destination filename expression
      * @param unique the {@code -UNI} flag to {@code PUT}
      * @return an expanded destination, uniquely if so requested
+     * @throws Exception if the destination can not be claimed
      */
-    private String uniquely (MacroEngine engine, String destination, boolean unique) {
-        String output = engine.expand(destination);
-        if (unique && !Strings.isNullOrEmpty(output)) {
-            File file = fileFactory.getFile(output);
-            int counter = 0;
-            String candidate = output;
+    private String uniquely (MacroEngine engine, MacroEngine.Template destination, boolean unique) throws Exception {
+        String output = destination.expand(engine);
+        if (unique && !Strings.isNullOrEmpty(output) && !fileFactory.reserve(output)) {
+            if (uniqueCounters.size() >= UNIQUE_COUNTERS_SIZE) {
+                uniqueCounters.clear();
+            }
+            AtomicInteger counters = uniqueCounters.computeIfAbsent(output, (k) -> new AtomicInteger());
             boolean justSliceIt = false; // when true, forget the engine and use string slicing
             String base = ""; // when justSliceIt, the base of the filename
             String ext = ""; // when justSliceIt, the extension of the filename
-            while (file.exists()) {
+            String candidate;
+            try {
+                do {
+                    int counter = counters.incrementAndGet();
+                    candidate = null;
+                    if (!justSliceIt) {
+                        engine.unique("."+counter);
+                        candidate = destination.expand(engine);
+                        if (candidate.equals(output)) {
+                            justSliceIt = true;
+                            // ${unique} not in pattern -- use traditional .extension
+                            ext = FilenameUtils.getExtension(output).replaceFirst("^(?=[^\\.])","."); // prefix with "." unless empty or already "."
+                            base = output.substring(0, output.length()-ext.length());
+                        }
+                    }
+                    if (justSliceIt) {
+                        candidate = base+"."+counter+ext;
+                    }
+                } while (!fileFactory.reserve(candidate));
+            } finally {
+                engine.unique(null); // reset it for the next file, even if a claim failed
+            }
+            output = candidate;
+        }
+        return output;
+    }
+
+    /**
+     * Expands {@code destination} as {@link #uniquely(MacroEngine, MacroEngine.Template, boolean)}
+     * does, unless {@code open} is consolidating destinations and the same
+     * expansion was already claimed earlier in the {@code PUT}, in which case
+     * the file claimed then is reused.
+     * @param engine the {@link MacroEngine} engine used for expansion
+     * @param destination the compiled destination filename expression
+     * @param unique the {@code -UNI} flag to {@code PUT}
+     * @param open the destinations kept open for the {@code PUT}, or {@code null}
+     * @return an expanded destination
+     * @throws Exception if the destination can not be claimed
+     */
+    private String claim(MacroEngine engine, MacroEngine.Template destination, boolean unique, OpenDestinations open) throws Exception {
+        if (open == null) {
+            return uniquely(engine, destination, unique);
+        }
+        String expansion = destination.expand(engine);
+        String claimed = open.claimed(expansion);
+        if (claimed == null) {
+            claimed = uniquely(engine, destination, unique);
+            if (!Strings.isNullOrEmpty(claimed)) {
+                open.claim(expansion, claimed);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * An interchange on its way through the stages of {@link #put(PutCommand)}:
+     * the destinations its routes matched, each with the metadata of its own
+     * route (with that route's {@code Filename} captures), the engine state
+     * they were expanded with, the files they expanded to and, when pipelined, its
+     * content read ahead.  A staged destination expands to the file it is
+     * staged beside, with the counter it is to be named with later.
+     */
+    private static class Routed {
+        private Routable routable = null;
+        private final List<MacroEngine.Template> destinations = new ArrayList<>();
+        private final List<Route> matched = new ArrayList<>();
+        private final List<Metadata> metadatas = new ArrayList<>();
+        private boolean hasMetadata = false;
+        private Metadata metadata = null;
+        private String counter = null;
+        private List<String> expanded = Collections.emptyList();
+        private List<String> staged = Collections.emptyList();
+        private InterchangeBuffer content = null;
+    }
+
+    /**
+     * A destination written under a temporary name, waiting to be
+     * {@link Routing#commit() committed} under the name its template expands
+     * to once the end-of-stream tokens are known.
+     */
+    private static class Staged {
+        private final Path temp;
+        private final MacroEngine.Template template;
+        private final Metadata metadata;
+        private final String counter;
+        private String size = null;
+        private String sha256 = null;
+        private String segments = null;
+        private String trailer = null;
+
+        private Staged(Path temp, MacroEngine.Template template, Metadata metadata, String counter) {
+            this.temp = temp;
+            this.template = template;
+            this.metadata = metadata;
+            this.counter = counter;
+        }
+    }
+
+    /**
+     * The routing state of a single {@code PUT}, divided into the stages
+     * each interchange goes through: {@link #match(Routable) matching} the
+     * routes, {@link #expand(Routed) expanding} the destinations and
+     * {@link #write(Routed, InputStream) writing} them.  The stages may run
+     * on different threads, one interchange after another, so expansions
+     * hold the lock of the shared {@link MacroEngine}.
+     */
+    private class Routing {
+        private final String filename;
+        private final RoutingTable table;
+        private final Route[] routes;
+        private final FilenameMetadata[] captures;
+        private final Route[] residuals;
+        private final boolean adaptive;
+        private final boolean unique;
+        private final MacroEngine engine;
+        private final OpenDestinations open;
+        private final File local;
+        private final CountingInputStream counted;
+        private final boolean link;
+        private final boolean firstOnly;
+        private final String errorDestination;
+        private final int depth;
+        private final long stallTimeout;
+        private final int retries;
+        private final int chunkSize;
+        private final boolean staging;
+        private final BufferPool buffers;
+        private int counter = 0;
+        private boolean nomatch = false; // this will be set true if any stream is not routable
+        private final List<String> stalled = new ArrayList<>(); // destinations detached for background delivery
+        private final List<Staged> staged = new ArrayList<>(); // destinations written, not yet committed
+        private final Set<String> reserved = ConcurrentHashMap.newKeySet(); // unique filenames claimed, not yet opened
+
+        private Routing(String filename, RoutingTable table, Route[] routes, FilenameMetadata[] captures,
+                Route[] residuals, boolean adaptive, boolean unique, MacroEngine engine, OpenDestinations open,
+                File local, CountingInputStream counted, BufferPool buffers) throws ConnectorPropertyException {
+            this.filename = filename;
+            this.table = table;
+            this.routes = routes;
+            this.captures = captures;
+            this.residuals = residuals;
+            this.adaptive = adaptive;
+            this.unique = unique;
+            this.engine = engine;
+            this.open = open;
+            this.local = local;
+            this.counted = counted;
+            this.buffers = buffers;
+            this.link = config.getLinkDestinations();
+            this.firstOnly = config.getRouteToFirstMatchingRouteOnly();
+            this.errorDestination = config.getErrorDestination();
+            this.depth = config.getFanOutQueueDepth();
+            this.staging = open == null && config.getStagedCommit(); // consolidated destinations are claimed up front
+            this.stallTimeout = open == null && !staging ? config.getStallTimeout() : 0; // spool would replace earlier interchanges
+            this.retries = config.getDeliveryRetries();
+            this.chunkSize = config.getWriteChunkSize();
+        }
+
+        /**
+         * Collects the unevaluated destinations of the routes matching
+         * {@code routable}.
+         * @param routable the interchange
+         * @return the matched interchange
+         */
+        private Routed match(Routable routable) {
+            if (routable.metadata() != null) {
+                logger.debug(String.format("new routable metadata: %s", routable.metadata().toString()));
+            }
+            Routed routed = new Routed();
+            routed.routable = routable;
+            for (int i = 0; i < routes.length; i++) {
+                Route route = routes[i];
+                FilenameMetadata captured = captures[i];
+                logger.debug(String.format("matching %s for route %s", filename, route.toString()));
+                if ((captured == null || captured.matches(route)) &&
+                        (routable.matches(residuals[i]) || residuals[i].matchesAnything())) {
+                    // metadata not necessarily available until matches()
+                    Metadata metadata = captured == null ? routable.metadata() : captured.overlay(routable.metadata());
+                    routed.hasMetadata = true;
+                    routed.metadata = metadata;
+                    if (metadata != null) {
+                        logger.debug(String.format("matched metadata: %s", metadata.toString()));
+                    }
+                    if (!Strings.isNullOrEmpty(route.destination())) {
+                        routed.destinations.add(table.template(route.destination()));
+                        routed.matched.add(route);
+                        routed.metadatas.add(metadata);
+                    }
+                }
+            }
+            return routed;
+        }
+
+        /**
+         * Evaluates the matched destinations, inserting the counters.
+         * Interchanges must be expanded in order.  When staging, a local
+         * destination is not claimed yet: it expands without the
+         * end-of-stream tokens, just to find the directory to stage it in.
+         * @param routed the matched interchange
+         */
+        private void expand(Routed routed) {
+            synchronized (engine) {
+                List<MacroEngine.Template> destinations = routed.destinations;
+                List<String> expanded = new ArrayList<>(Collections.nCopies(destinations.size(), (String) null));
+                List<String> counters = new ArrayList<>(Collections.nCopies(destinations.size(), (String) null));
+                int subcounter = 0;
+                for (int d = 0; d < destinations.size(); d++) {
+                    engine.metadata(routed.metadatas.get(d)); // with its own route's captures
+                    if (destinations.size() == 1 || firstOnly) {
+                        engine.counter(String.valueOf(counter+1));
+                    } else {
+                        engine.counter(String.valueOf(counter+1)+"."+String.valueOf(subcounter+1));
+                    }
+                    String output;
+                    try {
+                        output = null;
+                        if (staging) {
+                            output = Strings.emptyToNull(destinations.get(d).expand(engine));
+                            if (output != null && fileFactory.path(output) != null) {
+                                counters.set(d, engine.counter());
+                            } else {
+                                output = null;
+                            }
+                        }
+                        if (output == null) {
+                            output = Strings.emptyToNull(claim(engine, destinations.get(d), unique, open));
+                            if (unique && output != null) {
+                                reserved.add(output);
+                            }
+                        }
+                    } catch (Exception e) {
+                        logger.logWarning(String.format("Destination '%s' skipped due to error: %s", destinations.get(d), e.getMessage()));
+                        output = null;
+                    }
+                    expanded.set(d, output);
+                    if (output != null) {
+                        logger.debug(String.format("routing file to: %s", output));
+                        subcounter++;
+                        if (firstOnly) {
+                            if (adaptive && table.hit(routed.matched.get(d))) {
+                                logger.debug(String.format("adaptive route order changed: %s", table.describeOrder()));
+                            }
+                            // after first match leave the rest of them, if any, null
+                            break;
+                        }
+                    }
+                }
                 counter++;
-                if (!justSliceIt) {
-                    engine.unique("."+counter);
-                    candidate = engine.expand(destination);
-                    if (candidate.equals(output)) {
-                        justSliceIt = true;
-                        // ${unique} not in pattern -- use traditional .extension
-                        ext = FilenameUtils.getExtension(output).replaceFirst("^(?=[^\\.])","."); // prefix with "." unless empty or already "."
-                        base = output.substring(0, output.length()-ext.length());
+                routed.expanded = expanded;
+                routed.staged = counters;
+                // remembered for the error destination
+                if (routed.hasMetadata) {
+                    engine.metadata(routed.metadata);
+                }
+                routed.metadata = engine.metadata();
+                routed.counter = engine.counter();
+            }
+        }
+
+        /**
+         * Opens the expanded destinations, or the error destination if
+         * there are none, and writes the interchange to them.  Staged
+         * destinations are written to a temporary file in the directory
+         * they expanded to, while the size and hash of the interchange are
+         * computed for their final names.
+         * @param routed the expanded interchange
+         * @param in the interchange content
+         * @param whole {@code true} if {@code in} is the whole source stream
+         * @throws IOException
+         */
+        private void write(Routed routed, InputStream in, boolean whole) throws IOException {
+            List<String> names = new ArrayList<>();
+            List<Boolean> gzip = new ArrayList<>();
+            List<Path> temps = new ArrayList<>();
+            List<OutputStream> opened = new ArrayList<>();
+            List<String> linked = new ArrayList<>();
+            List<Staged> staging = new ArrayList<>();
+            boolean linking = linking(routed);
+            for (int d = 0; d < routed.expanded.size(); d++) {
+                String f = routed.expanded.get(d);
+                if (f != null && !(open != null && names.contains(f))) {
+                    if (linking && !names.isEmpty()) {
+                        // only the first is written, the rest are linked to it
+                        if (!fileFactory.path(f).equals(fileFactory.path(names.get(0)))) {
+                            linked.add(f);
+                        }
+                        continue;
+                    }
+                    try {
+                        boolean compress = routed.matched.get(d).gzip();
+                        if (routed.staged.get(d) != null) {
+                            Path directory = fileFactory.path(f).getParent();
+                            Files.createDirectories(directory);
+                            Path temp = Files.createTempFile(directory, ".router-", ".part");
+                            Staged stage = new Staged(temp, routed.destinations.get(d), routed.metadatas.get(d), routed.staged.get(d));
+                            staged.add(stage); // discarded if not committed
+                            opened.add(compress(new FileOutputStream(temp.toFile()), compress));
+                            staging.add(stage);
+                            names.add(temp.toString());
+                            temps.add(temp);
+                        } else {
+                            opened.add(compress(open == null ? fileFactory.getOutputStream(f) : open.stream(f), compress));
+                            reserved.remove(f); // opened: even left empty, it is a destination now
+                            names.add(f);
+                            temps.add(null);
+                        }
+                        gzip.add(compress);
+                    } catch (Exception e) {
+                        logger.logWarning(String.format("Destination '%s' skipped due to error: %s", f, e.getMessage()));
                     }
                 }
-                if (justSliceIt) {
-                    candidate = base+"."+counter+ext;
+            }
+            OutputStream[] outputs = opened.toArray(new OutputStream[opened.size()]);
+            if (outputs.length == 0)  {
+                if (!Strings.isNullOrEmpty(errorDestination)) {
+                    String output = null;
+                    try {
+                        synchronized (engine) {
+                            engine.metadata(routed.metadata).counter(routed.counter);
+                            output = claim(engine, MacroEngine.Template.compile(errorDestination), unique, open);
+                        }
+                        if (unique && !Strings.isNullOrEmpty(output)) {
+                            reserved.add(output);
+                        }
+                        logger.debug(String.format("routing file to error destination: %s", output));
+                        outputs = new OutputStream[] {open == null ? fileFactory.getOutputStream(output) : open.stream(output)};
+                        reserved.remove(output);
+                        names.add(output);
+                        gzip.add(false);
+                        temps.add(null);
+                    } catch (Exception e) {
+                        logger.logWarning(String.format("Error Destination '%s' ignored due to error: %s", output, e.getMessage()));
+                        // well, we tried
+                    }
+                }
+            }
+            FileChannel[] channels = whole && staging.isEmpty() ? channels(names, outputs) : null;
+            MessageDigest sha256 = null;
+            CountingInputStream size = null;
+            if (!staging.isEmpty()) {
+                sha256 = sha256();
+                size = new CountingInputStream(new DigestInputStream(in, sha256));
+                in = size;
+            }
+            if (outputs.length == 0) {
+                nomatch = true;
+                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            } else if (channels != null) {
+                transferLocal(in, outputs, channels);
+            } else {
+                ParallelOutputStream out = new ParallelOutputStream(outputs)
+                        .depth(depth)
+                        .stallTimeout(stallTimeout)
+                        .retries(retries)
+                        .reopen((i) -> compress(temps.get(i) != null ? new FileOutputStream(temps.get(i).toFile())
+                                : fileFactory.getOutputStream(names.get(i)), gzip.get(i)))
+                        .delivered((i, e) -> {
+                            if (e == null) {
+                                logger.debug(String.format("delivered stalled destination: %s", names.get(i)));
+                            } else {
+                                logger.logError(String.format("Stalled destination '%s' not delivered due to error: %s",
+                                        names.get(i), e.getMessage()));
+                            }
+                        });
+                try {
+                    transfer(in, chunkSize > 0 ? new CoalescingOutputStream(out, chunkSize, buffers) : out, false);
+                } finally {
+                    for (int i : out.detached()) {
+                        logger.logWarning(String.format("Destination '%s' stalled and is being delivered in the background",
+                                names.get(i)));
+                        stalled.add(names.get(i));
+                    }
+                }
+            }
+            if (!linked.isEmpty()) {
+                link(names.get(0), linked);
+            }
+            if (!staging.isEmpty()) {
+                String hash = BaseEncoding.base16().lowerCase().encode(sha256.digest());
+                String segments = null;
+                String trailer = null;
+                if (routed.routable instanceof RoutableEDI) {
+                    RoutableEDI edi = (RoutableEDI) routed.routable;
+                    segments = String.valueOf(edi.segments());
+                    trailer = edi.trailer();
+                }
+                for (Staged stage : staging) {
+                    stage.size = String.valueOf(size.getCount());
+                    stage.sha256 = hash;
+                    stage.segments = segments;
+                    stage.trailer = trailer;
                 }
-                file = fileFactory.getFile(candidate);
             }
-            output = candidate;
-            engine.unique(null); // reset it for the next file
         }
-        return output;
+
+        private MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // every Java platform must support SHA-256
+            }
+        }
+
+        /**
+         * Commits the staged destinations at the end of the {@code PUT}.
+         * The staged files are synced to disk together, then each is named:
+         * its destination is expanded, claiming a unique name if asked,
+         * with the end-of-stream tokens of its interchange, and the staged
+         * file is renamed to it atomically, replacing any file there.  The
+         * directories renamed into are synced last, once each.  A destination
+         * that fails does not stop the others, and the first failure is
+         * thrown once they are all done.
+         * @throws IOException
+         */
+        private void commit() throws IOException {
+            IOException first = null;
+            List<Staged> synced = new ArrayList<>();
+            for (Staged stage : staged) {
+                try (FileChannel channel = FileChannel.open(stage.temp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                    synced.add(stage);
+                } catch (IOException e) {
+                    first = collect(first, e);
+                }
+            }
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Staged stage : synced) {
+                String output = null;
+                try {
+                    synchronized (engine) {
+                        engine.metadata(stage.metadata).counter(stage.counter)
+                                .size(stage.size).sha256(stage.sha256)
+                                .segments(stage.segments).trailer(stage.trailer);
+                        try {
+                            output = uniquely(engine, stage.template, unique);
+                            if (unique && !Strings.isNullOrEmpty(output)) {
+                                reserved.add(output);
+                            }
+                        } finally {
+                            engine.size(null).sha256(null).segments(null).trailer(null);
+                        }
+                    }
+                    Path target = Strings.isNullOrEmpty(output) ? null : fileFactory.path(output);
+                    if (target == null) {
+                        throw new IOException("staged destination expanded to '"+output+"', not a local file");
+                    }
+                    Files.createDirectories(target.getParent());
+                    move(stage.temp, target);
+                    reserved.remove(output);
+                    directories.add(target.getParent());
+                    logger.debug(String.format("committed staged destination: %s", output));
+                } catch (Exception e) {
+                    logger.logWarning(String.format("Staged destination '%s' not committed due to error: %s",
+                            output == null ? stage.temp : output, e.getMessage()));
+                    first = collect(first, e instanceof IOException ? (IOException) e : new IOException(e));
+                }
+            }
+            for (Path directory : directories) {
+                try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                    channel.force(true);
+                } catch (IOException e) {
+                    // not every platform can open a directory to sync it
+                }
+            }
+            discard();
+            if (first != null) {
+                throw first;
+            }
+        }
+
+        /**
+         * Deletes the staged files not committed, and gives up the unique
+         * filenames claimed for destinations that were never written.
+         */
+        private void discard() {
+            for (Staged stage : staged) {
+                stage.temp.toFile().delete();
+            }
+            staged.clear();
+            for (String f : reserved) {
+                try {
+                    fileFactory.release(f);
+                } catch (Exception e) {
+                    logger.debug(String.format("reserved destination '%s' not released: %s", f, e.getMessage()));
+                }
+            }
+            reserved.clear();
+        }
+
+        /**
+         * Returns {@code true} if the expanded destinations are to be
+         * written once and linked: linking is enabled, and there are several
+         * destinations, all of them local files compressed alike and none
+         * consolidated.
+         * @param routed the expanded interchange
+         * @return {@code true} to link the destinations
+         */
+        private boolean linking(Routed routed) {
+            if (!link || open != null || staging) {
+                return false;
+            }
+            List<Integer> destinations = IntStream.range(0, routed.expanded.size())
+                    .filter((d) -> routed.expanded.get(d) != null)
+                    .boxed()
+                    .collect(Collectors.toList());
+            return destinations.size() > 1 &&
+                    destinations.stream().allMatch((d) -> fileFactory.path(routed.expanded.get(d)) != null) &&
+                    destinations.stream().map((d) -> routed.matched.get(d).gzip()).distinct().count() == 1;
+        }
+
+        /**
+         * Wraps {@code os} to compress what is written to it, if asked to.
+         * Compression runs on the thread writing the destination, with
+         * the blocks compressed in parallel, so it does not hold up the
+         * other destinations.
+         * @param os the destination
+         * @param gzip {@code true} to gzip the destination
+         * @return the stream to write the destination with
+         */
+        private OutputStream compress(OutputStream os, boolean gzip) {
+            return gzip ? new ParallelGzipOutputStream(os, buffers) : os;
+        }
+
+        /**
+         * Creates each of the {@code linked} destinations as a hard link to
+         * the destination {@code target} just written, or where the file
+         * system can not link them (across file systems, for example) as a
+         * copy of it.  The link is made under a temporary name and renamed
+         * over the destination, so a destination claimed with {@code -UNI}
+         * stays claimed throughout.  As with {@link ParallelOutputStream}, a
+         * destination that fails does not stop the others, and the first
+         * failure is thrown once they are all done.
+         * <p/>
+         * A linked destination depends on the one written: if that can not be
+         * opened the next destination is written instead, but if writing it
+         * fails the interchange has been read and the linked destinations are
+         * not created (their {@code -UNI} claims are released at the end of
+         * the {@code PUT}).
+         * @param target the written destination
+         * @param linked the destinations to link to it
+         * @throws IOException
+         */
+        private void link(String target, List<String> linked) throws IOException {
+            Path from = fileFactory.path(target);
+            IOException first = null;
+            for (String f : linked) {
+                Path to = fileFactory.path(f);
+                Path temp = null;
+                try {
+                    Files.createDirectories(to.getParent());
+                    temp = Files.createTempFile(to.getParent(), ".router-", ".link");
+                    Files.delete(temp);
+                    try {
+                        Files.createLink(temp, from);
+                        logger.debug(String.format("linked destination %s to %s", f, target));
+                    } catch (FileSystemException | UnsupportedOperationException e) {
+                        Files.copy(from, temp);
+                        logger.debug(String.format("copied destination %s from %s", f, target));
+                    }
+                    move(temp, to);
+                    reserved.remove(f);
+                } catch (IOException e) {
+                    first = collect(first, e);
+                    if (temp != null) {
+                        temp.toFile().delete();
+                    }
+                }
+            }
+            if (first != null) {
+                throw first;
+            }
+        }
+
+        /**
+         * Returns the channels of the {@code outputs} if the source can be
+         * copied to them directly: the source is a local file, and so is
+         * every destination, none of them consolidated or watched for stalls.
+         * @param names the destination filenames
+         * @param outputs the destinations
+         * @return the channels, or {@code null} to write the destinations from the stream
+         */
+        private FileChannel[] channels(List<String> names, OutputStream[] outputs) {
+            if (local == null || open != null || stallTimeout > 0 || outputs.length == 0) {
+                return null;
+            }
+            FileChannel[] channels = new FileChannel[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                channels[i] = fileFactory.path(names.get(i)) == null ? null : fileFactory.channel(outputs[i]);
+                if (channels[i] == null) {
+                    return null;
+                }
+            }
+            return channels;
+        }
+
+        /**
+         * Copies the whole source to local destinations.  Only the bytes
+         * already read from the source, for previewing and matching, are
+         * written from {@code in}: the rest of the source file is copied to
+         * each destination with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+         * so the operating system moves the data without passing it through
+         * the heap.  As with {@link ParallelOutputStream}, a destination that
+         * fails does not stop the others, and the first failure is thrown
+         * once all the destinations are closed.
+         * @param in the routable stream, the whole source
+         * @param outputs the destinations
+         * @param channels the channels of the destinations
+         * @throws IOException
+         */
+        private void transferLocal(InputStream in, OutputStream[] outputs, FileChannel[] channels) throws IOException {
+            long prefix = counted.getCount();
+            IOException[] errors = new IOException[outputs.length];
+            byte[] buf = buffers.acquire(LOCAL_BUFFER);
+            try (FileChannel source = FileChannel.open(local.toPath(), StandardOpenOption.READ)) {
+                InputStream head = ByteStreams.limit(in, prefix);
+                int n;
+                while ((n = head.read(buf)) >= 0) {
+                    for (int i = 0; i < outputs.length; i++) {
+                        if (errors[i] == null) {
+                            try {
+                                outputs[i].write(buf, 0, n);
+                            } catch (IOException e) {
+                                errors[i] = e;
+                            }
+                        }
+                    }
+                }
+                long size = source.size();
+                for (int i = 0; i < outputs.length; i++) {
+                    if (errors[i] == null) {
+                        try {
+                            outputs[i].flush();
+                            for (long position = prefix; position < size; ) {
+                                long transferred = source.transferTo(position, size-position, channels[i]);
+                                if (transferred <= 0) {
+                                    throw new IOException("source file '"+local+"' changed while routing");
+                                }
+                                position += transferred;
+                            }
+                        } catch (IOException e) {
+                            errors[i] = e;
+                        }
+                    }
+                }
+            } finally {
+                buffers.release(buf);
+                for (int i = 0; i < outputs.length; i++) {
+                    // keep trying to close them all even if one throws an exception
+                    try {
+                        outputs[i].close();
+                    } catch (IOException e) {
+                        if (errors[i] == null) {
+                            errors[i] = e;
+                        }
+                    }
+                }
+            }
+            IOException first = null;
+            for (IOException e : errors) {
+                first = collect(first, e);
+            }
+            if (first != null) {
+                throw first;
+            }
+        }
     }
 
     /**
@@ -130,97 +820,262 @@ public class RouterConnectorClient extends ConnectorClient {
         boolean unique = config.getForceUnique() ||
                 ConnectorCommandUtil.isOptionOn(put.getOptions(), Unique);
 
-        Route[] routes = Stream.of(config.getRoutes())
+        RoutingTable table = config.getRoutingTable();
+        boolean adaptive = config.getRouteToFirstMatchingRouteOnly() && config.getAdaptiveRouteOrdering();
+        if (adaptive) {
+            logger.debug(String.format("adaptive route order: %s", table.describeOrder()));
+        }
+
+        Route[] routes = Stream.of(adaptive ? table.ordered() : table.routes())
                 .filter(Route::enabled)
                 .filter((r) -> Strings.isNullOrEmpty(r.filename()) || filename.matches(r.filename()))
                 .toArray(Route[]::new);
+        FilenameMetadata[] captures = Stream.of(routes)
+                .map((r) -> FilenameMetadata.of(r, filename))
+                .toArray(FilenameMetadata[]::new);
+        Route[] residuals = new Route[routes.length];
+        for (int i = 0; i < routes.length; i++) {
+            residuals[i] = captures[i] == null ? routes[i] : captures[i].residual(routes[i]);
+        }
 
-        boolean nomatch = false; // this will be set true if any stream is not routable
-        MacroEngine engine = new MacroEngine().filename(filename);
-        int counter = 0;
+        // a format declared by every candidate route skips detection (an undeclared format means detect)
+        List<Routables.Format> formats = Stream.of(routes)
+                .map((r) -> Routables.Format.of(r.format()))
+                .distinct()
+                .collect(Collectors.toList());
+        Routables.Format format = formats.size() == 1 ? formats.get(0) : null;
 
-        for (Routable routable : new Routables(source.getStream(), config.getPreviewSize())) {
-            if (routable.metadata() != null) {
-                logger.debug(String.format("new routable metadata: %s", routable.metadata().toString()));
-            }
-            List<String> destinations = new ArrayList<>();
-            // first collect unevaluated destinations
-            for (Route route : routes) {
-                logger.debug(String.format("matching %s for route %s", filename, route.toString()));
-                if (routable.matches(route) || route.matchesAnything()) {
-                    engine.metadata(routable.metadata()); // metadata not necessarily available until matches()
-                    if (routable.metadata() != null) {
-                        logger.debug(String.format("matched metadata: %s", routable.metadata().toString()));
-                    }
-                    if (!Strings.isNullOrEmpty(route.destination())) {
-                        destinations.add(route.destination());
+        MacroEngine engine = new MacroEngine().filename(filename).javascript(config.getJavaScriptDestinations()).logger(logger);
+        if (engine.javascript()) {
+            table.prewarm();
+        }
+
+        // the tail preview and direct copies need a seekable source: a local file
+        File local = null;
+        if (!Strings.isNullOrEmpty(source.getPath()) && new File(source.getPath()).isFile()) {
+            local = new File(source.getPath());
+        }
+        File tail = null;
+        if (config.getContentScope() != Routables.ContentScope.Head && config.getTailPreviewSize() > 0) {
+            tail = local;
+        }
+
+        Routables.Options options = new Routables.Options()
+                .previewSize(config.getPreviewSize())
+                .charset(config.getPreviewCharset())
+                .contentScope(config.getContentScope())
+                .tailPreviewSize(config.getTailPreviewSize())
+                .tail(tail)
+                .prefilter(table.prefilter())
+                .matchTimeout(config.getContentMatchTimeout())
+                .matchSteps(config.getContentMatchSteps())
+                .streamingWindow(config.getStreamingContent() ? config.getStreamingWindowSize() : 0)
+                .contentPatterns(table.contentPatterns())
+                .format(format)
+                .passThrough(!config.getAlwaysSplitEDI() &&
+                        !MacroEngine.usesMetadata(config.getErrorDestination()) &&
+                        IntStream.range(0, routes.length).allMatch((i) -> residuals[i].matchesAnything() &&
+                                !MacroEngine.usesMetadata(routes[i].destination(),
+                                        captures[i] == null ? Collections.emptySet() : captures[i].captured())))
+                .logger(logger)
+                .pool(BufferPool.of(config.getBufferMemoryBudget()));
+
+        int consolidate = config.getConsolidateDestinations();
+        long pipelined = options.passThrough() ? 0 : config.getPipelineBufferSize();
+        // admitted before taking any buffers: once admitted, a transfer never waits for them
+        long need = (long) options.previewSize() + options.tailPreviewSize() + config.getWriteChunkSize() +
+                PIPELINE_HELD * pipelined;
+        Routing routing;
+        CountingInputStream counted = new CountingInputStream(source.getStream());
+        try (BufferPool.Admission admission = options.pool().admit(need);
+                OpenDestinations open = consolidate > 0 ? new OpenDestinations(fileFactory, consolidate) : null;
+                Routables routables = new Routables(counted, options)) {
+            routing = new Routing(filename, table, routes, captures, residuals, adaptive, unique, engine, open,
+                    local, counted, options.pool());
+            try {
+                if (pipelined > 0) {
+                    pipeline(routing, routables, pipelined);
+                } else {
+                    for (Routable routable : routables) {
+                        Routed routed = routing.match(routable);
+                        routing.expand(routed);
+                        routing.write(routed, routable.inputStream(), routable.whole());
                     }
                 }
+                routing.commit();
+            } finally {
+                routing.discard();
             }
-            // now evaluate them, inserting the counters
-            int subcounter = 0;
-            for (int d = 0; d < destinations.size(); d++) {
-                if (destinations.size() == 1 || config.getRouteToFirstMatchingRouteOnly()) {
-                    engine.counter(String.valueOf(counter+1));
-                } else {
-                    engine.counter(String.valueOf(counter+1)+"."+String.valueOf(subcounter+1));
-                }
-                String output = Strings.emptyToNull(uniquely(engine, destinations.get(d), unique));
-                destinations.set(d, output);
-                if (output != null) {
-                    logger.debug(String.format("routing file to: %s", output));
-                    subcounter++;
-                    if (config.getRouteToFirstMatchingRouteOnly()) {
-                        // after first match null out the rest of them, if any
-                        for (int extra = d+1; extra < destinations.size(); extra++) {
-                            destinations.set(extra, null);
-                        }
-                        break;
-                    }
+        }
+
+        logger.debug(String.format("router metrics: %s", RouterMetrics.describe()));
+
+        if (routing.nomatch) {
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
+                    String.format("No matching routes found for '%s'.", filename));
+        } else if (!routing.stalled.isEmpty()) {
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success,
+                    String.format("Stalled destinations are being delivered in the background: %s.",
+                            Joiner.on(", ").join(routing.stalled)));
+        } else {
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
+        }
+    }
+
+    /**
+     * The buffer for the part of a local source written from the heap.
+     */
+    private static final int LOCAL_BUFFER = 64 * 1024;
+
+    /**
+     * The number of interchanges queued between the stages of a pipelined
+     * {@code PUT}.
+     */
+    private static final int PIPELINE_DEPTH = 4;
+
+    /**
+     * The most interchanges a pipelined {@code PUT} holds read ahead at
+     * once: a full queue between each pair of stages, one waiting to be
+     * queued by each of the first two stages, and one being written.
+     */
+    private static final int PIPELINE_HELD = 2*PIPELINE_DEPTH + 3;
+
+    /**
+     * Marks the end of the interchanges queued between pipeline stages.
+     */
+    private static final Routed END = new Routed();
+
+    /**
+     * Routes the interchanges in three stages connected by bounded queues,
+     * so that the source is parsed while earlier interchanges are written.
+     * The source is parsed, matched against the routes and read ahead into
+     * {@link InterchangeBuffer InterchangeBuffers} on one thread, the
+     * destinations are expanded on a second, and the destinations are opened
+     * and written on the caller's thread.  The interchanges stay in order
+     * through the stages, so each gets the same {@code ${counter}} as it
+     * would routed in turn.
+     * @param routing the routing state of the {@code PUT}
+     * @param routables the interchanges to route
+     * @param memory the most bytes of each interchange to read ahead into memory
+     * @throws IOException if the source can not be read or a destination written
+     */
+    private void pipeline(Routing routing, Routables routables, long memory) throws IOException {
+        BlockingQueue<Routed> matched = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        BlockingQueue<Routed> expanded = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean abandoned = new AtomicBoolean(false);
+        CountDownLatch stopped = new CountDownLatch(2);
+        ParallelOutputStream.executor.execute(() -> {
+            try {
+                Iterator<Routable> iterator = routables.iterator();
+                while (!abandoned.get() && iterator.hasNext()) {
+                    Routable routable = iterator.next();
+                    Routed routed = routing.match(routable);
+                    routed.content = new InterchangeBuffer(routable.inputStream(), memory, routing.buffers);
+                    Uninterruptibles.putUninterruptibly(matched, routed);
                 }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                Uninterruptibles.putUninterruptibly(matched, END);
+                stopped.countDown();
             }
-            counter++;
-            // now convert to OutputStreams
-            OutputStream[] outputs = destinations
-                    .stream()
-                    .filter(Objects::nonNull)
-                    .map((f) -> {
-                        try {
-                            return fileFactory.getOutputStream(f);
-                        } catch (Exception e) {
-                            logger.logWarning(String.format("Destination '%s' skipped due to error: %s", f, e.getMessage()));
-                            return null;
-                        } })
-                    .filter(Objects::nonNull)
-                    .toArray(OutputStream[]::new);
-            if (outputs.length == 0)  {
-                String errorDestination = config.getErrorDestination();
-                if (!Strings.isNullOrEmpty(errorDestination)) {
-                    String output = null;
-                    try {
-                        output = uniquely(engine, errorDestination, unique);
-                        logger.debug(String.format("routing file to error destination: %s", output));
-                        outputs = new OutputStream[] {fileFactory.getOutputStream(output)};
-                    } catch (Exception e) {
-                        logger.logWarning(String.format("Error Destination '%s' ignored due to error: %s", output, e.getMessage()));
-                        // well, we tried
+        });
+        ParallelOutputStream.executor.execute(() -> {
+            try {
+                Routed routed;
+                while ((routed = Uninterruptibles.takeUninterruptibly(matched)) != END) {
+                    if (abandoned.get()) {
+                        routed.content.close();
+                    } else {
+                        routing.expand(routed);
+                        Uninterruptibles.putUninterruptibly(expanded, routed);
                     }
                 }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                Uninterruptibles.putUninterruptibly(expanded, END);
+                stopped.countDown();
             }
-            if (outputs.length == 0) {
-                nomatch = true;
-                ByteStreams.copy(routable.inputStream(), ByteStreams.nullOutputStream());
-            } else {
-                ParallelOutputStream out = new ParallelOutputStream(outputs);
-                transfer(routable.inputStream(), out, false);
+        });
+        try {
+            Routed routed;
+            while ((routed = Uninterruptibles.takeUninterruptibly(expanded)) != END) {
+                try (InterchangeBuffer content = routed.content) {
+                    routing.write(routed, content.inputStream(), false);
+                }
             }
+        } finally {
+            // stop the other stages, releasing whatever they have queued
+            abandoned.set(true);
+            do {
+                release(matched);
+                release(expanded);
+            } while (!Uninterruptibles.awaitUninterruptibly(stopped, 10, TimeUnit.MILLISECONDS));
+            release(matched);
+            release(expanded);
         }
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
 
-        if (nomatch) {
-            return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
-                    String.format("No matching routes found for '%s'.", filename));
-        } else {
-            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
+    /**
+     * Collects errors into the first, adding the rest as suppressed.
+     * @param first the first error, or {@code null}
+     * @param e the next error, or {@code null}
+     * @return the first error
+     */
+    private static IOException collect(IOException first, IOException e) {
+        if (first == null) {
+            return e;
+        } else if (e != null && e != first) {
+            first.addSuppressed(e);
+        }
+        return first;
+    }
+
+    /**
+     * Renames {@code from} to {@code to}, replacing it, atomically where
+     * the file system supports it.
+     * @param from the file to rename
+     * @param to the new name
+     * @throws IOException
+     */
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Discards the interchanges queued between pipeline stages, releasing
+     * their content.  The {@link #END} marker is put back, so the stage
+     * taking from the queue still sees it and stops.
+     * @param queue the queue to drain
+     */
+    private static void release(BlockingQueue<Routed> queue) {
+        Routed routed;
+        boolean end = false;
+        while ((routed = queue.poll()) != null) {
+            if (routed == END) {
+                end = true;
+            } else if (routed.content != null) {
+                routed.content.close();
+            }
+        }
+        if (end) {
+            queue.offer(END);
         }
     }
 
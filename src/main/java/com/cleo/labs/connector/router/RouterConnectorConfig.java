@@ -1,5 +1,7 @@
 package com.cleo.labs.connector.router;
 
+import java.nio.charset.Charset;
+
 import com.cleo.connector.api.property.ConnectorPropertyException;
 import com.cleo.labs.connector.router.Route;
 import com.google.common.base.Strings;
@@ -10,7 +12,16 @@ import com.google.common.base.Strings;
  * getters for the schema properties converted to their usable forms:
  * <table border="1">
  *   <tr><th>Property</th><th>Stored As</th><th>Returned as</th></tr>
+ *   <tr><td>Always Split EDI</td><td>Boolean</td><td>boolean</td></tr>
  *   <tr><td>Preview Size</td><td>String matching "\\d+[kmg[b]]"</td><td>int</td></tr>
+ *   <tr><td>Tail Preview Size</td><td>String matching "\\d+[kmg[b]]"</td><td>int</td></tr>
+ *   <tr><td>Content Scope</td><td>String (Head, Tail or Both)</td><td>{@link Routables.ContentScope}</td></tr>
+ *   <tr><td>Preview Charset</td><td>String</td><td>{@link Charset}</td></tr>
+ *   <tr><td>Content Match Timeout</td><td>String matching "\\d+[ms|s|m]"</td><td>long (milliseconds)</td></tr>
+ *   <tr><td>Content Match Steps</td><td>String matching "\\d+[kmg]"</td><td>long</td></tr>
+ *   <tr><td>Streaming Content</td><td>Boolean</td><td>boolean</td></tr>
+ *   <tr><td>Streaming Window Size</td><td>String matching "\\d+[kmg[b]]"</td><td>int</td></tr>
+ *   <tr><td>Buffer Memory Budget</td><td>String matching "\\d+[kmg[b]]"</td><td>long</td></tr>
  *   <tr><td>Error Destination</td><td>String</td><td>String</td></tr>
  *   <tr><td>Routes</td><td>JSON array</td><td>{@link Route Route[]}</td></tr>
  * </table>
@@ -31,6 +42,15 @@ public class RouterConnectorConfig {
         this.schema = schema;
     }
  
+    /**
+     * Gets the Always Split EDI property.
+     * @return the Always Split EDI
+     * @throws ConnectorPropertyException
+     */
+    public boolean getAlwaysSplitEDI() throws ConnectorPropertyException {
+        return schema.alwaysSplitEDI.getValue(client);
+    }
+
     /**
      * Gets the Preview Size property converted to an {@code int}.
      * @return the Preview Size
@@ -40,6 +60,152 @@ public class RouterConnectorConfig {
         return parseLength(schema.previewSize.getValue(client));
     }
 
+    /**
+     * Gets the Tail Preview Size property converted to an {@code int}.
+     * @return the Tail Preview Size
+     * @throws ConnectorPropertyException
+     */
+    public int getTailPreviewSize() throws ConnectorPropertyException {
+        return parseLength(schema.tailPreviewSize.getValue(client));
+    }
+
+    /**
+     * Gets the Content Scope property converted to a {@link Routables.ContentScope}.
+     * @return the Content Scope
+     * @throws ConnectorPropertyException
+     */
+    public Routables.ContentScope getContentScope() throws ConnectorPropertyException {
+        return Routables.ContentScope.of(schema.contentScope.getValue(client));
+    }
+
+    /**
+     * Gets the Preview Charset property converted to a {@link Charset},
+     * or {@code null} if the platform default should be used.
+     * @return the Preview Charset, possibly {@code null}
+     * @throws ConnectorPropertyException
+     */
+    public Charset getPreviewCharset() throws ConnectorPropertyException {
+        String charset = schema.previewCharset.getValue(client);
+        return Strings.isNullOrEmpty(charset) ? null : Charset.forName(charset.trim());
+    }
+
+    /**
+     * Gets the Content Match Timeout property converted to milliseconds.
+     * @return the Content Match Timeout in milliseconds ({@code 0} means no limit)
+     * @throws ConnectorPropertyException
+     */
+    public long getContentMatchTimeout() throws ConnectorPropertyException {
+        return parseDuration(schema.contentMatchTimeout.getValue(client));
+    }
+
+    /**
+     * Gets the Content Match Steps property converted to a {@code long}.
+     * @return the Content Match Steps ({@code 0} means no limit)
+     * @throws ConnectorPropertyException
+     */
+    public long getContentMatchSteps() throws ConnectorPropertyException {
+        return parseLongLength(schema.contentMatchSteps.getValue(client));
+    }
+
+    /**
+     * Gets the Streaming Content property.
+     * @return the Streaming Content
+     * @throws ConnectorPropertyException
+     */
+    public boolean getStreamingContent() throws ConnectorPropertyException {
+        return schema.streamingContent.getValue(client);
+    }
+
+    /**
+     * Gets the Streaming Window Size property converted to an {@code int}.
+     * @return the Streaming Window Size
+     * @throws ConnectorPropertyException
+     */
+    public int getStreamingWindowSize() throws ConnectorPropertyException {
+        return parseLength(schema.streamingWindowSize.getValue(client));
+    }
+
+    /**
+     * Gets the Buffer Memory Budget property converted to a {@code long}.
+     * @return the Buffer Memory Budget ({@code 0} means no limit)
+     * @throws ConnectorPropertyException
+     */
+    public long getBufferMemoryBudget() throws ConnectorPropertyException {
+        return parseLongLength(schema.bufferMemoryBudget.getValue(client));
+    }
+
+    /**
+     * Gets the Consolidate Destinations property converted to an {@code int}.
+     * @return the Consolidate Destinations ({@code 0} means no consolidation)
+     * @throws ConnectorPropertyException
+     */
+    public int getConsolidateDestinations() throws ConnectorPropertyException {
+        return parseLength(schema.consolidateDestinations.getValue(client));
+    }
+
+    /**
+     * Gets the Link Destinations property.
+     * @return the Link Destinations
+     * @throws ConnectorPropertyException
+     */
+    public boolean getLinkDestinations() throws ConnectorPropertyException {
+        return schema.linkDestinations.getValue(client);
+    }
+
+    /**
+     * Gets the Staged Commit property.
+     * @return the Staged Commit
+     * @throws ConnectorPropertyException
+     */
+    public boolean getStagedCommit() throws ConnectorPropertyException {
+        return schema.stagedCommit.getValue(client);
+    }
+
+    /**
+     * Gets the Write Chunk Size property converted to an {@code int}.
+     * @return the Write Chunk Size ({@code 0} means no batching)
+     * @throws ConnectorPropertyException
+     */
+    public int getWriteChunkSize() throws ConnectorPropertyException {
+        return parseLength(schema.writeChunkSize.getValue(client));
+    }
+
+    /**
+     * Gets the Pipeline Buffer Size property converted to a {@code long}.
+     * @return the Pipeline Buffer Size ({@code 0} means no pipelining)
+     * @throws ConnectorPropertyException
+     */
+    public long getPipelineBufferSize() throws ConnectorPropertyException {
+        return parseLongLength(schema.pipelineBufferSize.getValue(client));
+    }
+
+    /**
+     * Gets the Fan Out Queue Depth property converted to an {@code int}.
+     * @return the Fan Out Queue Depth ({@code 0} means sequential writes)
+     * @throws ConnectorPropertyException
+     */
+    public int getFanOutQueueDepth() throws ConnectorPropertyException {
+        return parseLength(schema.fanOutQueueDepth.getValue(client));
+    }
+
+    /**
+     * Gets the Stall Timeout property converted to milliseconds.
+     * @return the Stall Timeout ({@code 0} means wait for every destination)
+     * @throws ConnectorPropertyException
+     */
+    public long getStallTimeout() throws ConnectorPropertyException {
+        return parseDuration(schema.stallTimeout.getValue(client));
+    }
+
+    /**
+     * Gets the Delivery Retries property converted to an {@code int}.
+     * @return the Delivery Retries
+     * @throws ConnectorPropertyException
+     */
+    public int getDeliveryRetries() throws ConnectorPropertyException {
+        return parseLength(schema.deliveryRetries.getValue(client));
+    }
+
     /**
      * Gets the Error Destination property.
      * @return the Error Destination
@@ -69,6 +235,15 @@ public class RouterConnectorConfig {
         return RoutingTableProperty.toRoutes(value);
     }
 
+    /**
+     * Gets the JavaScript Destinations property.
+     * @return the JavaScript Destinations property
+     * @throws ConnectorPropertyException
+     */
+    public boolean getJavaScriptDestinations() throws ConnectorPropertyException {
+        return schema.javaScriptDestinations.getValue(client);
+    }
+
     /**
      * Gets the Route To First Matching Route Only property.
      * @return the Route To First Matching Route Only property
@@ -78,6 +253,51 @@ public class RouterConnectorConfig {
         return schema.routeToFirstMatchingRouteOnly.getValue(client);
     }
 
+    /**
+     * Gets the Adaptive Route Ordering property.
+     * @return the Adaptive Route Ordering property
+     * @throws ConnectorPropertyException
+     */
+    public boolean getAdaptiveRouteOrdering() throws ConnectorPropertyException {
+        return schema.adaptiveRouteOrdering.getValue(client);
+    }
+
+    /**
+     * Gets the shared {@link RoutingTable} for the Routes property.
+     * @return the {@link RoutingTable}
+     * @throws ConnectorPropertyException
+     */
+    public RoutingTable getRoutingTable() throws ConnectorPropertyException {
+        return RoutingTable.of(getRoutes());
+    }
+
+    /**
+     * Parses an optionally suffixed duration into milliseconds:
+     * <ul>
+     * <li><b>nnn</b> or <b>nnnMS</b> nnn milliseconds</li>
+     * <li><b>nnnS</b> nnn seconds</li>
+     * <li><b>nnnM</b> nnn minutes</li>
+     * </ul>
+     * Note that suffixes may be upper or lower case.
+     * @param duration the string to parse
+     * @return the parsed duration in milliseconds
+     * @throws NumberFormatException
+     */
+    public static long parseDuration(String duration) {
+        if (!Strings.isNullOrEmpty(duration)) {
+            String lower = duration.trim().toLowerCase();
+            if (lower.endsWith("ms")) {
+                return Long.parseLong(lower.substring(0, lower.length()-2));
+            } else if (lower.endsWith("s")) {
+                return Long.parseLong(lower.substring(0, lower.length()-1))*1000L;
+            } else if (lower.endsWith("m")) {
+                return Long.parseLong(lower.substring(0, lower.length()-1))*60L*1000L;
+            }
+            return Long.parseLong(lower);
+        }
+        return 0;
+    }
+
     /**
      * Parses an optionally suffixed length:
      * <ul>
@@ -86,15 +306,28 @@ public class RouterConnectorConfig {
      * <li><b>nnnG</b> nnn GB ("gibibytes", * 1024^3)</li>
      * </ul>
      * Note that suffixes may be upper or lower case.  A trailing "b"
-     * (e.g. kb, mb, ...) is tolerated but not required.
+     * (e.g. kb, mb, ...) is tolerated but not required.  Lengths too
+     * large for an {@code int} are clamped to {@link Integer#MAX_VALUE}.
      * @param length the string to parse
      * @return the parsed int
      * @throws NumberFormatException
-     * @see {@link Integer#parseInt(String)}
+     * @see {@link #parseLongLength(String)}
      */
     public static int parseLength(String length) {
+        return (int) Math.min(Integer.MAX_VALUE, parseLongLength(length));
+    }
+
+    /**
+     * Parses an optionally suffixed length as {@link #parseLength(String)}
+     * does, but as a {@code long} so that lengths over 2G do not overflow.
+     * @param length the string to parse
+     * @return the parsed long
+     * @throws NumberFormatException
+     * @see {@link Long#parseLong(String)}
+     */
+    public static long parseLongLength(String length) {
         if (!Strings.isNullOrEmpty(length)) {
-            int multiplier = 1;
+            long multiplier = 1;
             int  check = length.length()-1;
             if (check>=0) {
                 char suffix = length.charAt(check);
@@ -103,16 +336,16 @@ public class RouterConnectorConfig {
                     suffix = length.charAt(check);
                 }
                 switch (suffix) {
-                case 'k': case 'K': multiplier =           1024; break;
-                case 'm': case 'M': multiplier =      1024*1024; break;
-                case 'g': case 'G': multiplier = 1024*1024*1024; break;
+                case 'k': case 'K': multiplier =            1024L; break;
+                case 'm': case 'M': multiplier =       1024L*1024; break;
+                case 'g': case 'G': multiplier =  1024L*1024*1024; break;
                 default:
                 }
                 if (multiplier != 1) {
                     length = length.substring(0, check);
                 }
             }
-            return Integer.parseInt(length)*multiplier;
+            return Long.parseLong(length)*multiplier;
         }
         return 0;
     }
@@ -30,6 +30,18 @@ public class RouterConnectorSchema extends ConnectorConfig {
             .setDescription("Route only to the first matching route instead of all matching routes")
             .build();
 
+    @Property
+    final IConnectorProperty<Boolean> adaptiveRouteOrdering = new PropertyBuilder<>("AdaptiveRouteOrdering", false)
+            .setDescription("When routing to the first matching route only, periodically reorder route evaluation"+
+                            " so that frequently matched routes are tried first (without changing which route matches first)")
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> alwaysSplitEDI = new PropertyBuilder<>("AlwaysSplitEDI", false)
+            .setDescription("Detect EDI and split it into interchanges even when no route needs metadata"+
+                            " (otherwise such files are passed through whole without any preview).")
+            .build();
+
     @Property
     final IConnectorProperty<String> previewSize = new PropertyBuilder<>("PreviewSize", "8k")
             .setDescription("The number bytes to read ahead for content pattern matching.")
@@ -37,6 +49,132 @@ public class RouterConnectorSchema extends ConnectorConfig {
             .setRequired(false)
             .build();
 
+    @Property
+    final IConnectorProperty<String> tailPreviewSize = new PropertyBuilder<>("TailPreviewSize", "0")
+            .setDescription("The number bytes to read from the end of local files for content pattern matching"+
+                            " with a Tail or Both Content Scope.")
+            .addPossibleRegexes("\\d+(?i:[kmg]b?)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> contentScope = new PropertyBuilder<>("ContentScope", "Head")
+            .setDescription("Match content patterns against the preview at the Head of the file, the preview at"+
+                            " its Tail, or Both (the head followed by the tail).")
+            .addPossibleValues("Head", "Tail", "Both")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> previewCharset = new PropertyBuilder<>("PreviewCharset", "")
+            .setDescription("The character set used to decode the preview for content pattern matching"+
+                            " (leave empty for the platform default, ISO-8859-1 is fastest).")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> contentMatchTimeout = new PropertyBuilder<>("ContentMatchTimeout", "10s")
+            .setDescription("The longest a single content pattern may run against a preview before it is"+
+                            " abandoned as a non-match (e.g. 500ms, 10s, 1m, or 0 for no limit).")
+            .addPossibleRegexes("\\d+(?i:ms|s|m)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> contentMatchSteps = new PropertyBuilder<>("ContentMatchSteps", "0")
+            .setDescription("The most characters (including backtracking) a single content pattern may"+
+                            " examine before it is abandoned as a non-match (e.g. 100m, or 0 for no limit).")
+            .addPossibleRegexes("\\d+(?i:[kmg])?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> streamingContent = new PropertyBuilder<>("StreamingContent", false)
+            .setDescription("Search for content patterns through the whole file with a sliding window instead of"+
+                            " matching them against the preview, spooling the scanned bytes to a temporary file.")
+            .build();
+
+    @Property
+    final IConnectorProperty<String> streamingWindowSize = new PropertyBuilder<>("StreamingWindowSize", "1m")
+            .setDescription("The number of characters held in memory when streaming content patterns"+
+                            " (a match can be at most half this size).")
+            .addPossibleRegexes("\\d+(?i:[kmg]b?)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> bufferMemoryBudget = new PropertyBuilder<>("BufferMemoryBudget", "0")
+            .setDescription("The total memory shared by the preview and parser buffers of all concurrent"+
+                            " transfers (e.g. 512m).  Transfers wait for memory when it is exhausted."+
+                            "  Use 0 for no limit and no buffer pooling.")
+            .addPossibleRegexes("\\d+(?i:[kmg]b?)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> consolidateDestinations = new PropertyBuilder<>("ConsolidateDestinations", "0")
+            .setDescription("The number of destination files kept open while a file is routed, so that its"+
+                            " interchanges routed to the same destination are appended to a single file"+
+                            " (e.g. 16, or 0 to write each interchange to its own file).")
+            .addPossibleRegexes("\\d+")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> linkDestinations = new PropertyBuilder<>("LinkDestinations", false)
+            .setDescription("Write a file routed to several local destinations once, and create the other"+
+                            " destinations as hard links to it (or copies of it on other file systems).")
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> stagedCommit = new PropertyBuilder<>("StagedCommit", false)
+            .setDescription("Write local destinations under temporary names, and rename them to their final"+
+                            " names, which may use ${size}, ${sha256}, ${segments} and ${trailer}, once the"+
+                            " whole file is routed and synced to disk.")
+            .build();
+
+    @Property
+    final IConnectorProperty<String> writeChunkSize = new PropertyBuilder<>("WriteChunkSize", "64k")
+            .setDescription("The size of the chunks routed data is batched into before it is written to"+
+                            " the destinations (e.g. 64k or 1m, or 0 to write as read).")
+            .addPossibleRegexes("\\d+(?i:[kmg]b?)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> pipelineBufferSize = new PropertyBuilder<>("PipelineBufferSize", "0")
+            .setDescription("The memory each interchange may be read ahead into (e.g. 1m) while the"+
+                            " interchanges before it are still being written, with the rest spooled to a"+
+                            " temporary file.  Use 0 to parse, route and write each interchange in turn.")
+            .addPossibleRegexes("\\d+(?i:[kmg]b?)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> fanOutQueueDepth = new PropertyBuilder<>("FanOutQueueDepth", "8")
+            .setDescription("The number of writes queued for each destination when a file is routed to"+
+                            " several destinations, which are then written concurrently."+
+                            "  Use 0 to write the destinations one after another.")
+            .addPossibleRegexes("\\d+")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> stallTimeout = new PropertyBuilder<>("StallTimeout", "0")
+            .setDescription("How long a file routed to several destinations waits for a stalled destination"+
+                            " before detaching it and delivering it in the background from a local spool"+
+                            " (e.g. 30s, 1m, or 0 to always wait).")
+            .addPossibleRegexes("\\d+(?i:ms|s|m)?")
+            .setRequired(false)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> deliveryRetries = new PropertyBuilder<>("DeliveryRetries", "3")
+            .setDescription("The number of times the background delivery of a detached destination is retried.")
+            .addPossibleRegexes("\\d+")
+            .setRequired(false)
+            .build();
+
     @Property
     final IConnectorProperty<String> errorDestination = new PropertyBuilder<>("ErrorDestination", "")
             .setDescription("An optional destination expression for files that do not match any routing rules.")
@@ -48,6 +186,12 @@ public class RouterConnectorSchema extends ConnectorConfig {
             .setDescription("Always create unique filenames as if PUT -UNI were used")
             .build();
 
+    @Property
+    final IConnectorProperty<Boolean> javaScriptDestinations = new PropertyBuilder<>("JavaScriptDestinations", false)
+            .setDescription("Evaluate destination expressions that are beyond the built-in expression language"+
+                            " as JavaScript (requires a JavaScript engine, e.g. Nashorn in Java 8 to 14).")
+            .build();
+
     @Property
     final IConnectorProperty<Boolean> enableDebug = CommonProperties.of(CommonProperty.EnableDebug);
 
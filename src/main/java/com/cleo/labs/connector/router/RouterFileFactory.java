@@ -1,9 +1,76 @@
 package com.cleo.labs.connector.router;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 
 public interface RouterFileFactory {
     public File getFile(String filename);
     public OutputStream getOutputStream(String filename) throws Exception;
+
+    /**
+     * Opens {@code filename} for writing, appending to it if {@code append}
+     * is set.  The default implementation does not support appending.
+     * @param filename the filename to open
+     * @param append {@code true} to append to an existing file
+     * @return the stream
+     * @throws Exception
+     */
+    public default OutputStream getOutputStream(String filename, boolean append) throws Exception {
+        if (append) {
+            throw new UnsupportedOperationException("appending to '"+filename+"' is not supported");
+        }
+        return getOutputStream(filename);
+    }
+
+    /**
+     * Claims {@code filename} for a new file if no file by that name exists,
+     * atomically if the underlying file system allows it, so that two
+     * concurrent claims can not both succeed.  The default implementation
+     * just tests for existence, which is not atomic.
+     * @param filename the filename to claim
+     * @return {@code true} if the filename was claimed
+     * @throws Exception
+     */
+    public default boolean reserve(String filename) throws Exception {
+        return !getFile(filename).exists();
+    }
+
+    /**
+     * Gives up a claim made by {@link #reserve(String)} for a destination
+     * that was never written, so that no empty file is left behind.  The
+     * default implementation does nothing, as the default claim creates
+     * nothing.
+     * @param filename the filename claimed
+     * @throws Exception
+     */
+    public default void release(String filename) throws Exception {
+    }
+
+    /**
+     * Returns the local file system path of {@code filename}, so that it can
+     * be created as a link to another local file.  The default implementation
+     * returns {@code null}, treating no destination as local.
+     * @param filename the filename
+     * @return the path, or {@code null} if {@code filename} is not a local file
+     */
+    public default Path path(String filename) {
+        return null;
+    }
+
+    /**
+     * Returns the {@link FileChannel} of a local file opened by
+     * {@link #getOutputStream(String)}, so that data can be copied to it
+     * directly from another file.  It is only asked for destinations with a
+     * {@link #path(String)}.  The default implementation returns the
+     * channel of a {@link FileOutputStream}.
+     * @param os the stream returned by {@code getOutputStream}
+     * @return the channel, or {@code null} if {@code os} does not write
+     *         a local file
+     */
+    public default FileChannel channel(OutputStream os) {
+        return os instanceof FileOutputStream ? ((FileOutputStream) os).getChannel() : null;
+    }
 }
@@ -0,0 +1,32 @@
+package com.cleo.labs.connector.router;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters describing router activity that is otherwise
+ * only visible in individual transfer logs.  The counters only ever
+ * increase, and are reported with {@link #describe()}.
+ */
+public class RouterMetrics {
+    /**
+     * Content pattern matches abandoned because they exceeded their budget.
+     */
+    public static final AtomicLong contentMatchBudgetExceeded = new AtomicLong();
+
+    /**
+     * Describes the current counter values and the occupancy of each
+     * budgeted {@link BufferPool}, e.g. for a debug log.
+     * @return a description of the counters
+     */
+    public static String describe() {
+        StringBuilder sb = new StringBuilder(String.format("contentMatchBudgetExceeded=%d",
+                contentMatchBudgetExceeded.get()));
+        for (BufferPool pool : BufferPool.budgeted()) {
+            sb.append(' ').append(pool.describe());
+        }
+        return sb.toString();
+    }
+
+    private RouterMetrics() {
+    }
+}
@@ -0,0 +1,389 @@
+package com.cleo.labs.connector.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+
+/**
+ * A routing table shared across {@code PUT} commands.  Since the routing
+ * table property is deserialized into a fresh {@link Route Route[]} for
+ * every command, tables are cached by their JSON form so that state
+ * accumulated about the table (for example, the route hit counters used
+ * for adaptive ordering) survives from one command to the next.
+ * <p/>
+ * In adaptive mode, the table counts the hits for each route and every
+ * {@link #REORDER_INTERVAL} hits reorders the evaluation order so that
+ * the most frequently hit routes are tried first.  To preserve
+ * first-match semantics, a route may only move past routes that
+ * {@link #disjoint(Route, Route) provably} can not match the same file.
+ */
+public class RoutingTable {
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * How many tables are kept in the cache.
+     */
+    private static final int CACHE_SIZE = 32;
+
+    /**
+     * How many hits are recorded between reorderings.
+     */
+    public static final int REORDER_INTERVAL = 1000;
+
+    @SuppressWarnings("serial")
+    private static final Map<String,RoutingTable> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String,RoutingTable>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,RoutingTable> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Returns the shared {@code RoutingTable} for {@code routes}, creating
+     * it if needed.  Tables are matched by content, not identity, so the
+     * returned table holds its own copy of the {@link Route Routes}: callers
+     * should use {@link #routes()} and not the array passed in.
+     * @param routes the routes, as deserialized from the routing table property
+     * @return the shared {@code RoutingTable}
+     */
+    public static RoutingTable of(Route[] routes) {
+        String key = GSON.toJson(routes);
+        return cache.computeIfAbsent(key, (k) -> new RoutingTable(routes));
+    }
+
+    private final Route[] routes;
+    private final ContentPrefilter prefilter;
+    private final List<Pattern> contentPatterns;
+    private final Map<String,MacroEngine.Template> templates;
+    private final AtomicBoolean prewarmed;
+    private final boolean[] pinned;
+    private final AtomicLongArray hits;
+    private final AtomicLong sinceReorder;
+    private volatile Route[] ordered;
+
+    private RoutingTable(Route[] routes) {
+        this.routes = routes;
+        this.prefilter = ContentPrefilter.of(routes);
+        this.contentPatterns = contentPatterns(routes);
+        this.templates = new HashMap<>();
+        for (Route route : routes) {
+            if (!Strings.isNullOrEmpty(route.destination())) {
+                templates.computeIfAbsent(route.destination(), MacroEngine.Template::compile);
+            }
+        }
+        this.prewarmed = new AtomicBoolean();
+        this.pinned = new boolean[routes.length];
+        for (int i = 0; i < routes.length; i++) {
+            pinned[i] = pinned(routes[i]);
+        }
+        this.hits = new AtomicLongArray(routes.length);
+        this.sinceReorder = new AtomicLong();
+        this.ordered = routes;
+    }
+
+    /**
+     * Returns the routes in the order they appear in the table.
+     * @return the routes in table order
+     */
+    public Route[] routes() {
+        return routes;
+    }
+
+    /**
+     * Returns the {@link ContentPrefilter} compiled from the {@code Content}
+     * patterns in the table, or {@code null} if no pattern has usable literals.
+     * @return the prefilter, possibly {@code null}
+     */
+    public ContentPrefilter prefilter() {
+        return prefilter;
+    }
+
+    /**
+     * Returns the distinct compiled {@code Content} patterns in the table,
+     * in table order, for matchers that search for all of them at once.
+     * @return the content patterns
+     */
+    public List<Pattern> contentPatterns() {
+        return contentPatterns;
+    }
+
+    private static List<Pattern> contentPatterns(Route[] routes) {
+        List<Pattern> result = new ArrayList<>();
+        List<String> seen = new ArrayList<>();
+        for (Route route : routes) {
+            if (Strings.isNullOrEmpty(route.content())) {
+                continue;
+            }
+            try {
+                Pattern pattern = RoutableContent.compile(route.content()).pattern();
+                if (pattern != null && !seen.contains(pattern.pattern())) {
+                    seen.add(pattern.pattern());
+                    result.add(pattern);
+                }
+            } catch (PatternSyntaxException e) {
+                // reported when the route is matched
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the compiled {@code Destination} of a route in the table,
+     * or compiles {@code destination} if it is not in the table.
+     * @param destination the destination expression
+     * @return the compiled template
+     */
+    public MacroEngine.Template template(String destination) {
+        MacroEngine.Template template = templates.get(destination);
+        return template != null ? template : MacroEngine.Template.compile(destination);
+    }
+
+    /**
+     * Starts a JavaScript engine in the shared {@link ScriptPool} with the
+     * table's script destinations compiled, the first time it is called,
+     * if any destination in the table needs one.
+     */
+    public void prewarm() {
+        if (prewarmed.compareAndSet(false, true)) {
+            List<String> scripts = templates.values().stream()
+                    .flatMap((t) -> t.scripts().stream())
+                    .distinct()
+                    .collect(Collectors.toList());
+            if (!scripts.isEmpty()) {
+                ScriptPool.shared().prewarm(scripts);
+            }
+        }
+    }
+
+    /**
+     * Returns the routes in the current adaptive evaluation order.
+     * @return the routes in evaluation order
+     */
+    public Route[] ordered() {
+        return ordered;
+    }
+
+    /**
+     * Records a hit for {@code route}, reordering the table after
+     * every {@link #REORDER_INTERVAL} hits.
+     * @param route the {@link Route} that was selected
+     * @return {@code true} if this hit caused the evaluation order to change
+     */
+    public boolean hit(Route route) {
+        int index = indexOf(route);
+        if (index < 0) {
+            return false;
+        }
+        hits.incrementAndGet(index);
+        if (sinceReorder.incrementAndGet() % REORDER_INTERVAL == 0) {
+            return reorder();
+        }
+        return false;
+    }
+
+    /**
+     * Recomputes the evaluation order by hit count.  This is an insertion
+     * sort where a route moves ahead of its predecessor only if it has
+     * more hits and the two routes are {@link #disjoint(Route, Route)},
+     * so any pair of routes that might both match a file keep their
+     * relative order.  The counters are halved afterwards so that the
+     * order tracks recent traffic.
+     * @return {@code true} if the order changed
+     */
+    private synchronized boolean reorder() {
+        int[] order = new int[routes.length];
+        Route[] current = ordered;
+        for (int i = 0; i < current.length; i++) {
+            order[i] = indexOf(current[i]);
+        }
+        long[] count = new long[routes.length];
+        for (int i = 0; i < count.length; i++) {
+            count[i] = hits.get(i);
+        }
+        boolean changed = false;
+        for (int i = 1; i < order.length; i++) {
+            int j = i;
+            while (j > 0 && count[order[j]] > count[order[j-1]]
+                    && !pinned[order[j]] && !pinned[order[j-1]]
+                    && disjoint(routes[order[j]], routes[order[j-1]])) {
+                int swap = order[j];
+                order[j] = order[j-1];
+                order[j-1] = swap;
+                changed = true;
+                j--;
+            }
+        }
+        for (int i = 0; i < count.length; i++) {
+            long value;
+            do {
+                value = hits.get(i);
+            } while (!hits.compareAndSet(i, value, value/2));
+        }
+        if (changed) {
+            Route[] result = new Route[order.length];
+            for (int i = 0; i < order.length; i++) {
+                result[i] = routes[order[i]];
+            }
+            ordered = result;
+        }
+        return changed;
+    }
+
+    private int indexOf(Route route) {
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i] == route) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Describes the current evaluation order as a list of 1-relative
+     * table positions and their current hit counts, e.g.
+     * {@code 3(120) 1(7) 2(0)}.
+     * @return a description of the current order
+     */
+    public String describeOrder() {
+        StringBuilder sb = new StringBuilder();
+        for (Route route : ordered) {
+            int index = indexOf(route);
+            sb.append(index+1).append('(').append(hits.get(index)).append(") ");
+        }
+        if (sb.length()>0) {
+            sb.setLength(sb.length()-1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * {@link Pattern} matching {@code name:} and {@code name,name:} prefixes
+     * of named {@code Content} patterns (see {@link RoutableContent}).
+     */
+    private static final Pattern NAMED_PREFIX = Pattern.compile("^[a-zA-Z][a-zA-Z0-9]+(?:\\s*,\\s*[a-zA-Z][a-zA-Z0-9]+)*\\s*:.*", Pattern.DOTALL);
+
+    /**
+     * Pinned routes never move and nothing moves past them: named
+     * {@code Content} patterns define metadata that later routes reference,
+     * and routes without a destination are typically such definitions.
+     * @param route the {@link Route} to check
+     * @return {@code true} if the route must keep its position
+     */
+    private static boolean pinned(Route route) {
+        return Strings.isNullOrEmpty(route.destination())
+                || (!Strings.isNullOrEmpty(route.content()) && NAMED_PREFIX.matcher(route.content()).matches());
+    }
+
+    /**
+     * Characters that make a pattern something other than a literal string.
+     */
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    /**
+     * Returns the string matched by {@code pattern} if it is a non-empty
+     * literal, which {@link String#matches(String)} only for exactly that
+     * string.  Metacharacters escaped with a backslash (e.g. {@code a\.edi})
+     * are allowed.
+     * @param pattern the pattern to check
+     * @return the literal value, or {@code null} if the pattern is not a literal
+     */
+    private static String literal(String pattern) {
+        if (Strings.isNullOrEmpty(pattern)) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i == pattern.length() || METACHARACTERS.indexOf(pattern.charAt(i)) < 0) {
+                    return null; // \d, \Q and friends are not literals
+                }
+                value.append(pattern.charAt(i));
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Returns {@code true} if both patterns are distinct literals.
+     * @param a one pattern
+     * @param b another pattern
+     * @return {@code true} if no value can match both
+     */
+    private static boolean different(String a, String b) {
+        String aLiteral = literal(a);
+        String bLiteral = literal(b);
+        return aLiteral != null && bLiteral != null && !aLiteral.equals(bLiteral);
+    }
+
+    /**
+     * Returns {@code true} if no file can match both routes.  This is
+     * conservative: {@code false} means only that overlap could not be
+     * ruled out.  Routes are disjoint if:
+     * <ul><li>their {@code Filename} patterns are different literals,</li>
+     *     <li>one has a {@code Content} pattern and the other has none but
+     *         does have metadata patterns (content routes only match non-EDI
+     *         files while metadata-only routes only match EDI and HL7), or</li>
+     *     <li>their metadata is extracted the same way (the same {@code Content},
+     *         or none) and some metadata pattern is a different literal.</li></ul>
+     * The last two do not hold for a route whose {@code Filename} has named
+     * capture groups: its metadata may come from the filename instead, so it
+     * may match any file and its literals may be compared against a
+     * different source than the other route's.
+     * @param a one {@link Route}
+     * @param b another {@link Route}
+     * @return {@code true} if the routes can not both match a file
+     */
+    public static boolean disjoint(Route a, Route b) {
+        if (different(a.filename(), b.filename())) {
+            return true;
+        }
+        if (FilenameMetadata.captures(a.filename()) || FilenameMetadata.captures(b.filename())) {
+            return false;
+        }
+        boolean aContent = !Strings.isNullOrEmpty(a.content());
+        boolean bContent = !Strings.isNullOrEmpty(b.content());
+        if ((aContent && !bContent && !b.matchesAnything()) ||
+            (bContent && !aContent && !a.matchesAnything())) {
+            return true;
+        }
+        if (!Strings.nullToEmpty(a.content()).equals(Strings.nullToEmpty(b.content()))) {
+            return false;
+        }
+        return different(a.sender(), b.sender())
+                || different(a.receiver(), b.receiver())
+                || different(a.groupSender(), b.groupSender())
+                || different(a.groupReceiver(), b.groupReceiver())
+                || different(a.senderQualifier(), b.senderQualifier())
+                || different(a.receiverQualifier(), b.receiverQualifier())
+                || different(a.groupSenderQualifier(), b.groupSenderQualifier())
+                || different(a.groupReceiverQualifier(), b.groupReceiverQualifier())
+                || different(a.function(), b.function())
+                || different(a.type(), b.type());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(routes);
+    }
+}
@@ -51,6 +51,12 @@ public class RoutingTableProperty {
         .setDescription("Regular expression to match filenames")
         .build();
 
+    @Property
+    final public IConnectorProperty<String> format = new PropertyBuilder<>("Format", "")
+        .setDescription("The format of matching files (EDI, HL7 or Content), to skip format detection")
+        .addPossibleValues("", "EDI", "HL7", "Content")
+        .build();
+
     @Property
     final public IConnectorProperty<String> content = new PropertyBuilder<>("Content", "")
         .setDescription("Regular expression to match and parse file contents")
@@ -92,6 +98,12 @@ public class RoutingTableProperty {
                         " for the file.  The destination can be a URI, e.g. scheme:path.")
         .build();
 
+    @Property
+    final public IConnectorProperty<String> compress = new PropertyBuilder<>("Compress", "")
+        .setDescription("The compression to write the destination with (gzip), compressing as the file is routed")
+        .addPossibleValues("", "gzip")
+        .build();
+
     /**
      * Deserialize the JSON array into a Java {@code Route[]}.
      * @param value the JSON array (may be {@code null})
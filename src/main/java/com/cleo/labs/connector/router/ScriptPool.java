@@ -0,0 +1,211 @@
+package com.cleo.labs.connector.router;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import com.cleo.connector.api.helper.Logger;
+
+/**
+ * A pool of pre-warmed JavaScript {@link ScriptEngine ScriptEngines} for the
+ * destination expressions that are beyond the native {@link Expression}
+ * language.  Starting an engine (and loading {@code mozilla_compat.js} into
+ * it) is expensive, so engines are kept and reused, and each keeps the
+ * {@link CompiledScript} for the most recent expressions it has evaluated.
+ * <p/>
+ * An engine is used by one thread at a time.  Each evaluation gets fresh
+ * engine scope {@link Bindings} holding its tokens and the helper
+ * functions, so that variables a script assigns do not leak into later
+ * evaluations.  The engine's own global scope, with {@code mozilla_compat.js}
+ * loaded, stays reachable through the global scope of the
+ * {@link ScriptContext}.
+ */
+public class ScriptPool {
+
+    private static final ScriptEngineManager engine_factory = new ScriptEngineManager();
+
+    private static final ScriptPool shared = new ScriptPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Returns the process-wide pool.
+     * @return the shared pool
+     */
+    public static ScriptPool shared() {
+        return shared;
+    }
+
+    /**
+     * The helper functions defined in the scope of every evaluation.
+     */
+    private static final String HELPERS =
+            "function date(format, zone) { return macros.date(format, zone === undefined ? null : zone); }";
+
+    /**
+     * The most compiled scripts kept by each engine.
+     */
+    private static final int COMPILED_SIZE = 1000;
+
+    /**
+     * A started engine and the scripts it has compiled.  A script that does
+     * not compile is remembered as {@code null}.
+     */
+    private static class Warm {
+        private final ScriptEngine engine;
+        private final Bindings global;
+        private final CompiledScript helpers;
+        private final Map<String,CompiledScript> compiled;
+
+        private Warm(ScriptEngine engine) throws ScriptException {
+            this.engine = engine;
+            engine.eval("load('nashorn:mozilla_compat.js');"+HELPERS);
+            this.global = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+            this.helpers = engine instanceof Compilable ? ((Compilable) engine).compile(HELPERS) : null;
+            this.compiled = new HashMap<>();
+        }
+
+        private CompiledScript compile(String script, Logger logger) {
+            if (compiled.containsKey(script)) {
+                return compiled.get(script);
+            }
+            CompiledScript result = null;
+            if (engine instanceof Compilable) {
+                try {
+                    result = ((Compilable) engine).compile(script);
+                } catch (ScriptException e) {
+                    if (logger != null) {
+                        logger.debug(String.format("script '%s' does not compile: %s", script, e.getMessage()));
+                    }
+                }
+            }
+            if (compiled.size() >= COMPILED_SIZE) {
+                compiled.clear();
+            }
+            compiled.put(script, result);
+            return result;
+        }
+    }
+
+    private final int idle;
+    private final ArrayDeque<Warm> pool;
+    private long started;
+
+    /**
+     * Creates a pool keeping up to {@code idle} unused engines.
+     * @param idle the most unused engines to keep
+     */
+    public ScriptPool(int idle) {
+        this.idle = idle;
+        this.pool = new ArrayDeque<>();
+    }
+
+    /**
+     * Returns the number of engines started by the pool.
+     * @return the number of engines started
+     */
+    public synchronized long started() {
+        return started;
+    }
+
+    /**
+     * Evaluates {@code script} on a pooled engine in a fresh scope holding
+     * the {@code bindings}.
+     * @param script the script to evaluate
+     * @param bindings the token values and other variables for the script
+     * @param logger the {@link Logger} for scripts that fail, possibly {@code null}
+     * @return the result, or {@code null} if the script could not be
+     *         evaluated or there is no JavaScript engine
+     */
+    public Object eval(String script, Bindings bindings, Logger logger) {
+        Warm warm = acquire();
+        if (warm == null) {
+            return null;
+        }
+        try {
+            CompiledScript compiled = warm.compile(script, logger);
+            if (compiled == null) {
+                return null;
+            }
+            Bindings scope = warm.engine.createBindings();
+            scope.putAll(bindings);
+            ScriptContext context = new SimpleScriptContext();
+            context.setBindings(scope, ScriptContext.ENGINE_SCOPE);
+            context.setBindings(warm.global, ScriptContext.GLOBAL_SCOPE);
+            warm.helpers.eval(context);
+            return compiled.eval(context);
+        } catch (ScriptException e) {
+            if (logger != null) {
+                logger.debug(String.format("script '%s' failed: %s", script, e.getMessage()));
+            }
+            return null;
+        } finally {
+            release(warm);
+        }
+    }
+
+    /**
+     * Starts an engine and compiles {@code scripts} in the background,
+     * unless an idle engine is already waiting, so that the first
+     * evaluation does not pay for starting up.
+     * @param scripts the scripts to compile
+     */
+    public void prewarm(Collection<String> scripts) {
+        synchronized (this) {
+            if (!pool.isEmpty()) {
+                return;
+            }
+        }
+        ForkJoinPool.commonPool().execute(() -> {
+            Warm warm = start();
+            if (warm != null) {
+                scripts.forEach((script) -> warm.compile(script, null));
+                release(warm);
+            }
+        });
+    }
+
+    private Warm acquire() {
+        synchronized (this) {
+            if (!pool.isEmpty()) {
+                return pool.pop();
+            }
+        }
+        return start();
+    }
+
+    private synchronized void release(Warm warm) {
+        if (pool.size() < idle) {
+            pool.push(warm);
+        }
+    }
+
+    /**
+     * Starts a new engine.
+     * @return the started engine, or {@code null} if there is no JavaScript engine
+     */
+    private Warm start() {
+        ScriptEngine engine = engine_factory.getEngineByName("JavaScript");
+        if (engine == null) {
+            return null;
+        }
+        try {
+            Warm warm = new Warm(engine);
+            synchronized (this) {
+                started++;
+            }
+            return warm;
+        } catch (ScriptException e) {
+            return null;
+        }
+    }
+}
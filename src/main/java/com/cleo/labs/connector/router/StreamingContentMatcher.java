@@ -0,0 +1,179 @@
+package com.cleo.labs.connector.router;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.input.TeeInputStream;
+
+import com.cleo.connector.api.helper.Logger;
+
+/**
+ * Matches {@code Content} patterns against a stream of any length using a
+ * bounded sliding window, so that routing keys far into a file can be found
+ * without holding the file in memory.
+ * <p/>
+ * The stream is decoded into a window of {@code window} characters and each
+ * unresolved pattern is searched for with {@link Matcher#find()}.  The window
+ * then slides forward, keeping the last half as overlap so that matches
+ * spanning the boundary are found in the next window.  Every byte read is
+ * spooled to a temporary file, and scanning stops as soon as every pattern
+ * has been found (or the stream ends).  {@link #replay()} then returns the
+ * spooled bytes followed by the rest of the stream.
+ * <p/>
+ * A match that reaches the end of the window could grow with more input,
+ * so it is only accepted once more input has been seen, the stream has ended,
+ * or the match is about to slide out of the window.  Matches longer than
+ * half the window can not be found.
+ */
+public class StreamingContentMatcher {
+    private final InputStream in;
+    private final Charset charset;
+    private final int window;
+    private final long timeout;
+    private final long steps;
+    private final Logger logger;
+    private File spool;
+    private boolean scanned;
+
+    /**
+     * Creates a matcher over {@code in}.
+     * @param in the stream to scan
+     * @param charset the {@link Charset} to decode with
+     * @param window the window size in characters
+     * @param timeout the time budget per pattern over the whole scan in milliseconds, {@code 0} for unlimited
+     * @param steps the step budget per pattern over the whole scan, {@code 0} for unlimited
+     * @param logger the {@link Logger} for abandoned patterns, possibly {@code null}
+     */
+    public StreamingContentMatcher(InputStream in, Charset charset, int window, long timeout, long steps, Logger logger) {
+        this.in = in;
+        this.charset = charset;
+        this.window = Math.max(window, 2);
+        this.timeout = timeout;
+        this.steps = steps;
+        this.logger = logger;
+        this.spool = null;
+        this.scanned = false;
+    }
+
+    /**
+     * Scans the stream for {@code patterns}, returning the metadata captured
+     * by the first match of each pattern found, keyed by the pattern source.
+     * Patterns that were not found, or that exceeded their budget, are
+     * mapped to {@code null}.  Each pattern has one budget for all the
+     * windows it is searched in.  The stream can only be scanned once.
+     * @param patterns the patterns to search for
+     * @return the captured metadata for each pattern
+     * @throws IOException
+     */
+    public Map<String,RoutableContent.ContentMetadata> scan(List<Pattern> patterns) throws IOException {
+        if (scanned) {
+            throw new IllegalStateException("stream already scanned");
+        }
+        scanned = true;
+        Map<String,RoutableContent.ContentMetadata> results = new HashMap<>();
+        List<Pattern> pending = new ArrayList<>();
+        Map<Pattern,BudgetedCharSequence.Budget> budgets = new IdentityHashMap<>();
+        for (Pattern pattern : patterns) {
+            if (!results.containsKey(pattern.pattern())) {
+                results.put(pattern.pattern(), null);
+                pending.add(pattern);
+                if (timeout > 0 || steps > 0) {
+                    budgets.put(pattern, new BudgetedCharSequence.Budget(timeout, steps));
+                }
+            }
+        }
+        spool = File.createTempFile("router", ".spool");
+        try (OutputStream out = new FileOutputStream(spool);
+             Reader reader = new InputStreamReader(new TeeInputStream(in, out, false), charset)) {
+            char[] buf = new char[window];
+            int length = 0;
+            boolean eof = false;
+            while (!pending.isEmpty() && !eof) {
+                int read = reader.read(buf, length, buf.length-length);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    length += read;
+                    if (length < buf.length) {
+                        continue; // fill the window first
+                    }
+                }
+                int slide = eof ? length : length - length/2; // what will slide out of the window
+                for (int p = pending.size()-1; p >= 0; p--) {
+                    Pattern pattern = pending.get(p);
+                    CharSequence text = CharBuffer.wrap(buf, 0, length);
+                    if (budgets.containsKey(pattern)) {
+                        text = new BudgetedCharSequence(text, budgets.get(pattern));
+                    }
+                    try {
+                        Matcher m = pattern.matcher(text);
+                        if (m.find()) {
+                            if (eof || !m.hitEnd() || m.start() < slide) {
+                                results.put(pattern.pattern(), new RoutableContent.ContentMetadata(m));
+                                pending.remove(p);
+                            }
+                        }
+                    } catch (BudgetedCharSequence.BudgetExceededException e) {
+                        RouterMetrics.contentMatchBudgetExceeded.incrementAndGet();
+                        if (logger != null) {
+                            logger.logWarning(String.format("Content pattern '%s' abandoned as a non-match: %s",
+                                    pattern.pattern(), e.getMessage()));
+                        }
+                        pending.remove(p);
+                    }
+                }
+                // slide the window, keeping the overlap (and any match that might still grow)
+                System.arraycopy(buf, slide, buf, 0, length-slide);
+                length -= slide;
+            }
+        } catch (IOException | RuntimeException e) {
+            spool.delete();
+            spool = null;
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Returns the full stream: the bytes spooled during {@link #scan(List)}
+     * followed by the rest of the stream.  The spool is deleted as soon as
+     * it has been read through, or when the returned stream is closed.
+     * @return the replayed stream
+     * @throws IOException
+     */
+    public InputStream replay() throws IOException {
+        if (spool == null) {
+            return in;
+        }
+        final File file = spool;
+        spool = null;
+        InputStream spooled = new FileInputStream(file) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    file.delete();
+                }
+            }
+        };
+        // SequenceInputStream closes the spool when it reaches its end
+        return new SequenceInputStream(spooled, in);
+    }
+}
@@ -3,7 +3,10 @@ package com.cleo.labs.connector.router;
 import static org.junit.Assert.*;
 
 import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.Date;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,7 +36,73 @@ public class TestMacroEngine {
         assertEquals("FROM", engine.expr("sender"));
         assertEquals("final=FROM-.ext.", engine.expand("final=${sender}-${ext}."));
         assertEquals("final=FROM-.ext.", engine.expand("final=${sender+'-'+ext}."));
+        assertFalse(engine.started()); // native expressions need no script engine
+    }
+
+    @Test
+    public void testExpression() {
+        MacroEngine engine = new MacroEngine(metadata(), "filename.ext").counter("7");
+        assertEquals("FROM", engine.expr("sender.toUpperCase()"));
+        assertEquals("from-123", engine.expr("sender.toLowerCase() + '-' + icn.substring(0, 3)"));
+        assertEquals("456", engine.expr("icn.slice(-3)"));
+        assertEquals("00007", engine.expr("counter.padStart(5, '0')"));
+        assertEquals("8", engine.expr("Number(counter)+1"));
+        assertEquals("71", engine.expr("counter+1"));
+        assertEquals("big", engine.expr("counter > 5 ? 'big' : 'small'"));
+        assertEquals("none", engine.expr("unique || 'none'"));
+        assertEquals("6", engine.expr("sender.length + 2"));
+        assertEquals("TXT", engine.expr("ext == '.ext' ? 'TXT' : ext"));
+        assertEquals("O", engine.expr("sender[2]"));
+        assertEquals("filename.EXT", engine.expr("file.replace('ext', \"EXT\")"));
+        assertEquals(new SimpleDateFormat("yyyy").format(new Date()), engine.expr("date('yyyy')"));
+        try {
+            engine.expr("[sender].join('-')"); // not in the language
+            fail("expected a script to need JavaScript enabled");
+        } catch (IllegalStateException e) {
+            assertFalse(engine.started());
+        }
+    }
+
+    @Test
+    public void testTemplate() {
+        MacroEngine engine = new MacroEngine(metadata(), "filename.ext").counter("7");
+        MacroEngine.Template template = MacroEngine.Template.compile("out/${sender}/${base}-${counter.padStart(3,'0')}${ext}");
+        assertTrue(template == MacroEngine.Template.compile("out/${sender}/${base}-${counter.padStart(3,'0')}${ext}"));
+        assertEquals("out/FROM/filename-007.ext", template.expand(engine));
+        engine.counter("8").filename("other.txt");
+        assertEquals("out/FROM/other-008.txt", template.expand(engine));
+        assertEquals("plain", MacroEngine.Template.compile("plain").expand(engine));
+        assertEquals("", MacroEngine.Template.compile("").expand(engine));
+        assertEquals("${unclosed", MacroEngine.Template.compile("${unclosed").expand(engine));
+        Route[] routes = new Route[] {new Route().destination("out/${icn}")};
+        assertTrue(RoutingTable.of(routes).template("out/${icn}") == RoutingTable.of(routes).template("out/${icn}"));
+    }
+
+    @Test
+    public void testJavaScriptOptIn() {
+        MacroEngine engine = new MacroEngine(metadata(), "filename.ext").javascript(true);
+        assertEquals("FROM", engine.expr("sender.toUpperCase()"));
+        assertFalse(engine.started());
+        assertEquals("FROM-MOCK", engine.expr("[sender,type].join('-')"));
         assertTrue(engine.started());
+        assertEquals(engine.date("yyyy", "UTC")+"-"+engine.date("yyyy", null), engine.expr("[date('yyyy','UTC'),date('yyyy')].join('-')"));
+    }
+
+    @Test
+    public void testScriptPool() {
+        MacroEngine first = new MacroEngine(metadata(), "filename.ext").javascript(true);
+        assertEquals("FROM-filename.ext", first.expr("[sender,file].join('-')"));
+        long started = ScriptPool.shared().started();
+        MacroEngine second = new MacroEngine(null, "other.txt").javascript(true).counter("3");
+        assertEquals("-other.txt", second.expr("[sender,file].join('-')"));
+        assertEquals("3:other", second.expr("[counter,base].join(':')"));
+        second.filename("renamed.txt");
+        assertEquals("-renamed.txt", second.expand("${[sender,file].join('-')}"));
+        assertEquals("FROM-filename.ext", first.expr("[sender,file].join('-')"));
+        assertEquals("", first.expr("[sender,"));
+        assertEquals("x", first.expr("leaked = 'x'"));
+        assertEquals("undefined", second.expr("typeof leaked")); // assignments stay in their own evaluation
+        assertEquals(started, ScriptPool.shared().started());
     }
 
     @Test
@@ -122,4 +191,42 @@ public class TestMacroEngine {
         assertEquals(yyyyMMdd, engine.lookup("date(\"yyyyMMdd\")"));
     }
 
+    @Test
+    public void testDateFormats() {
+        Date fixed = new Date(1496845845007L); // 2017-06-07T14:30:45.007Z, a Wednesday
+        ZonedDateTime zoned = ZonedDateTime.ofInstant(fixed.toInstant(), ZoneId.of("UTC"));
+        for (String pattern : new String[] {"yyyyMMdd", "yyyy-MM-dd'T'HH:mm:ss.SSS", "yy/M/d h:mm a",
+                "D F u E EEEE MMM", "'[x]' kk KK S ''", "yyyyMMdd{HH}#"}) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            assertEquals(pattern, format.format(fixed), DateFormats.compile(pattern).format(zoned));
+        }
+        assertTrue(DateFormats.compile("yyyyMMdd") == DateFormats.compile("yyyyMMdd"));
+        assertEquals("2017-W23-3Z", DateFormats.compile("ISO_WEEK_DATE").format(zoned));
+        assertEquals("2017-158Z", DateFormats.compile("ISO_ORDINAL_DATE").format(zoned));
+
+        MacroEngine engine = new MacroEngine(metadata(), "filename.ext");
+        SimpleDateFormat utc = new SimpleDateFormat("yyyyMMddHH");
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String hour = utc.format(new Date());
+        assertEquals(hour, engine.expr("date('yyyyMMddHH','UTC')"));
+        assertEquals(hour, engine.lookup("date(\"yyyyMMddHH\", \"UTC\")"));
+        assertEquals(hour, engine.expand("${date('yyyy'+'MMddHH','UTC')}"));
+        assertTrue(engine.date("yyyyMMdd", null) == engine.date("yyyyMMdd", ""));
+    }
+
+    @Test
+    public void testUsesMetadata() {
+        assertFalse(MacroEngine.usesMetadata(null));
+        assertFalse(MacroEngine.usesMetadata("output/${base}.${counter}${unique}${ext}"));
+        assertFalse(MacroEngine.usesMetadata("output/${date('yyyyMMdd')}/${file}"));
+        assertTrue(MacroEngine.usesMetadata("output/${icn}"));
+        assertTrue(MacroEngine.usesMetadata("archive/${file}.${trailer}"));
+        assertTrue(MacroEngine.usesMetadata("archive/${file}.${segments}"));
+        assertFalse(MacroEngine.usesMetadata("archive/${file}.${size}.${sha256}"));
+        assertFalse(MacroEngine.usesMetadata("output/${file.toUpperCase()}"));
+        assertTrue(MacroEngine.usesMetadata("output/${file+icn}"));
+        assertTrue(MacroEngine.usesMetadata("output/${[file].join()}"));
+    }
+
 }
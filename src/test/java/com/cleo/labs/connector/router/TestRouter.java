@@ -2,18 +2,30 @@ package com.cleo.labs.connector.router;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 
 import com.cleo.labs.connector.router.Routables.Routable;
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.gson.Gson;
 import com.google.gwt.thirdparty.guava.common.io.CharStreams;
 
@@ -28,6 +40,22 @@ public class TestRouter {
         assertEquals(true, routes[0].enabled());
         assertEquals("FROM", routes[0].sender());
     }
+    @Test
+    public final void testDisjoint() {
+        assertTrue(RoutingTable.disjoint(new Route().type("214"), new Route().type("810")));
+        assertFalse(RoutingTable.disjoint(new Route().type("214"), new Route().type("2.*")));
+        assertFalse(RoutingTable.disjoint(new Route().type("214"), new Route().sender("ACME")));
+        assertFalse(RoutingTable.disjoint(new Route().type("214"), new Route()));
+        assertTrue(RoutingTable.disjoint(new Route().filename("a\\.edi"), new Route().filename("b\\.edi")));
+        assertFalse(RoutingTable.disjoint(new Route().filename("a.edi"), new Route().filename("a\\.edi")));
+        assertTrue(RoutingTable.disjoint(new Route().content(".*"), new Route().type("214")));
+        assertFalse(RoutingTable.disjoint(new Route().content("a.*").type("X"), new Route().content("b.*").type("Y")));
+        assertTrue(RoutingTable.disjoint(new Route().content("a.*").type("X"), new Route().content("a.*").type("Y")));
+        // a captured sender may come from the filename of any file
+        Route captured = new Route().filename("(?<sender>[^_]+)_.*").sender("ACME");
+        assertFalse(RoutingTable.disjoint(captured, new Route().sender("EPES")));
+        assertFalse(RoutingTable.disjoint(new Route().content(".*"), captured));
+    }
     static private final String[] twoonefour = new String[]{
             "ISA*00*          *00*          *02*EPES           *08*3111190000     *171020*0834*U*00401*000059772*0*P*>~"+
                 "GS*QM*EPES*3111190000*20171020*0834*50630*X*004010~"+
@@ -120,6 +148,36 @@ public class TestRouter {
         }
         assertEquals(1, count);
     }
+    @Test
+    public final void testFormatHint() throws IOException {
+        // declared EDI is parsed directly
+        Routables.Options options = new Routables.Options().format(Routables.Format.of("edi"));
+        try (Routables routables = new Routables(new ByteArrayInputStream(ryder.getBytes()), options)) {
+            for (Routable routable : routables) {
+                assertTrue(routable instanceof RoutableEDI);
+                assertEquals("214", routable.metadata().type());
+                assertEquals(ryder, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            }
+        }
+        // declared Content skips detection altogether
+        options.format(Routables.Format.Content);
+        try (Routables routables = new Routables(new ByteArrayInputStream(ryder.getBytes()), options)) {
+            for (Routable routable : routables) {
+                assertTrue(routable instanceof RoutableContent);
+                assertEquals(ryder, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            }
+        }
+        // declared HL7 is rejected, so EDI is detected after all
+        options.format(Routables.Format.HL7);
+        try (Routables routables = new Routables(new ByteArrayInputStream(ryder.getBytes()), options)) {
+            for (Routable routable : routables) {
+                assertTrue(routable instanceof RoutableEDI);
+                assertEquals("000010067", routable.metadata().icn());
+                assertEquals(ryder, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            }
+        }
+        assertNull(Routables.Format.of("xml"));
+    }
    @Test
     public final void testPreviewLong() throws IOException {
         String notedi = "<Blink><Flim flam=\"boo\">content</Flim></Blink>";
@@ -196,6 +254,243 @@ public class TestRouter {
         assertEquals(1, count);
     }
     @Test
+    public final void testPreviewMatchLatin1() throws IOException {
+        String s = "header is\na=\u00c9PP b=XYZ\nc=123 with lots\nof other stuff";
+        InputStream bis = new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+        Route r = new Route().content(".*?(?<=a=)(?<sender>\\S*).*").sender("\u00c9PP");
+        Routables.Options options = new Routables.Options().previewSize(8192).charset(StandardCharsets.ISO_8859_1);
+        int count = 0;
+        for (Routable routable : new Routables(bis, options)) {
+            assertTrue(routable.matches(r));
+            assertEquals("\u00c9PP", routable.metadata().sender().id());
+            count++;
+            routable.inputStream().close();
+        }
+        assertEquals(1, count);
+
+        // in US-ASCII the byte is not a letter, as if decoded
+        bis = new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+        options.charset(StandardCharsets.US_ASCII);
+        for (Routable routable : new Routables(bis, options)) {
+            assertFalse(routable.matches(r));
+            assertTrue(routable.matches(new Route().content(r.content()).sender("\ufffdPP")));
+            routable.inputStream().close();
+        }
+        assertEquals("\ufffdPP", new ByteCharSequence(new byte[] {(byte) 0xc9, 'P', 'P'}, 0, 3, true).toString());
+    }
+    @Test
+    public final void testLiterals() {
+        assertEquals(Arrays.asList("<API>", "</API>"), ContentPrefilter.literals(".*?<API>(?<type>[^<]*)</API>.*"));
+        assertEquals(Arrays.asList("<?xml", "<Order>"), ContentPrefilter.literals("<\\?xml.*<Order>.*"));
+        assertEquals(Arrays.asList("baz"), ContentPrefilter.literals("(?:foo|bar)baz.*"));
+        assertTrue(ContentPrefilter.literals("(?:.*?(?:<a>(?<sender>[^<]*)</a>|<b>(?<receiver>[^<]*)</b>))*.*").isEmpty());
+        assertTrue(ContentPrefilter.literals("(?i).*<API>.*").isEmpty());
+    }
+    @Test
+    public final void testPrefilter() throws IOException {
+        String s = "<Doc><API>SingleCarrierHub</API></Doc>";
+        Route api = new Route().content(".*?<API>(?<type>[^<]*)</API>.*").type("SingleCarrierHub");
+        Route other = new Route().content(".*?<Other>(?<type>[^<]*)</Other>.*");
+        ContentPrefilter prefilter = ContentPrefilter.of(new Route[] {api, other});
+        Routables.Options options = new Routables.Options().previewSize(8192).prefilter(prefilter);
+        int count = 0;
+        for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+            assertTrue(routable.matches(api));
+            assertEquals("SingleCarrierHub", routable.metadata().type());
+            assertFalse(routable.matches(other));
+            count++;
+            routable.inputStream().close();
+        }
+        assertEquals(1, count);
+    }
+    @Test
+    public final void testMatchBudget() throws IOException {
+        String s = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+        Route hostile = new Route().content("(.*a){12}b");
+        Routables.Options options = new Routables.Options().previewSize(8192).matchSteps(100000);
+        long before = RouterMetrics.contentMatchBudgetExceeded.get();
+        for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+            assertFalse(routable.matches(hostile));
+            assertTrue(routable.matches(new Route().content("a+")));
+            routable.inputStream().close();
+        }
+        assertEquals(before+1, RouterMetrics.contentMatchBudgetExceeded.get());
+
+        // the budget covers every pass as the preview grows, not each one
+        String grown = Strings.repeat("a", 32*1024);
+        Pattern tail = Pattern.compile("a*[bc]");
+        BudgetedCharSequence counted = new BudgetedCharSequence(grown, 0, 0);
+        assertFalse(tail.matcher(counted).matches());
+        options = new Routables.Options().previewSize(grown.length()).matchSteps(counted.steps()*3/2);
+        before = RouterMetrics.contentMatchBudgetExceeded.get();
+        for (Routable routable : new Routables(new ByteArrayInputStream(grown.getBytes()), options)) {
+            assertFalse(routable.matches(new Route().content(tail.pattern())));
+            routable.inputStream().close();
+        }
+        assertEquals(before+1, RouterMetrics.contentMatchBudgetExceeded.get());
+    }
+    @Test
+    public final void testPreviewOnDemand() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("filler line ").append(i).append('\n');
+        }
+        sb.append("tail");
+        String s = sb.toString();
+        for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), 1024*1024)) {
+            PreviewInputStream pis = (PreviewInputStream) routable.inputStream();
+            assertTrue(pis.length() < RoutableContent.INITIAL_PREVIEW_SIZE+1);
+            assertFalse(routable.matches(new Route().content("header.*")));
+            assertEquals(RoutableContent.INITIAL_PREVIEW_SIZE, pis.length());
+            assertTrue(routable.matches(new Route().content(".*tail")));
+            assertEquals(s.length(), pis.length());
+            assertEquals(s, CharStreams.toString(new InputStreamReader(pis)));
+            pis.close();
+        }
+
+        // a pattern matching just the initial preview must not match the longer source
+        String prefix = Strings.repeat("a", RoutableContent.INITIAL_PREVIEW_SIZE);
+        for (Routable routable : new Routables(new ByteArrayInputStream((prefix+"bc").getBytes()), 1024*1024)) {
+            assertFalse(routable.matches(new Route().content(prefix)));
+            assertTrue(routable.matches(new Route().content(prefix+"bc")));
+            routable.inputStream().close();
+        }
+    }
+    @Test
+    public final void testBufferPool() throws IOException {
+        BufferPool pool = new BufferPool(64*1024);
+        byte[] a = pool.acquire(100);
+        assertEquals(BufferPool.MIN_BUFFER, a.length);
+        byte[] b = pool.acquire(40*1024);
+        assertEquals(64*1024, b.length); // oversize allowed, since only this thread holds buffers
+        pool.release(b);
+        pool.release(a);
+        pool.release(a); // ignored
+        assertTrue(a == pool.acquire(BufferPool.MIN_BUFFER));
+        pool.release(a);
+        String s = "header is\na=EPP b=XYZ\nc=123 with lots\nof other stuff";
+        PreviewInputStream pis = new PreviewInputStream(new ByteArrayInputStream(s.getBytes()), 8192, pool);
+        assertEquals(s.length(), pis.fill(8192));
+        assertEquals(s, new String(pis.preview()));
+        assertTrue(pool.describe().contains("bufferUsed=8192 "));
+        pis.close();
+        assertTrue(pool.describe().contains("bufferUsed=0 "));
+    }
+    @Test
+    public final void testBufferPoolPerBudget() {
+        assertTrue(BufferPool.of(0) == BufferPool.shared());
+        assertTrue(BufferPool.of(1024*1024) == BufferPool.of(1024*1024));
+        assertFalse(BufferPool.of(1024*1024) == BufferPool.of(2*1024*1024));
+        assertEquals(2*1024*1024, BufferPool.of(2*1024*1024).budget());
+        assertEquals(0, BufferPool.shared().budget()); // never changed by a budgeted connector
+        assertTrue(BufferPool.budgeted().contains(BufferPool.of(1024*1024)));
+        assertTrue(RouterMetrics.describe().contains("bufferBudget=1048576 "));
+    }
+    @Test
+    public final void testBufferPoolConcurrentGrowth() throws Exception {
+        // two transfers holding 4m previews grow them to 8m under a 10m budget
+        BufferPool pool = new BufferPool(10*1024*1024);
+        byte[] content = new byte[8*1024*1024];
+        CountDownLatch holding = new CountDownLatch(2);
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try (BufferPool.Admission admission = pool.admit(content.length/2);
+                        PreviewInputStream pis = new PreviewInputStream(new ByteArrayInputStream(content), content.length, pool)) {
+                    pis.fill(content.length/2);
+                    holding.countDown();
+                    holding.await(10, TimeUnit.SECONDS);
+                    assertEquals(content.length, pis.fill(content.length));
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            });
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(pool.describe(), thread.isAlive());
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(pool.describe().contains("bufferUsed=0 "));
+        assertTrue(pool.describe().contains("bufferAdmitted=0 "));
+    }
+    @Test
+    public final void testStreamingContent() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("filler line ").append(i).append('\n');
+        }
+        sb.append("sender=EPP receiver=XYZ\n");
+        for (int i = 0; i < 100; i++) {
+            sb.append("more filler ").append(i).append('\n');
+        }
+        String s = sb.toString();
+        Route deep = new Route().content("sender=(?<sender>\\S+) receiver=(?<receiver>\\S+)").sender("EPP").receiver("XYZ");
+        Route missing = new Route().content("not in the file");
+        Routables.Options options = new Routables.Options()
+                .previewSize(8192)
+                .streamingWindow(64)
+                .contentPatterns(RoutingTable.of(new Route[] {deep, missing}).contentPatterns());
+        for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+            assertTrue(routable.matches(deep));
+            assertEquals("EPP", routable.metadata().sender().id());
+            assertEquals("XYZ", routable.metadata().receiver().id());
+            assertFalse(routable.matches(missing));
+            assertEquals(s, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            routable.inputStream().close();
+        }
+
+        // the budget covers every window searched, not each one
+        BudgetedCharSequence counted = new BudgetedCharSequence(s.substring(0, 64), 0, 0);
+        assertFalse(Pattern.compile(missing.content()).matcher(counted).find());
+        options.contentPatterns(RoutingTable.of(new Route[] {missing}).contentPatterns()).matchSteps(counted.steps()*4);
+        long before = RouterMetrics.contentMatchBudgetExceeded.get();
+        for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+            assertFalse(routable.matches(missing));
+            assertEquals(s, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            routable.inputStream().close();
+        }
+        assertEquals(before+1, RouterMetrics.contentMatchBudgetExceeded.get());
+        assertEquals(3L*1024*1024*1024, RouterConnectorConfig.parseLongLength("3g"));
+        assertEquals(Integer.MAX_VALUE, RouterConnectorConfig.parseLength("3g"));
+    }
+    @Test
+    public final void testTailPreview() throws IOException {
+        StringBuilder sb = new StringBuilder("<doc><type>invoice</type>");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<line>filler</line>");
+        }
+        sb.append("<trailer><sender>ACME</sender></trailer></doc>");
+        String s = sb.toString();
+        File file = File.createTempFile("tail", ".xml");
+        try {
+            Files.write(file.toPath(), s.getBytes());
+            Route r = new Route().content(".*<sender>(?<sender>[^<]*)</sender>.*").sender("ACME");
+            Route both = new Route().content("<doc><type>(?<type>[^<]*)</type>.*<sender>(?<sender>[^<]*)</sender>.*").type("invoice");
+            Routables.Options options = new Routables.Options().previewSize(4096).tailPreviewSize(100).tail(file);
+            for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+                assertFalse(routable.matches(r)); // the head alone is not enough
+            }
+            options.contentScope(Routables.ContentScope.Tail);
+            for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+                assertTrue(routable.matches(r));
+                assertFalse(routable.matches(both));
+                assertEquals(s, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            }
+            options.contentScope(Routables.ContentScope.Both);
+            for (Routable routable : new Routables(new ByteArrayInputStream(s.getBytes()), options)) {
+                assertTrue(routable.matches(both));
+                assertEquals("ACME", routable.metadata().sender().id());
+                assertEquals(s, CharStreams.toString(new InputStreamReader(routable.inputStream())));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    @Test
     public final void testNamedContent() throws IOException {
         String s = "header is\na=EPP b=XYZ\nc=123 with lots\nof other stuff";
         InputStream bis = new ByteArrayInputStream(s.getBytes());
@@ -7,17 +7,36 @@ import static org.mockito.Mockito.*;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
 import com.cleo.connector.api.ConnectorException;
+import com.cleo.connector.api.command.ConnectorCommandResult;
 import com.cleo.connector.api.command.PutCommand;
 import com.cleo.connector.api.directory.Directory.Type;
 import com.cleo.connector.api.helper.NetworkConnection;
@@ -31,6 +50,9 @@ import com.cleo.connector.shell.interfaces.IConnectorAction;
 import com.cleo.connector.shell.interfaces.IConnectorConnection;
 import com.cleo.connector.shell.interfaces.IConnectorHost;
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 
 public class TestRouterConnectorClient {
 
@@ -143,20 +165,148 @@ public class TestRouterConnectorClient {
             output.add(new Output().name(filename).output(os));
             return os;
         }
+        @Override
+        public OutputStream getOutputStream(String filename, boolean append) throws Exception {
+            if (append) {
+                for (Output o : output) {
+                    if (o.name.equals(filename)) {
+                        return o.output;
+                    }
+                }
+            }
+            return getOutputStream(filename);
+        }
+    }
+
+    private static class LocalFiles extends OutputCollector {
+        private File dir;
+        private List<String> opened = new ArrayList<>();
+        public LocalFiles(File dir) {
+            this.dir = dir;
+        }
+        @Override
+        public File getFile(String filename) {
+            return new File(dir, filename);
+        }
+        @Override
+        public OutputStream getOutputStream(String filename) throws Exception {
+            opened.add(filename);
+            return new FileOutputStream(getFile(filename));
+        }
+        @Override
+        public Path path(String filename) {
+            return getFile(filename).toPath();
+        }
+        public String read(String filename) throws IOException {
+            return new String(Files.readAllBytes(path(filename)));
+        }
+        public void delete() {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
     }
 
     public static class TestConfig extends RouterConnectorConfig {
         // config data
+        private boolean alwaysSplitEDI = false;
         private int previewSize = 4096;
+        private int tailPreviewSize = 0;
+        private Routables.ContentScope contentScope = Routables.ContentScope.Head;
+        private Charset previewCharset = null;
+        private long contentMatchTimeout = 0;
+        private long contentMatchSteps = 0;
+        private boolean streamingContent = false;
+        private int streamingWindowSize = 1024*1024;
+        private long bufferMemoryBudget = 0;
+        private int consolidateDestinations = 0;
+        private boolean linkDestinations = false;
+        private boolean stagedCommit = false;
+        private int writeChunkSize = 64*1024;
+        private long pipelineBufferSize = 0;
+        private int fanOutQueueDepth = ParallelOutputStream.DEFAULT_DEPTH;
+        private long stallTimeout = 0;
+        private int deliveryRetries = 0;
         private String errorDestination = null;
         private boolean forceUnique = false;
         private Route[] routes = null;
         private boolean routeToFirstMatchingRouteOnly = false;
+        private boolean adaptiveRouteOrdering = false;
+        private boolean javaScriptDestinations = false;
         // fluent setters
+        public TestConfig alwaysSplitEDI(boolean alwaysSplitEDI) {
+            this.alwaysSplitEDI = alwaysSplitEDI;
+            return this;
+        }
         public TestConfig previewSize(int previewSize) {
             this.previewSize = previewSize;
             return this;
         }
+        public TestConfig tailPreviewSize(int tailPreviewSize) {
+            this.tailPreviewSize = tailPreviewSize;
+            return this;
+        }
+        public TestConfig contentScope(Routables.ContentScope contentScope) {
+            this.contentScope = contentScope;
+            return this;
+        }
+        public TestConfig previewCharset(Charset previewCharset) {
+            this.previewCharset = previewCharset;
+            return this;
+        }
+        public TestConfig contentMatchTimeout(long contentMatchTimeout) {
+            this.contentMatchTimeout = contentMatchTimeout;
+            return this;
+        }
+        public TestConfig contentMatchSteps(long contentMatchSteps) {
+            this.contentMatchSteps = contentMatchSteps;
+            return this;
+        }
+        public TestConfig streamingContent(boolean streamingContent) {
+            this.streamingContent = streamingContent;
+            return this;
+        }
+        public TestConfig streamingWindowSize(int streamingWindowSize) {
+            this.streamingWindowSize = streamingWindowSize;
+            return this;
+        }
+        public TestConfig bufferMemoryBudget(long bufferMemoryBudget) {
+            this.bufferMemoryBudget = bufferMemoryBudget;
+            return this;
+        }
+        public TestConfig consolidateDestinations(int consolidateDestinations) {
+            this.consolidateDestinations = consolidateDestinations;
+            return this;
+        }
+        public TestConfig linkDestinations(boolean linkDestinations) {
+            this.linkDestinations = linkDestinations;
+            return this;
+        }
+        public TestConfig stagedCommit(boolean stagedCommit) {
+            this.stagedCommit = stagedCommit;
+            return this;
+        }
+        public TestConfig writeChunkSize(int writeChunkSize) {
+            this.writeChunkSize = writeChunkSize;
+            return this;
+        }
+        public TestConfig pipelineBufferSize(long pipelineBufferSize) {
+            this.pipelineBufferSize = pipelineBufferSize;
+            return this;
+        }
+        public TestConfig fanOutQueueDepth(int fanOutQueueDepth) {
+            this.fanOutQueueDepth = fanOutQueueDepth;
+            return this;
+        }
+        public TestConfig stallTimeout(long stallTimeout) {
+            this.stallTimeout = stallTimeout;
+            return this;
+        }
+        public TestConfig deliveryRetries(int deliveryRetries) {
+            this.deliveryRetries = deliveryRetries;
+            return this;
+        }
         public TestConfig errorDestination(String errorDestination) {
             this.errorDestination = errorDestination;
             return this;
@@ -176,6 +326,14 @@ public class TestRouterConnectorClient {
             this.routeToFirstMatchingRouteOnly = routeToFirstMatchingRouteOnly;
             return this;
         }
+        public TestConfig adaptiveRouteOrdering(boolean adaptiveRouteOrdering) {
+            this.adaptiveRouteOrdering = adaptiveRouteOrdering;
+            return this;
+        }
+        public TestConfig javaScriptDestinations(boolean javaScriptDestinations) {
+            this.javaScriptDestinations = javaScriptDestinations;
+            return this;
+        }
         // override classic getters
         @Override
         public String getErrorDestination() throws ConnectorPropertyException {
@@ -186,10 +344,78 @@ public class TestRouterConnectorClient {
             return forceUnique;
         }
         @Override
+        public boolean getAlwaysSplitEDI() throws ConnectorPropertyException {
+            return alwaysSplitEDI;
+        }
+        @Override
         public int getPreviewSize() throws ConnectorPropertyException {
             return previewSize;
         }
         @Override
+        public int getTailPreviewSize() throws ConnectorPropertyException {
+            return tailPreviewSize;
+        }
+        @Override
+        public Routables.ContentScope getContentScope() throws ConnectorPropertyException {
+            return contentScope;
+        }
+        @Override
+        public Charset getPreviewCharset() throws ConnectorPropertyException {
+            return previewCharset;
+        }
+        @Override
+        public long getContentMatchTimeout() throws ConnectorPropertyException {
+            return contentMatchTimeout;
+        }
+        @Override
+        public long getContentMatchSteps() throws ConnectorPropertyException {
+            return contentMatchSteps;
+        }
+        @Override
+        public boolean getStreamingContent() throws ConnectorPropertyException {
+            return streamingContent;
+        }
+        @Override
+        public int getStreamingWindowSize() throws ConnectorPropertyException {
+            return streamingWindowSize;
+        }
+        @Override
+        public long getBufferMemoryBudget() throws ConnectorPropertyException {
+            return bufferMemoryBudget;
+        }
+        @Override
+        public int getConsolidateDestinations() throws ConnectorPropertyException {
+            return consolidateDestinations;
+        }
+        @Override
+        public boolean getLinkDestinations() throws ConnectorPropertyException {
+            return linkDestinations;
+        }
+        @Override
+        public boolean getStagedCommit() throws ConnectorPropertyException {
+            return stagedCommit;
+        }
+        @Override
+        public int getWriteChunkSize() throws ConnectorPropertyException {
+            return writeChunkSize;
+        }
+        @Override
+        public long getPipelineBufferSize() throws ConnectorPropertyException {
+            return pipelineBufferSize;
+        }
+        @Override
+        public int getFanOutQueueDepth() throws ConnectorPropertyException {
+            return fanOutQueueDepth;
+        }
+        @Override
+        public long getStallTimeout() throws ConnectorPropertyException {
+            return stallTimeout;
+        }
+        @Override
+        public int getDeliveryRetries() throws ConnectorPropertyException {
+            return deliveryRetries;
+        }
+        @Override
         public Route[] getRoutes() throws ConnectorPropertyException {
             return routes;
         }
@@ -197,6 +423,14 @@ public class TestRouterConnectorClient {
         public boolean getRouteToFirstMatchingRouteOnly() throws ConnectorPropertyException {
             return routeToFirstMatchingRouteOnly;
         }
+        @Override
+        public boolean getAdaptiveRouteOrdering() throws ConnectorPropertyException {
+            return adaptiveRouteOrdering;
+        }
+        @Override
+        public boolean getJavaScriptDestinations() throws ConnectorPropertyException {
+            return javaScriptDestinations;
+        }
         // default constructor
         public TestConfig() {
             super(null, null);
@@ -242,6 +476,294 @@ public class TestRouterConnectorClient {
         assertEquals(ryder, collector.output(0));
     }
 
+    @Test
+    public void testPutFormatHintUndeclared() throws ConnectorException, IOException {
+        OutputCollector collector = new OutputCollector();
+        RouterConnectorConfig config = new TestConfig()
+                .routes("[{'enabled':'true','format':'content','content':'no such content','destination':'content/${file}'},"+
+                        " {'enabled':'true','type':'214','destination':'edi/${icn}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+        // the undeclared route still needs the EDI to be detected
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", ryder)},
+                new Entry(Type.dir), Collections.emptyMap()));
+        assertEquals(1, collector.size());
+        assertEquals("edi/000010067", collector.name(0));
+        assertEquals(ryder, collector.output(0));
+    }
+
+    @Test
+    public void testPutUniqueReserve() throws ConnectorException, IOException {
+        Set<String> taken = new HashSet<>(Arrays.asList("reserve/test.edi", "reserve/test.1.edi"));
+        int[] reserves = new int[1];
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public boolean reserve(String filename) {
+                reserves[0]++;
+                return taken.add(filename);
+            }
+        };
+        RouterConnectorConfig config = new TestConfig()
+                .forceUnique(true)
+                .routes("[{'enabled':'true','destination':'reserve/${file}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", ryder)},
+                destination, Collections.emptyMap()));
+        assertEquals(3, reserves[0]);
+        reserves[0] = 0;
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", ryder)},
+                destination, Collections.emptyMap()));
+        assertEquals(2, reserves[0]); // resumes from the last counter claimed
+
+        assertEquals(2, collector.size());
+        assertEquals("reserve/test.2.edi", collector.name(0));
+        assertEquals("reserve/test.3.edi", collector.name(1));
+    }
+
+    @Test
+    public void testPutUniqueRelease() throws ConnectorException, IOException {
+        Set<String> taken = new HashSet<>(Arrays.asList("release/fail/test.edi"));
+        List<String> released = new ArrayList<>();
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public boolean reserve(String filename) throws IOException {
+                if (filename.equals("release/fail/test.1.edi")) {
+                    throw new IOException("claim failed");
+                }
+                return taken.add(filename);
+            }
+            @Override
+            public void release(String filename) {
+                released.add(filename);
+            }
+            @Override
+            public OutputStream getOutputStream(String filename) throws Exception {
+                if (filename.startsWith("release/bad/")) {
+                    throw new IOException("open failed");
+                } else if (filename.startsWith("release/broken/")) {
+                    return new OutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            throw new IOException("write failed");
+                        }
+                    };
+                }
+                return super.getOutputStream(filename);
+            }
+        };
+        RouterConnectorConfig config = new TestConfig()
+                .forceUnique(true)
+                .routes("[{'enabled':'true','destination':'release/fail/${base}${unique}${ext}'},"+
+                        " {'enabled':'true','destination':'release/ok/${base}${unique}${ext}'},"+
+                        " {'enabled':'true','destination':'release/bad/${file}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", ryder)},
+                new Entry(Type.dir), Collections.emptyMap()));
+        // the failed claim leaves no uniqueness token behind
+        assertEquals(1, collector.size());
+        assertEquals("release/ok/test.edi", collector.name(0));
+        // the claim for the destination that could not be written is given up
+        assertEquals(Arrays.asList("release/bad/test.edi"), released);
+
+        // destinations opened are kept, even when writing one of them fails
+        released.clear();
+        config = new TestConfig()
+                .forceUnique(true)
+                .routes("[{'enabled':'true','destination':'release/ok/${base}${unique}${ext}'},"+
+                        " {'enabled':'true','destination':'release/broken/${file}'}]");
+        client = setupClient(new RouterConnectorClient(config, collector));
+        try {
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", ryder)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            fail("expected the failed destination to be reported");
+        } catch (IOException e) {
+            assertEquals("write failed", e.getMessage());
+        }
+        assertEquals(Collections.emptyList(), released);
+    }
+
+    @Test
+    public void testPutFanOutFailure() throws ConnectorException, IOException {
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public OutputStream getOutputStream(String filename) throws Exception {
+                OutputStream os = super.getOutputStream(filename);
+                if (!filename.startsWith("fanout/bad/")) {
+                    return os;
+                }
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("destination failed");
+                    }
+                };
+            }
+        };
+        RouterConnectorConfig config = new TestConfig()
+                .fanOutQueueDepth(2)
+                .routes("[{'enabled':'true','destination':'fanout/good/${file}'},"+
+                        " {'enabled':'true','destination':'fanout/bad/${file}'},"+
+                        " {'enabled':'true','destination':'fanout/also/${file}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.txt", ryder)},
+                destination, Collections.emptyMap());
+        try {
+            client.put(put);
+            fail("expected the failed destination to be reported");
+        } catch (IOException e) {
+            assertEquals("destination failed", e.getMessage());
+        }
+
+        // the healthy destinations still get everything
+        assertEquals(3, collector.size());
+        assertEquals("fanout/good/test.txt", collector.name(0));
+        assertEquals(ryder, collector.output(0));
+        assertEquals("fanout/also/test.txt", collector.name(2));
+        assertEquals(ryder, collector.output(2));
+    }
+
+    @Test
+    public void testPutCoalescing() throws ConnectorException, IOException {
+        int[] writes = new int[1];
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public OutputStream getOutputStream(String filename) throws Exception {
+                OutputStream os = super.getOutputStream(filename);
+                return new FilterOutputStream(os) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        writes[0]++;
+                        os.write(b, off, len);
+                    }
+                    @Override
+                    public void write(int b) throws IOException {
+                        writes[0]++;
+                        os.write(b);
+                    }
+                };
+            }
+        };
+        RouterConnectorConfig config = new TestConfig()
+                .writeChunkSize(16*1024)
+                .routes("[{'enabled':'true','destination':'coalesce/${file}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        String content = Strings.repeat("0123456789abcdef", 8200); // a bit over 128k
+        PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("big.txt", content)},
+                new Entry(Type.dir), Collections.emptyMap());
+        client.put(put);
+
+        assertEquals(1, collector.size());
+        assertEquals(content, collector.output(0));
+        assertEquals((content.length()+16*1024-1)/(16*1024), writes[0]);
+    }
+
+    @Test
+    public void testPutStallDetach() throws Exception {
+        CountDownLatch hung = new CountDownLatch(1);
+        int[] opens = new int[1];
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public synchronized OutputStream getOutputStream(String filename) throws Exception {
+                OutputStream os = super.getOutputStream(filename);
+                if (!filename.startsWith("stall/slow/") || opens[0]++ > 0) {
+                    return os;
+                }
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        try {
+                            hung.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        throw new IOException("gave up");
+                    }
+                };
+            }
+        };
+        RouterConnectorConfig config = new TestConfig()
+                .writeChunkSize(4096)
+                .fanOutQueueDepth(1)
+                .stallTimeout(100)
+                .routes("[{'enabled':'true','destination':'stall/fast/${file}'},"+
+                        " {'enabled':'true','destination':'stall/slow/${file}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        String content = Strings.repeat("0123456789abcdef", 8192); // 128k: many writes
+        PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("big.txt", content)},
+                new Entry(Type.dir), Collections.emptyMap());
+        ConnectorCommandResult result = client.put(put);
+        assertEquals(ConnectorCommandResult.Status.Success, result.getStatus());
+        assertEquals("Stalled destinations are being delivered in the background: stall/slow/big.txt.", result.getMessage());
+        assertEquals("stall/fast/big.txt", collector.name(0));
+        assertEquals(content, collector.output(0));
+
+        // once the stalled write returns, the slow destination is written again from the spool
+        hung.countDown();
+        for (int i = 0; i < 100 && collector.size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(50);
+        assertEquals(3, collector.size());
+        assertEquals("stall/slow/big.txt", collector.name(2));
+        assertEquals(content, collector.output(2));
+    }
+
+    @Test
+    public void testStallSpoolAndAbandon() throws Exception {
+        // destinations that keep up are not spooled
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        ParallelOutputStream out = new ParallelOutputStream(new OutputStream[] {a, b})
+                .stallTimeout(1000)
+                .reopen((i) -> new ByteArrayOutputStream());
+        out.write(ryder.getBytes());
+        out.close();
+        assertFalse(out.spooled());
+        assertEquals(ryder, a.toString());
+        assertEquals(ryder, b.toString());
+
+        // a destination that never returns is abandoned once the retries run out
+        CountDownLatch never = new CountDownLatch(1);
+        OutputStream hung = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    never.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("abandoned");
+                }
+            }
+        };
+        int[] reopened = new int[1];
+        CompletableFuture<Exception> delivered = new CompletableFuture<>();
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        out = new ParallelOutputStream(new OutputStream[] {fast, hung})
+                .depth(1)
+                .stallTimeout(50)
+                .retries(0)
+                .reopen((i) -> {
+                    reopened[0]++;
+                    return new ByteArrayOutputStream();
+                })
+                .delivered((i, e) -> delivered.complete(e));
+        for (int i = 0; i < 4; i++) {
+            out.write(ryder.getBytes());
+        }
+        out.close();
+        assertTrue(out.spooled());
+        assertEquals(Arrays.asList(1), out.detached());
+        Exception e = delivered.get(10, TimeUnit.SECONDS);
+        assertTrue(e instanceof IOException);
+        assertEquals(0, reopened[0]);
+        assertEquals(Strings.repeat(ryder, 4), fast.toString());
+    }
+
     @Test
     public void testPutA214Twice() throws ConnectorException, IOException {
         OutputCollector collector = new OutputCollector();
@@ -283,6 +805,368 @@ public class TestRouterConnectorClient {
         assertEquals(ryder, collector.output(0));
     }
 
+    @Test
+    public void testPutAdaptiveOrder() throws ConnectorException, IOException {
+        RouterConnectorConfig config = new TestConfig()
+                .errorDestination("error-${file}")
+                .routeToFirstMatchingRouteOnly(true)
+                .adaptiveRouteOrdering(true)
+                .routes("[{'enabled':'true','type':'810','destination':'output/810/${icn}'},"+
+                        " {'enabled':'true','type':'214','destination':'output/214/${icn}'},"+
+                        " {'enabled':'true','destination':'output/all/${icn}'}]");
+        for (int i = 0; i < RoutingTable.REORDER_INTERVAL; i++) {
+            OutputCollector collector = new OutputCollector();
+            IConnectorOutgoing source = new StringSource("test.edi", ryder);
+            RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+            Entry destination = new Entry(Type.dir);
+            PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {source}, destination, Collections.emptyMap());
+            client.put(put);
+            assertEquals(1, collector.size());
+            assertEquals("output/214/000010067", collector.name(0));
+        }
+        // the 214 route moves ahead of the disjoint 810 route, but never past the catch-all
+        Route[] ordered = config.getRoutingTable().ordered();
+        assertEquals("214", ordered[0].type());
+        assertEquals("810", ordered[1].type());
+        assertNull(ordered[2].type());
+    }
+
+    @Test
+    public void testPutConsolidate() throws ConnectorException, IOException {
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        int[] opens = new int[1];
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public OutputStream getOutputStream(String filename, boolean append) throws Exception {
+                opens[0]++;
+                return super.getOutputStream(filename, append);
+            }
+        };
+        TestConfig config = new TestConfig()
+                .alwaysSplitEDI(true)
+                .forceUnique(true)
+                .consolidateDestinations(4)
+                .routes("[{'enabled':'true','destination':'consolidated/${sender}.edi'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", interchange+interchange)},
+                destination, Collections.emptyMap()));
+        assertEquals(1, opens[0]);
+        assertEquals(1, collector.size());
+        assertEquals(interchange+interchange, collector.output(0));
+
+        // with room for just one, two destinations take turns and are appended to
+        opens[0] = 0;
+        collector.output.clear();
+        config.consolidateDestinations(1)
+                .routes("[{'enabled':'true','destination':'consolidated/one.edi'},"+
+                        " {'enabled':'true','destination':'consolidated/two.edi'}]");
+        client = setupClient(new RouterConnectorClient(config, collector));
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", interchange+interchange)},
+                destination, Collections.emptyMap()));
+        assertEquals(4, opens[0]);
+        assertEquals(2, collector.size());
+        assertEquals("consolidated/one.edi", collector.name(0));
+        assertEquals(interchange+interchange, collector.output(0));
+        assertEquals("consolidated/two.edi", collector.name(1));
+        assertEquals(interchange+interchange, collector.output(1));
+    }
+
+    @Test
+    public void testPutPipelined() throws ConnectorException, IOException {
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            source.append(interchange);
+        }
+        OutputCollector collector = new OutputCollector();
+        TestConfig config = new TestConfig()
+                .alwaysSplitEDI(true)
+                .pipelineBufferSize(100) // most of each interchange is spooled
+                .routes("[{'enabled':'true','destination':'output/${icn}.${counter}'},"+
+                        " {'enabled':'true','destination':'archive/${counter}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", source.toString())},
+                destination, Collections.emptyMap()));
+        // the counters are assigned in order, as when routed in turn
+        assertEquals(20, collector.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("output/000010067."+(i+1)+".1", collector.name(2*i));
+            assertEquals(interchange, collector.output(2*i));
+            assertEquals("archive/"+(i+1)+".2", collector.name(2*i+1));
+            assertEquals(interchange, collector.output(2*i+1));
+        }
+
+        // unmatched interchanges still reach the error destination
+        collector.output.clear();
+        config.errorDestination("error/${base}")
+                .routes("[{'enabled':'true','type':'810','destination':'output/${counter}'}]");
+        client = setupClient(new RouterConnectorClient(config, collector));
+        ConnectorCommandResult result = client.put(new PutCommand(PUT, Collections.emptySet(),
+                new IConnectorOutgoing[] {new StringSource("test.edi", interchange+interchange)},
+                destination, Collections.emptyMap()));
+        assertEquals(ConnectorCommandResult.Status.Success, result.getStatus());
+        assertEquals(2, collector.size());
+        assertEquals("error/test", collector.name(0));
+        assertEquals(interchange, collector.output(0));
+        assertEquals("error/test", collector.name(1));
+        assertEquals(interchange, collector.output(1));
+    }
+
+    @Test
+    public void testPutPipelinedFailure() throws Exception {
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            source.append(interchange);
+        }
+        OutputCollector collector = new OutputCollector() {
+            @Override
+            public OutputStream getOutputStream(String filename) throws Exception {
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        try {
+                            Thread.sleep(200); // let the other stages fill their queues
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        throw new IOException("destination failed");
+                    }
+                };
+            }
+        };
+        TestConfig config = new TestConfig()
+                .alwaysSplitEDI(true)
+                .pipelineBufferSize(1024)
+                .routes("[{'enabled':'true','destination':'output/${counter}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ConnectorCommandResult> put = executor.submit(() -> client.put(new PutCommand(PUT, Collections.emptySet(),
+                    new IConnectorOutgoing[] {new StringSource("test.edi", source.toString())},
+                    new Entry(Type.dir), Collections.emptyMap())));
+            try {
+                put.get(10, TimeUnit.SECONDS);
+                fail("expected the failed destination to be reported");
+            } catch (ExecutionException e) {
+                assertEquals("destination failed", e.getCause().getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPutLocalTransfer() throws Exception {
+        // the stream differs from the file after the preview, to show where each part is copied from
+        String content = "<File><sender>ACME</sender>"+Strings.repeat("0123456789", 20000)+"</File>";
+        String stream = content.substring(0, 8192)+Strings.repeat("x", content.length()-8192);
+        LocalFiles local = new LocalFiles(Files.createTempDirectory("router").toFile());
+        File source = local.getFile("test.xml");
+        Files.write(source.toPath(), content.getBytes());
+        TestConfig config = new TestConfig()
+                .routes("[{'enabled':'true','content':'.*<sender>(?<sender>[^<]*)</sender>.*','sender':'ACME','destination':'one-${sender}'},"+
+                        " {'enabled':'true','destination':'two-${sender}'}]");
+        try {
+            RouterConnectorClient client = setupClient(new RouterConnectorClient(config, local));
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource(source.getPath(), stream)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            // only the previewed part comes from the stream
+            assertEquals(content, local.read("one-ACME"));
+            assertEquals(content, local.read("two-ACME"));
+
+            // other destinations are written from the stream
+            OutputCollector collector = new OutputCollector();
+            client = setupClient(new RouterConnectorClient(config, collector));
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource(source.getPath(), stream)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            assertEquals(2, collector.size());
+            assertEquals(stream, collector.output(0));
+
+            // as are local destinations through the connector's own LexFileOutputStreams
+            config.routes("[{'enabled':'true','destination':'"+local.dir.getPath()+"/lex-${base}${ext}'}]");
+            client = setupClient(new RouterConnectorClient(config, new LexFileFactory()));
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource(source.getPath(), stream)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            assertEquals(content, local.read("lex-test.xml"));
+        } finally {
+            local.delete();
+        }
+    }
+
+    @Test
+    public void testPutLinkDestinations() throws Exception {
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        LocalFiles local = new LocalFiles(Files.createTempDirectory("router").toFile());
+        TestConfig config = new TestConfig()
+                .alwaysSplitEDI(true)
+                .forceUnique(true)
+                .linkDestinations(true)
+                .routes("[{'enabled':'true','destination':'inbox-${icn}'},"+
+                        " {'enabled':'true','destination':'archive-${icn}'},"+
+                        " {'enabled':'true','destination':'audit-${icn}'}]");
+        try {
+            RouterConnectorClient client = setupClient(new RouterConnectorClient(config, local));
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", interchange)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            // one file written, the other two linked to it
+            assertEquals(Arrays.asList("inbox-000010067"), local.opened);
+            assertEquals(interchange, local.read("inbox-000010067"));
+            assertTrue(Files.isSameFile(local.path("inbox-000010067"), local.path("archive-000010067")));
+            assertTrue(Files.isSameFile(local.path("inbox-000010067"), local.path("audit-000010067")));
+
+            // claimed unique names are linked in place
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", interchange)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            assertEquals(interchange, local.read("archive-000010067.1"));
+            assertTrue(Files.isSameFile(local.path("inbox-000010067.1"), local.path("audit-000010067.1")));
+            assertEquals(6, local.dir.listFiles().length);
+        } finally {
+            local.delete();
+        }
+
+        // when the first destination can not be opened the next is written instead
+        LocalFiles failing = new LocalFiles(Files.createTempDirectory("router").toFile()) {
+            @Override
+            public OutputStream getOutputStream(String filename) throws Exception {
+                if (filename.startsWith("inbox-")) {
+                    throw new IOException("inbox unavailable");
+                }
+                return super.getOutputStream(filename);
+            }
+        };
+        try {
+            RouterConnectorClient client = setupClient(new RouterConnectorClient(config.forceUnique(false), failing));
+            client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.edi", interchange)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            assertEquals(Arrays.asList("archive-000010067"), failing.opened);
+            assertEquals(interchange, failing.read("audit-000010067"));
+            assertTrue(Files.isSameFile(failing.path("archive-000010067"), failing.path("audit-000010067")));
+        } finally {
+            failing.delete();
+        }
+    }
+
+    @Test
+    public void testPutStagedCommit() throws Exception {
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        int segments = interchange.split("~").length;
+        String sha256 = Hashing.sha256().hashString(interchange, StandardCharsets.UTF_8).toString();
+        LocalFiles local = new LocalFiles(Files.createTempDirectory("router").toFile());
+        TestConfig config = new TestConfig()
+                .alwaysSplitEDI(true)
+                .stagedCommit(true)
+                .routes("[{'enabled':'true','destination':'inbox-${trailer}-${segments}-${size}'},"+
+                        " {'enabled':'true','destination':'archive-${sha256}'}]");
+        try {
+            RouterConnectorClient client = setupClient(new RouterConnectorClient(config, local));
+            ConnectorCommandResult result = client.put(new PutCommand(PUT, Collections.emptySet(),
+                    new IConnectorOutgoing[] {new StringSource("test.edi", interchange)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            assertEquals(ConnectorCommandResult.Status.Success, result.getStatus());
+            // staged under temporary names, renamed once the stream ended
+            assertTrue(local.opened.isEmpty());
+            String inbox = "inbox-000010067-"+segments+"-"+interchange.length();
+            String archive = "archive-"+sha256;
+            Set<String> names = new HashSet<>(Arrays.asList(local.dir.list()));
+            assertEquals(new HashSet<>(Arrays.asList(inbox, archive)), names);
+            assertEquals(interchange, local.read(inbox));
+            assertEquals(interchange, local.read(archive));
+        } finally {
+            local.delete();
+        }
+    }
+
+    @Test
+    public void testPutStagedCommitParsed() throws Exception {
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        LocalFiles local = new LocalFiles(Files.createTempDirectory("router").toFile());
+        TestConfig config = new TestConfig()
+                .stagedCommit(true)
+                .routes("[{'enabled':'true','destination':'archive-${file}.${trailer}'}]");
+        try {
+            // a match-anything route, but ${trailer} needs the interchange parsed: no pass-through
+            RouterConnectorClient client = setupClient(new RouterConnectorClient(config, local));
+            ConnectorCommandResult result = client.put(new PutCommand(PUT, Collections.emptySet(),
+                    new IConnectorOutgoing[] {new StringSource("test.edi", interchange)},
+                    new Entry(Type.dir), Collections.emptyMap()));
+            assertEquals(ConnectorCommandResult.Status.Success, result.getStatus());
+            assertEquals(interchange, local.read("archive-test.edi.000010067"));
+        } finally {
+            local.delete();
+        }
+    }
+
+    @Test
+    public void testPutCompress() throws ConnectorException, IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 5*ParallelGzipOutputStream.BLOCK_SIZE/2; i++) {
+            sb.append("line ").append(i).append(" of the file to archive\n");
+        }
+        String content = sb.toString();
+        OutputCollector collector = new OutputCollector();
+        TestConfig config = new TestConfig()
+                .routes("[{'enabled':'true','destination':'inbox/${file}'},"+
+                        " {'enabled':'true','destination':'archive/${file}.gz','compress':'gzip'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+        client.put(new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {new StringSource("test.txt", content)},
+                new Entry(Type.dir), Collections.emptyMap()));
+
+        assertEquals(2, collector.size());
+        assertEquals("inbox/test.txt", collector.name(0));
+        assertEquals(content, collector.output(0));
+        assertEquals("archive/test.txt.gz", collector.name(1));
+        byte[] compressed = collector.bytes(1);
+        assertTrue(compressed.length < content.length()/4);
+        assertEquals(content, gunzip(compressed));
+
+        // nothing at all is still a gzip file
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(empty).close();
+        assertEquals("", gunzip(empty.toByteArray()));
+    }
+
+    private static String gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return new String(ByteStreams.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testPutPassThrough() throws ConnectorException, IOException {
+        // no route needs metadata, so the two interchanges are passed through whole
+        String interchange = ryder+"GE*1*9951~IEA*1*000010067~";
+        OutputCollector collector = new OutputCollector();
+        IConnectorOutgoing source = new StringSource("test.edi", interchange+interchange);
+        TestConfig config = new TestConfig()
+                .errorDestination("error-${file}")
+                .routes("[{'enabled':'true','destination':'output/all/${base}.${counter}'}]");
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {source}, destination, Collections.emptyMap());
+        client.put(put);
+
+        assertEquals(1, collector.size());
+        assertEquals("output/all/test.1", collector.name(0));
+        assertEquals(interchange+interchange, collector.output(0));
+
+        // unless splitting is asked for
+        collector = new OutputCollector();
+        source = new StringSource("test.edi", interchange+interchange);
+        client = setupClient(new RouterConnectorClient(config.alwaysSplitEDI(true), collector));
+        put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {source}, destination, Collections.emptyMap());
+        client.put(put);
+
+        assertEquals(2, collector.size());
+        assertEquals("output/all/test.2", collector.name(1));
+        assertEquals(interchange, collector.output(1));
+    }
+
     @Test
     public void testPutSubcounter() throws ConnectorException, IOException {
         OutputCollector collector = new OutputCollector();
@@ -302,6 +1186,24 @@ public class TestRouterConnectorClient {
         assertEquals(ryder, collector.output(0));
     }
 
+    @Test
+    public void testPutScriptSoError() throws ConnectorException, IOException {
+        OutputCollector collector = new OutputCollector();
+        IConnectorOutgoing source = new StringSource("test.edi", ryder);
+        RouterConnectorConfig config = new TestConfig()
+                .errorDestination("error-${file}")
+                .routes("[{'enabled':'true','type':'214','destination':'out/${[sender,icn].join()}'}]"); // needs JavaScript
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {source}, destination, Collections.emptyMap());
+        client.put(put);
+
+        assertEquals(1, collector.size());
+        assertEquals("error-test.edi", collector.name(0));
+        assertEquals(ryder, collector.output(0));
+    }
+
     @Test
     public void testPutDisabledSoError() throws ConnectorException, IOException {
         OutputCollector collector = new OutputCollector();
@@ -363,6 +1265,41 @@ public class TestRouterConnectorClient {
         assertEquals(xmlsample, collector.output(0));
     }
 
+    @Test
+    public void testPutFilenameCapture() throws ConnectorException, IOException {
+        OutputCollector collector = new OutputCollector();
+        IConnectorOutgoing source = new StringSource("ACME_WALMART_850_000123.xml", xmlsample);
+        String capture = "(?<sender>[^_]+)_(?<receiver>[^_]+)_(?<type>\\d+)_(?<icn>\\d+)\\.xml";
+        RouterConnectorConfig config = new TestConfig()
+                .errorDestination("error-${file}")
+                .routes(new Route[] {
+                        new Route().enabled(true).filename(capture).type("810").destination("out/810/${file}"),
+                        new Route().enabled(true).filename(capture).type("850").destination("out/${sender}/${receiver}/${type}-${icn}.xml")
+                        });
+        RouterConnectorClient client = setupClient(new RouterConnectorClient(config, collector));
+
+        Entry destination = new Entry(Type.dir);
+        PutCommand put = new PutCommand(PUT, Collections.emptySet(), new IConnectorOutgoing[] {source}, destination, Collections.emptyMap());
+        client.put(put);
+
+        assertEquals(1, collector.size());
+        assertEquals("out/ACME/WALMART/850-000123.xml", collector.name(0));
+        assertEquals(xmlsample, collector.output(0));
+
+        // each destination is expanded with its own route's captures
+        collector.output.clear();
+        config = new TestConfig()
+                .routes(new Route[] {
+                        new Route().enabled(true).filename("(?<sender>[^_]+)_.*").destination("from/${sender}"),
+                        new Route().enabled(true).filename("[^_]+_(?<sender>[^_]+)_.*").destination("to/${sender}")
+                        });
+        client = setupClient(new RouterConnectorClient(config, collector));
+        client.put(put);
+        assertEquals(2, collector.size());
+        assertEquals("from/ACME", collector.name(0));
+        assertEquals("to/WALMART", collector.name(1));
+    }
+
     @Test
     public void testPutFilenameEDI() throws ConnectorException, IOException {
         OutputCollector collector = new OutputCollector();